@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+/**
+ * Compares eager and lazy loading of the standard libraries:
+ * <code>openLibs</code> against <code>openLibsLazy</code>. For each mode it
+ * creates a batch of states and reports the setup time per state, the Lua
+ * heap of a state once set up, and the time of a first script that touches
+ * string, table and math, which is where the lazy mode pays for its
+ * libraries.
+ * <p>
+ * Run it on a device or on a host JVM with the native library on
+ * <code>java.library.path</code>.
+ */
+public class LibraryLoadingBenchmark {
+
+    private static final int STATES = 300;
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    private static final String FIRST_USE = "local s = ('x'):rep(4):upper() "
+            + "local t = {} table.insert(t, s) return math.max(#t, 1)";
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("mode   setup us/state  heap KB/state  first use us");
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            double[] eager = run(false);
+            double[] lazy = run(true);
+            if (round == WARMUP_ROUNDS) {
+                print("eager", eager);
+                print("lazy", lazy);
+            }
+        }
+    }
+
+    /**
+     * @return setup time in us, heap in KB and first use time in us, per
+     *         state
+     */
+    private static double[] run(boolean lazy) throws LuaException {
+        LuaState[] states = new LuaState[STATES];
+        try {
+            long start = System.nanoTime();
+            for (int i = 0; i < STATES; i++) {
+                states[i] = LuaStateFactory.newLuaState();
+                if (lazy) {
+                    states[i].openLibsLazy();
+                } else {
+                    states[i].openLibs();
+                }
+            }
+            double setup = (System.nanoTime() - start) / 1e3 / STATES;
+
+            double heap = 0;
+            for (LuaState L : states) {
+                L.gc(LuaState.LUA_GCCOLLECT, 0);
+                heap += L.gc(LuaState.LUA_GCCOUNT, 0)
+                        + L.gc(LuaState.LUA_GCCOUNTB, 0) / 1024.0;
+            }
+            heap /= STATES;
+
+            start = System.nanoTime();
+            for (LuaState L : states) {
+                if (L.LdoString(FIRST_USE) != 0) {
+                    throw new LuaException(L.toString(-1));
+                }
+            }
+            double firstUse = (System.nanoTime() - start) / 1e3 / STATES;
+
+            return new double[] { setup, heap, firstUse };
+        } finally {
+            for (LuaState L : states) {
+                if (L != null) {
+                    L.close();
+                }
+            }
+        }
+    }
+
+    private static void print(String mode, double[] result) {
+        System.out.println(String.format("%-6s %14.1f  %13.1f  %12.1f", mode,
+                result[0], result[1], result[2]));
+    }
+}
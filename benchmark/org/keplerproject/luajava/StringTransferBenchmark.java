@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Measures the throughput of moving strings across the bridge, for payloads
+ * from 1 KB to 1 MB. Each size is run with an ASCII and a non-ASCII payload,
+ * comparing the String path (<code>pushString(String)</code> and
+ * <code>toString</code>) against the byte path
+ * (<code>pushString(byte[], int, int)</code> and <code>toBytes</code>, decoded
+ * on the java side) and against the modified UTF-8 path the bridge used
+ * before, with GetStringUTFChars and NewStringUTF.
+ * <p>
+ * Run it on a device or on a host JVM with the native library on
+ * <code>java.library.path</code>. Results are printed in MB/s.
+ */
+public class StringTransferBenchmark {
+
+    private static final int MIN_SIZE = 1 << 10;
+
+    private static final int MAX_SIZE = 1 << 20;
+
+    /**
+     * Bytes moved by each measurement, so that small payloads run enough
+     * iterations
+     */
+    private static final int VOLUME = 64 << 20;
+
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        LuaState L = LuaStateFactory.newLuaState();
+        try {
+            System.out.println("size      payload  push(String)  push(byte[])"
+                    + "  push(mutf8)  toString  toBytes+decode  toString(mutf8)");
+            for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 2) {
+                run(L, size, false);
+                run(L, size, true);
+            }
+        } finally {
+            L.close();
+        }
+    }
+
+    private static void run(LuaState L, int size, boolean ascii)
+            throws UnsupportedEncodingException {
+        String str = payload(size, ascii);
+        byte[] bytes = str.getBytes("UTF-8");
+        int iterations = Math.max(16, VOLUME / bytes.length);
+
+        double[] rates = new double[6];
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                L.pushString(str);
+                L.pop(1);
+            }
+            rates[0] = rate(bytes.length, iterations, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                L.pushString(bytes, 0, bytes.length);
+                L.pop(1);
+            }
+            rates[1] = rate(bytes.length, iterations, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                L.pushStringUTF(str);
+                L.pop(1);
+            }
+            rates[2] = rate(bytes.length, iterations, start);
+
+            L.pushString(bytes, 0, bytes.length);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                L.toString(-1);
+            }
+            rates[3] = rate(bytes.length, iterations, start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                new String(L.toBytes(-1), "UTF-8");
+            }
+            rates[4] = rate(bytes.length, iterations, start);
+            L.pop(1);
+
+            // NewStringUTF only accepts modified UTF-8, so read back what
+            // the old push produced
+            L.pushStringUTF(str);
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                L.toStringUTF(-1);
+            }
+            rates[5] = rate(bytes.length, iterations, start);
+            L.pop(1);
+        }
+
+        System.out.println(String.format(
+                "%-9s %-8s %12.0f  %12.0f  %11.0f  %8.0f  %14.0f  %14.0f",
+                sizeName(size), ascii ? "ascii" : "utf-8", rates[0], rates[1],
+                rates[2], rates[3], rates[4], rates[5]));
+    }
+
+    /**
+     * A payload of at most <code>size</code> bytes of UTF-8. The non-ASCII
+     * one mixes two and three byte characters with a supplementary character,
+     * which is never split.
+     */
+    private static String payload(int size, boolean ascii) {
+        StringBuilder sb = new StringBuilder(size);
+        String pattern = ascii ? "abcdefghijklmnopqrstuvwxyz0123456789"
+                : "abcé中文def😀";
+        int length = 0;
+        for (int i = 0;; i += Character.charCount(pattern.codePointAt(i))) {
+            if (i == pattern.length()) {
+                i = 0;
+            }
+            int cp = pattern.codePointAt(i);
+            int n = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (length + n > size) {
+                return sb.toString();
+            }
+            sb.appendCodePoint(cp);
+            length += n;
+        }
+    }
+
+    private static double rate(int length, int iterations, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return (double) length * iterations / seconds / (1 << 20);
+    }
+
+    private static String sizeName(int size) {
+        return size >= 1 << 20 ? (size >> 20) + " MB" : (size >> 10) + " KB";
+    }
+}
@@ -35,6 +35,8 @@
 #include <jni.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
+#include <time.h>
 #include <android/log.h>
 
 #include "lua.h"
@@ -55,17 +57,164 @@
 #define LUACALLMETAMETHODTAG  "__call"
 /* Constant that defines where in the metatable should I place the function name */
 #define LUAJAVAOBJFUNCCALLED  "__FunctionCalled"
+/* Registry key of the metatable shared by all JavaFunctions */
+#define LUAJAVAFUNCTIONMETA   "luajava.JavaFunction"
+/* Registry key of the table of standard libraries not opened yet */
+#define LUAJAVALAZYLIBS       "luajava.LazyLibs"
+/* Instructions between two checks of the watchdog */
+#define LUAJAVAHOOKINTERVAL    1000
+/* Levels shown by the traceback of a watchdog error */
+#define LUAJAVATRACEBACKLEVELS 16
+/* Deepest stack recorded by the profiler, counted from the innermost frame */
+#define LUAJAVAPROFILEDEPTH    64
+/* Initial bucket count of the profiler hash tables, a power of two */
+#define LUAJAVAPROFILEBUCKETS  256
+
+/* Number of entries kept by the Lua to Java string cache */
+#define LUAJAVASTRCACHESIZE    128
+/* Number of hash buckets of the Lua to Java string cache, power of two */
+#define LUAJAVASTRCACHEBUCKETS 256
+/* Longest Lua string, in bytes, that is kept by the string cache */
+#define LUAJAVASTRCACHEMAXLEN  64
+/* Size, in characters, of the stack buffers used to convert short strings */
+#define LUAJAVASTRBUFSIZE      256
+/* Deepest compiled path that is resolved without allocating */
+#define LUAJAVAPATHMAXDEPTH    16
+/* Results pushed per batch by _pushResults */
+#define LUAJAVARESULTBATCH     32
+/* Returned by JavaFunction.execute to raise the value on top as an error */
+#define LUAJAVAFUNCTIONERROR   -1
+
+/* Kinds of the values of a LuaResults, see LuaResults.java */
+#define LUAJAVARESULTNIL       0
+#define LUAJAVARESULTBOOLEAN   1
+#define LUAJAVARESULTNUMBER    2
+#define LUAJAVARESULTSTRING    3
+#define LUAJAVARESULTBYTES     4
+#define LUAJAVARESULTOBJECT    5
+#define LUAJAVARESULTREF       6
 
 #define LOG_TAG "lua"
 #define LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
 #define LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
 
 static jclass throwable_class = NULL;
+static jclass object_class = NULL;
 static jmethodID get_message_method = NULL;
 static jclass java_function_class = NULL;
 static jmethodID java_function_method = NULL;
+static jmethodID java_function_call_method = NULL;
 static jclass luajava_api_class = NULL;
 static jclass java_lang_class = NULL;
+static jclass boolean_class = NULL;
+static jmethodID boolean_value_of_method = NULL;
+static jclass double_class = NULL;
+static jmethodID double_value_of_method = NULL;
+static jmethodID get_lua_object_method = NULL;
+
+/* Address used as the registry key of the string cache */
+static char str_cache_key;
+
+/* Address used as the registry key of the hook state */
+static char hook_state_key;
+
+/* Address used as the registry key of the path walking function */
+static char path_walk_key;
+
+/* Whether java functions are called through LuaJavaAPI.javaFunctionCall,
+   which records bridge metrics and trace sections */
+static int instrumented_calls = 0;
+
+/* Number of states being profiled, checked before timing bridge calls */
+static int profilers_running = 0;
+
+/* Function seen by the profiler */
+typedef struct {
+    /* Name, main chunk or ? when it has none */
+    char * name;
+    /* Short source, [C] for C and java functions */
+    char * file;
+    /* Line the function is defined at, -1 for C functions */
+    int line;
+    unsigned int hash;
+} ProfileFrame;
+
+/* Distinct stack seen by the profiler, with the time attributed to it */
+typedef struct {
+    /* Frame indexes, outermost first */
+    int * frames;
+    int depth;
+    unsigned int hash;
+    jlong weight;
+    jint samples;
+} ProfileStack;
+
+/* Samples of a profiled state, aggregated by stack */
+typedef struct {
+    /* Instructions between samples */
+    int interval;
+    /* Instructions run since the last sample */
+    int pending;
+    /* Time the last sample was taken or Lua code was entered */
+    jlong last;
+    /* Total time attributed to stacks */
+    jlong sampled;
+    ProfileFrame * frames;
+    int frameCount;
+    int frameCapacity;
+    /* Open addressing tables of indexes into frames and stacks, -1 if free */
+    int * frameBuckets;
+    int frameBucketCount;
+    ProfileStack * stacks;
+    int stackCount;
+    int stackCapacity;
+    int * stackBuckets;
+    int stackBucketCount;
+} Profiler;
+
+/* Per state settings of the count hook */
+typedef struct {
+    /* Instructions between two runs of the hook */
+    int count;
+    /* Sampling profiler, NULL when not profiling */
+    Profiler * profiler;
+    /* Whether the watchdog is armed */
+    int watchdog;
+    /* Instruction budget, 0 for none */
+    jlong budget;
+    /* Instructions run since the watchdog was armed */
+    jlong executed;
+    /* Monotonic time, in nanoseconds, the script must end by, 0 for none */
+    jlong deadline;
+} HookState;
+
+/* Entry of the Lua to Java string cache */
+typedef struct {
+    /* Contents of the pinned Lua string, used as its identity */
+    const char * key;
+    /* Global reference to the converted java string */
+    jstring value;
+    /* Registry reference that keeps the Lua string alive */
+    int ref;
+    /* Neighbours in the LRU list, -1 terminated */
+    int prev;
+    int next;
+    /* Next entry in the same hash bucket, -1 terminated */
+    int chain;
+} StrCacheEntry;
+
+/* Lua to Java string cache, one per lua State */
+typedef struct {
+    StrCacheEntry entries[LUAJAVASTRCACHESIZE];
+    int buckets[LUAJAVASTRCACHEBUCKETS];
+    /* Most and least recently used entries */
+    int head;
+    int tail;
+    int size;
+    jlong hits;
+    jlong misses;
+    jlong evictions;
+} StrCache;
 
 /***************************************************************************
  *
@@ -308,7 +457,8 @@ static lua_State * getStateFromCPtr(JNIEnv * env, jobject cptr);
  * $FC luaJavaFunctionCall
  *
  * $ED Description
- *    function called by metamethod __call of instances of JavaFunctionWrapper
+ *    function called by metamethod __call of instances of JavaFunctionWrapper.
+ *    Its upvalue is the metatable shared by all JavaFunctions.
  *
  * $EP Function Parameters
  *    $P L - lua State
@@ -421,204 +571,2100 @@ static int modifyGlobalMT(lua_State * L);
  *
  *$. **********************************************************************/
 
-static void modifyLuaEnv(lua_State * L);
+static void modifyLuaEnv(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC openLazyLib
+ *
+ * $ED Description
+ *    Opens a standard library that was left out by _openLibsLazy, if it
+ *    has not been opened yet.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P nameIdx - index of the library name on the stack
+ *
+ * $FV Returned Value
+ *    int - 1 if the library was opened now, 0 otherwise
+ *
+ *$. **********************************************************************/
+
+static int openLazyLib(lua_State * L, int nameIdx);
+
+/***************************************************************************
+ *
+ * $FC lazyGlobalIndex
+ *
+ * $ED Description
+ *    __index metamethod of the globals table in lazy library mode. Opens
+ *    the standard library named by the key on first access, otherwise
+ *    looks for a java class as javaFindClass does.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the globals table and the key
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int lazyGlobalIndex(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC lazyStringIndex
+ *
+ * $ED Description
+ *    __index metamethod of strings until the string library is opened, so
+ *    that method calls on strings open it.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the string and the key
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int lazyStringIndex(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC getHookState
+ *
+ * $ED Description
+ *    Returns the hook settings of the lua State, creating them on first
+ *    use. They live in the registry and are released with the State.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    HookState * - hook settings
+ *
+ *$. **********************************************************************/
+
+static HookState * getHookState(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC luajavaHook
+ *
+ * $ED Description
+ *    Count hook shared by the LuaJava hook users. Raises an error with a
+ *    traceback when the armed watchdog's budget or deadline is exceeded.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State, or a thread of it
+ *    $P ar - hook event
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void luajavaHook(lua_State * L, lua_Debug * ar);
+
+/***************************************************************************
+ *
+ * $FC pushTraceback
+ *
+ * $ED Description
+ *    Pushes a message followed by a traceback of the running functions, in
+ *    the format of debug.traceback.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P msg - the message
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void pushTraceback(lua_State * L, const char * msg);
+
+/***************************************************************************
+ *
+ * $FC monotonicNanos
+ *
+ * $ED Description
+ *    Reads the monotonic clock.
+ *
+ * $FV Returned Value
+ *    jlong - time in nanoseconds
+ *
+ *$. **********************************************************************/
+
+static jlong monotonicNanos(void);
+
+/***************************************************************************
+ *
+ * $FC hookStateGC
+ *
+ * $ED Description
+ *    Releases the profiler of a State closed while profiling.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the hook settings
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int hookStateGC(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC updateHook
+ *
+ * $ED Description
+ *    Installs the count hook for the watchdog and profiler in use, or
+ *    removes it when neither is. With both, the hook runs at the shorter
+ *    of their intervals.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P hs - hook settings
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void updateHook(lua_State * L, HookState * hs);
+
+/***************************************************************************
+ *
+ * $FC syncHook
+ *
+ * $ED Description
+ *    Gives a thread the count hook the State currently uses, removing a
+ *    hook left over from an earlier watchdog call or profiling run. Hooks
+ *    set by debug.sethook are left alone.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State, or a thread of it
+ *    $P co - the thread to update
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void syncHook(lua_State * L, lua_State * co);
+
+/***************************************************************************
+ *
+ * $FC hookCoroutines
+ *
+ * $ED Description
+ *    Replaces coroutine.resume and coroutine.wrap with versions that sync
+ *    the hook of the coroutine before running it, so coroutines created
+ *    before a watchdog call or a profiling run are covered too.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void hookCoroutines(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC luajavaResume
+ *
+ * $ED Description
+ *    coroutine.resume, syncing the hook of the coroutine first. The
+ *    original function is upvalue 1.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the coroutine and the values passed to it
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int luajavaResume(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC luajavaWrap
+ *
+ * $ED Description
+ *    coroutine.wrap, returning a function that syncs the hook of the
+ *    coroutine before each resume. The original function is upvalue 1.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the body of the coroutine
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int luajavaWrap(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC luajavaWrapCall
+ *
+ * $ED Description
+ *    Function returned by luajavaWrap. Upvalue 1 is the function returned
+ *    by the original coroutine.wrap, upvalue 2 its coroutine.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - the values passed to the coroutine
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int luajavaWrapCall(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC runningProfiler
+ *
+ * $ED Description
+ *    Returns the profiler of the State, checking a global counter first so
+ *    bridge calls cost nothing when no State is profiled.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    Profiler * - the profiler, NULL when not profiling
+ *
+ *$. **********************************************************************/
+
+static Profiler * runningProfiler(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC profilerMark
+ *
+ * $ED Description
+ *    Restarts the sample clock when Lua code is entered from java, so time
+ *    the State spent idle is not attributed to the next sample.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void profilerMark(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC profilerSample
+ *
+ * $ED Description
+ *    Adds time to the current stack of the State.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State, or a thread of it
+ *    $P p - the profiler
+ *    $P weight - time, in nanoseconds
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void profilerSample(lua_State * L, Profiler * p, jlong weight);
+
+/***************************************************************************
+ *
+ * $FC profilerBridgeCall
+ *
+ * $ED Description
+ *    Attributes the time of a java call made from Lua to the calling
+ *    stack, less the time sampled in Lua code it called back.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P p - the profiler running when the call started
+ *    $P start - time the call started
+ *    $P sampled - sampled time of the profiler when the call started
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void profilerBridgeCall(lua_State * L, Profiler * p, jlong start,
+        jlong sampled);
+
+/***************************************************************************
+ *
+ * $FC profilerFrame
+ *
+ * $ED Description
+ *    Returns the index of a function in the profiler frames, adding it if
+ *    it is new.
+ *
+ * $EP Function Parameters
+ *    $P p - the profiler
+ *    $P ar - the function, with its S and n fields filled
+ *
+ * $FV Returned Value
+ *    int - the index, -1 when out of memory
+ *
+ *$. **********************************************************************/
+
+static int profilerFrame(Profiler * p, lua_Debug * ar);
+
+/***************************************************************************
+ *
+ * $FC profilerRehash
+ *
+ * $ED Description
+ *    Doubles an open addressing table when it is half full.
+ *
+ * $EP Function Parameters
+ *    $P buckets - the table
+ *    $P bucketCount - its size
+ *    $P count - number of indexes in it
+ *    $P hashes - hash of each index, read with the given stride
+ *    $P stride - size of the entries the hashes are in
+ *
+ * $FV Returned Value
+ *    int - 0 on success, -1 when out of memory
+ *
+ *$. **********************************************************************/
+
+static int profilerRehash(int ** buckets, int * bucketCount, int count,
+        const char * hashes, size_t stride);
+
+/***************************************************************************
+ *
+ * $FC freeProfiler
+ *
+ * $ED Description
+ *    Releases a profiler and everything it recorded.
+ *
+ * $EP Function Parameters
+ *    $P p - the profiler
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void freeProfiler(Profiler * p);
+
+/***************************************************************************
+ *
+ * $FC absIndex
+ *
+ * $ED Description
+ *    Converts a relative stack index into an absolute one, so that it stays
+ *    valid after more values are pushed. Pseudo-indices are returned as is.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P idx - index on the stack
+ *
+ * $FV Returned Value
+ *    int - absolute index
+ *
+ *$. **********************************************************************/
+
+static int absIndex(lua_State * L, int idx);
+
+/***************************************************************************
+ *
+ * $FC getStrCache
+ *
+ * $ED Description
+ *    Returns the string cache of the lua State, creating it on first use.
+ *    The cache lives in the registry and is released with the State.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    StrCache * - string cache
+ *
+ *$. **********************************************************************/
+
+static StrCache * getStrCache(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC Function strCacheGC
+ *
+ * $ED Description
+ *    Function to be called by the metamethod __gc of the string cache.
+ *    Deletes the global references held by the cache.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P Stack - Parameters will be received by the stack
+ *
+ * $FV Returned Value
+ *    int - Number of values to be returned by the function
+ *
+ *$. **********************************************************************/
+
+static int strCacheGC(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC luaToJavaString
+ *
+ * $ED Description
+ *    Converts the Lua string at the given index into a java string.
+ *    Short strings are looked up by identity in the string cache, so a
+ *    string that was already converted is not encoded again. Lua strings
+ *    are interned, and the cache pins every string it keeps, so the
+ *    address of the contents identifies the string.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P L - lua State
+ *    $P idx - index on the stack
+ *
+ * $FV Returned Value
+ *    jstring - local reference to the java string, NULL if the value is
+ *              not a string or a number
+ *
+ *$. **********************************************************************/
+
+static jstring luaToJavaString(JNIEnv * env, lua_State * L, int idx);
+
+/***************************************************************************
+ *
+ * $FC asciiPrefix
+ *
+ * $ED Description
+ *    Measures how many leading bytes are ASCII characters other than zero,
+ *    which are encoded the same in UTF-8 and modified UTF-8.
+ *
+ * $EP Function Parameters
+ *    $P s - the bytes
+ *    $P len - number of bytes
+ *
+ * $FV Returned Value
+ *    size_t - length of the ASCII prefix
+ *
+ *$. **********************************************************************/
+
+static size_t asciiPrefix(const unsigned char * s, size_t len);
+
+/***************************************************************************
+ *
+ * $FC newJavaString
+ *
+ * $ED Description
+ *    Creates a java string from len bytes of UTF-8. Unlike NewStringUTF
+ *    this decodes standard UTF-8, so embedded zeros and characters
+ *    outside the BMP survive the conversion. Malformed sequences are
+ *    replaced by U+FFFD.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P str - the bytes, zero terminated
+ *    $P len - number of bytes, not counting the terminator
+ *
+ * $FV Returned Value
+ *    jstring - local reference to the java string
+ *
+ *$. **********************************************************************/
+
+static jstring newJavaString(JNIEnv * env, const char * str, size_t len);
+
+/***************************************************************************
+ *
+ * $FC pushJavaString
+ *
+ * $ED Description
+ *    Pushes a java string onto the stack encoded as standard UTF-8, which
+ *    GetStringUTFChars does not produce for zeros and supplementary
+ *    characters.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P L - lua State
+ *    $P str - the java string
+ *
+ * $FV Returned Value
+ *    int - 1 if the string was pushed, 0 if an exception is pending
+ *
+ *$. **********************************************************************/
+
+static int pushJavaString(JNIEnv * env, lua_State * L, jstring str);
+
+/***************************************************************************
+ *
+ * $FC luaToJavaObject
+ *
+ * $ED Description
+ *    Converts the value at the given index the way LuaState.toJavaObject
+ *    does: booleans, numbers and strings become Boolean, Double and String,
+ *    java objects are unwrapped, and other values get a LuaObject.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P jstate - the LuaState java object
+ *    $P L - lua State
+ *    $P idx - index on the stack
+ *
+ * $FV Returned Value
+ *    jobject - local reference, NULL for nil and threads or when an
+ *              exception is pending
+ *
+ *$. **********************************************************************/
+
+static jobject luaToJavaObject(JNIEnv * env, jobject jstate, lua_State * L, int idx);
+
+/***************************************************************************
+ *
+ * $FC storeJavaObject
+ *
+ * $ED Description
+ *    Converts the value at the given index and stores it in a java array.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P jstate - the LuaState java object
+ *    $P L - lua State
+ *    $P idx - index on the stack
+ *    $P array - the java array
+ *    $P i - index in the array
+ *
+ * $FV Returned Value
+ *    int - 1 on success, 0 when an exception is pending
+ *
+ *$. **********************************************************************/
+
+static int storeJavaObject(JNIEnv * env, jobject jstate, lua_State * L, int idx,
+        jobjectArray array, jsize i);
+
+/***************************************************************************
+ *
+ * $FC pushPath
+ *
+ * $ED Description
+ *    Pushes the value found by following a compiled path from the globals
+ *    table. A positive key is the registry reference of an interned name,
+ *    a negative one is an array index, negated. Each step indexes the value
+ *    as lua_gettable does, so __index metamethods apply; a step that finds
+ *    a field directly in a table takes a raw get without entering the VM.
+ *    When a step reaches nil, or indexing raises an error, the result is
+ *    nil. If raw is set, fields are read raw and a step that does not reach
+ *    a table gives nil.
+ *
+ * $EP Function Parameters
+ *    $P env - java environment
+ *    $P L - lua State
+ *    $P keys - the compiled keys
+ *    $P raw - whether metamethods are skipped
+ *
+ * $FV Returned Value
+ *    void
+ *
+ *$. **********************************************************************/
+
+static void pushPath(JNIEnv * env, lua_State * L, jintArray keys, jboolean raw);
+
+/***************************************************************************
+ *
+ * $FC pathWalk
+ *
+ * $ED Description
+ *    Lua function, called in protected mode by pushPath, that follows the
+ *    rest of a path with metamethods. Takes the value to start from, a
+ *    light userdata pointing to the keys and the number of keys.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *
+ * $FV Returned Value
+ *    int - 1, the value at the end of the path
+ *
+ *$. **********************************************************************/
+
+static int pathWalk(lua_State * L);
+
+/***************************************************************************
+ *
+ * $FC dumpWriter
+ *
+ * $ED Description
+ *    lua_Writer collecting a dumped chunk into a luaL_Buffer.
+ *
+ * $EP Function Parameters
+ *    $P L - lua State
+ *    $P p - the piece of the chunk
+ *    $P sz - size of the piece
+ *    $P ud - the luaL_Buffer
+ *
+ * $FV Returned Value
+ *    int - always 0
+ *
+ *$. **********************************************************************/
+
+static int dumpWriter(lua_State * L, const void * p, size_t sz, void * ud);
+
+/********************* Implementations ***************************/
+
+/***************************************************************************
+ *
+ *  Function: javaFindClass
+ *  ****/
+
+static int javaFindClass(lua_State * L) {
+    char * className = NULL;
+    JNIEnv * javaEnv = NULL;
+    lua_Number stateIndex;
+    jstring str = NULL;
+    jthrowable exp = NULL;
+    jmethodID method;
+    jint ret;
+
+    /* Gets the luaState index */
+    lua_pushstring(L, LUAJAVASTATEINDEX);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+
+    if (!lua_isnumber(L, -1)) {
+        lua_pushstring(L, "Impossible to identify luaState id.");
+        lua_error(L);
+    }
+
+    stateIndex = lua_tonumber(L, -1);
+    lua_pop( L, 1);
+
+    /* Gets the field Name */
+    if (!lua_isstring(L, 2)) {
+        lua_pushstring(L, "Not a valid field call.");
+        lua_error(L);
+    }
+
+    className = lua_tostring( L , 2 );
+
+    /* Gets the JNI Environment */
+    javaEnv = getEnvFromState(L);
+    if (javaEnv == NULL) {
+        lua_pushstring(L, "Invalid JNI Environment.");
+        lua_error(L);
+    }
+
+    method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
+            "javaFindClass", "(ILjava/lang/String;)I");
+
+    str = luaToJavaString(javaEnv, L, 2);
+
+    ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
+            (jint) stateIndex, str);
+
+    exp = (*javaEnv)->ExceptionOccurred(javaEnv);
+
+    if (exp != NULL) {
+        //TODO
+    }
+
+    if (ret == 1) {
+        /* Get metatable */
+        lua_getmetatable(L, -1);
+
+        /* pushes the __call metamethod */
+        lua_pushstring(L, LUACALLMETAMETHODTAG);
+        lua_pushcfunction( L, &javaNew);
+        lua_rawset(L, -3);
+
+        lua_setmetatable(L, -2);
+
+        lua_setglobal(L, className);
+
+        lua_getglobal(L, className);
+    }
+
+    (*javaEnv)->DeleteLocalRef(javaEnv, str);
+
+    return 1;
+}
+
+/***************************************************************************
+ *
+ *  Function: javaImport
+ *  ****/
+
+static int javaImport(lua_State * L) {
+    JNIEnv * javaEnv = NULL;
+    lua_Number stateIndex;
+    jstring str = NULL;
+    jthrowable exp = NULL;
+    jmethodID method;
+    jint ret;
+
+    if (lua_gettop(L) != 1) {
+        lua_pushstring(L, "Error. Function import expects 1 arguments.");
+        lua_error(L);
+    }
+    /* Gets the luaState index */
+    lua_pushstring(L, LUAJAVASTATEINDEX);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+
+    if (!lua_isnumber(L, -1)) {
+        lua_pushstring(L, "Impossible to identify luaState id.");
+        lua_error(L);
+    }
+
+    stateIndex = lua_tonumber(L, -1);
+    lua_pop(L, 1);
+
+    /* Gets the JNI Environment */
+    javaEnv = getEnvFromState(L);
+    if (javaEnv == NULL) {
+        lua_pushstring(L, "Invalid JNI Environment.");
+        lua_error(L);
+    }
+
+    method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
+            "javaImport", "(ILjava/lang/String;)I");
+
+    str = luaToJavaString(javaEnv, L, 1);
+
+    ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
+            (jint) stateIndex, str);
+
+    exp = (*javaEnv)->ExceptionOccurred(javaEnv);
+
+    /* Handles exception */
+    if (exp != NULL) {
+        jobject jstr;
+        const char * cStr;
+
+        (*javaEnv)->ExceptionClear(javaEnv);
+        jstr = (*javaEnv)->CallObjectMethod(javaEnv, exp, get_message_method);
+
+        (*javaEnv)->DeleteLocalRef(javaEnv, str);
+
+        if (jstr == NULL) {
+            jmethodID methodId;
+
+            methodId = (*javaEnv)->GetMethodID(javaEnv, throwable_class,
+                    "toString", "()Ljava/lang/String;");
+            jstr = (*javaEnv)->CallObjectMethod(javaEnv, exp, methodId);
+        }
+
+        cStr = (*javaEnv)->GetStringUTFChars(javaEnv, jstr, NULL);
+
+        lua_pushstring(L, cStr);
+
+        (*javaEnv)->ReleaseStringUTFChars(javaEnv, jstr, cStr);
+
+        lua_error(L);
+    }
+
+    (*javaEnv)->DeleteLocalRef(javaEnv, str);
+
+    return ret;
+}
+
+/***************************************************************************
+ *
+ *  Function: modifyGlobalMT
+ *  ****/
+
+static int modifyGlobalMT(lua_State * L) {
+    lua_getglobal(L, "_G");
+
+    /* Creates metatable */
+    lua_newtable(L);
+
+    /* pushes the __index metamethod */
+    lua_pushstring(L, LUAINDEXMETAMETHODTAG);
+    lua_pushcfunction( L, &javaFindClass);
+    lua_rawset(L, -3);
+
+    if (lua_setmetatable(L, -2) == 0) {
+        LOGI("Failed to modify global _index meta function.");
+        lua_pop(L, 1);
+        return -1;
+    }
+
+    lua_pop(L, 1);
+
+    return 0;
+}
+
+/***************************************************************************
+ *
+ *  Function: modifyLuaEnv
+ *  ****/
+
+static void modifyLuaEnv(lua_State * L) {
+    lua_pushcfunction(L, &javaImport);
+    lua_setglobal(L, "import");
+
+    modifyGlobalMT(L);
+    hookCoroutines(L);
+}
+
+/***************************************************************************
+ *
+ *  Function: openLazyLib
+ *  ****/
+
+static int openLazyLib(lua_State * L, int nameIdx) {
+    lua_getfield(L, LUA_REGISTRYINDEX, LUAJAVALAZYLIBS);
+    if (!lua_istable(L, -1)) {
+        lua_pop(L, 1);
+        return 0;
+    }
+
+    lua_pushvalue(L, nameIdx);
+    lua_rawget(L, -2);
+    if (!lua_isfunction(L, -1)) {
+        lua_pop(L, 2);
+        return 0;
+    }
+
+    /* forgotten first, so a failing library is not opened again */
+    lua_pushvalue(L, nameIdx);
+    lua_pushnil(L);
+    lua_rawset(L, -4);
+
+    lua_pushvalue(L, nameIdx);
+    lua_call(L, 1, 0);
+    lua_pop(L, 1);
+
+    return 1;
+}
+
+/***************************************************************************
+ *
+ *  Function: lazyGlobalIndex
+ *  ****/
+
+static int lazyGlobalIndex(lua_State * L) {
+    if (lua_type(L, 2) == LUA_TSTRING && openLazyLib(L, 2)) {
+        lua_pushvalue(L, 2);
+        lua_rawget(L, 1);
+        return 1;
+    }
+
+    return javaFindClass(L);
+}
+
+/***************************************************************************
+ *
+ *  Function: lazyStringIndex
+ *  ****/
+
+static int lazyStringIndex(lua_State * L) {
+    /* the library replaces the metatable of strings when it opens */
+    lua_pushstring(L, LUA_STRLIBNAME);
+    openLazyLib(L, lua_gettop(L));
+    lua_rawget(L, LUA_GLOBALSINDEX);
+    if (!lua_istable(L, -1)) {
+        return 0;
+    }
+
+    lua_pushvalue(L, 2);
+    lua_gettable(L, -2);
+    return 1;
+}
+
+/***************************************************************************
+ *
+ *  Function: getHookState
+ *  ****/
+
+static HookState * getHookState(lua_State * L) {
+    HookState * hs;
+
+    lua_pushlightuserdata(L, &hook_state_key);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+    hs = (HookState *) lua_touserdata(L, -1);
+    lua_pop(L, 1);
+
+    if (hs == NULL) {
+        lua_pushlightuserdata(L, &hook_state_key);
+        hs = (HookState *) lua_newuserdata(L, sizeof(HookState));
+        memset(hs, 0, sizeof(HookState));
+
+        lua_newtable(L);
+        lua_pushstring(L, LUAGCMETAMETHODTAG);
+        lua_pushcfunction(L, &hookStateGC);
+        lua_rawset(L, -3);
+        lua_setmetatable(L, -2);
+
+        lua_rawset(L, LUA_REGISTRYINDEX);
+    }
+
+    return hs;
+}
+
+/***************************************************************************
+ *
+ *  Function: luajavaHook
+ *  ****/
+
+static void luajavaHook(lua_State * L, lua_Debug * ar) {
+    HookState * hs;
+    Profiler * p;
+
+    lua_pushlightuserdata(L, &hook_state_key);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+    hs = (HookState *) lua_touserdata(L, -1);
+    lua_pop(L, 1);
+
+    /* a coroutine that kept the hook of an earlier call */
+    if (hs == NULL || lua_gethookcount(L) != hs->count) {
+        syncHook(L, L);
+        return;
+    }
+
+    p = hs->profiler;
+    if (p != NULL) {
+        p->pending += hs->count;
+        if (p->pending >= p->interval) {
+            jlong now = monotonicNanos();
+
+            p->pending = 0;
+            profilerSample(L, p, now - p->last);
+            p->last = now;
+        }
+    }
+
+    if (!hs->watchdog) {
+        return;
+    }
+
+    /* stays armed, so a pcall in the script cannot swallow the error */
+    hs->executed += hs->count;
+    if (hs->budget > 0 && hs->executed >= hs->budget) {
+        pushTraceback(L, "script exceeded its instruction budget");
+        lua_error(L);
+    }
+
+    if (hs->deadline > 0 && monotonicNanos() >= hs->deadline) {
+        pushTraceback(L, "script exceeded its time limit");
+        lua_error(L);
+    }
+}
+
+/***************************************************************************
+ *
+ *  Function: pushTraceback
+ *  ****/
+
+static void pushTraceback(lua_State * L, const char * msg) {
+    lua_Debug ar;
+    int level = 0;
+    int top = lua_gettop(L);
+
+    lua_pushstring(L, msg);
+    lua_pushliteral(L, "\nstack traceback:");
+
+    while (lua_getstack(L, level++, &ar)) {
+        if (level > LUAJAVATRACEBACKLEVELS) {
+            lua_pushliteral(L, "\n\t...");
+            break;
+        }
+
+        lua_getinfo(L, "Snl", &ar);
+        lua_pushfstring(L, "\n\t%s:", ar.short_src);
+        if (ar.currentline > 0) {
+            lua_pushfstring(L, "%d:", ar.currentline);
+        }
+
+        if (*ar.namewhat != '\0') {
+            lua_pushfstring(L, " in function '%s'", ar.name);
+        } else if (*ar.what == 'm') {
+            lua_pushliteral(L, " in main chunk");
+        } else if (*ar.what == 'C') {
+            lua_pushliteral(L, " ?");
+        } else {
+            lua_pushfstring(L, " in function <%s:%d>", ar.short_src,
+                    ar.linedefined);
+        }
+
+        lua_concat(L, lua_gettop(L) - top);
+    }
+
+    lua_concat(L, lua_gettop(L) - top);
+}
+
+/***************************************************************************
+ *
+ *  Function: monotonicNanos
+ *  ****/
+
+static jlong monotonicNanos(void) {
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (jlong) ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+/***************************************************************************
+ *
+ *  Function: hookStateGC
+ *  ****/
+
+static int hookStateGC(lua_State * L) {
+    HookState * hs = (HookState *) lua_touserdata(L, 1);
+
+    if (hs->profiler != NULL) {
+        freeProfiler(hs->profiler);
+        hs->profiler = NULL;
+        __sync_sub_and_fetch(&profilers_running, 1);
+    }
+
+    return 0;
+}
+
+/***************************************************************************
+ *
+ *  Function: updateHook
+ *  ****/
+
+static void updateHook(lua_State * L, HookState * hs) {
+    int count = 0;
+
+    if (hs->profiler != NULL) {
+        count = hs->profiler->interval;
+    }
+
+    if (hs->watchdog && (count == 0 || count > LUAJAVAHOOKINTERVAL)) {
+        count = LUAJAVAHOOKINTERVAL;
+    }
+
+    hs->count = count;
+    if (count > 0) {
+        lua_sethook(L, &luajavaHook, LUA_MASKCOUNT, count);
+    } else {
+        lua_sethook(L, NULL, 0, 0);
+    }
+}
+
+/***************************************************************************
+ *
+ *  Function: syncHook
+ *  ****/
+
+static void syncHook(lua_State * L, lua_State * co) {
+    lua_Hook hook = lua_gethook(co);
+    HookState * hs;
+    int count;
+
+    if (hook != NULL && hook != &luajavaHook) {
+        return;
+    }
+
+    lua_pushlightuserdata(L, &hook_state_key);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+    hs = (HookState *) lua_touserdata(L, -1);
+    lua_pop(L, 1);
+
+    count = hs == NULL ? 0 : hs->count;
+    if (count == 0) {
+        if (hook != NULL) {
+            lua_sethook(co, NULL, 0, 0);
+        }
+    } else if (hook == NULL || lua_gethookcount(co) != count) {
+        lua_sethook(co, &luajavaHook, LUA_MASKCOUNT, count);
+    }
+}
+
+/***************************************************************************
+ *
+ *  Function: hookCoroutines
+ *  ****/
+
+static void hookCoroutines(lua_State * L) {
+    lua_getglobal(L, "coroutine");
+    if (!lua_istable(L, -1)) {
+        lua_pop(L, 1);
+        return;
+    }
+
+    lua_getfield(L, -1, "resume");
+    if (lua_tocfunction(L, -1) == &luajavaResume) {
+        /* libraries opened again */
+        lua_pop(L, 2);
+        return;
+    }
+    lua_pushcclosure(L, &luajavaResume, 1);
+    lua_setfield(L, -2, "resume");
+
+    lua_getfield(L, -1, "wrap");
+    lua_pushcclosure(L, &luajavaWrap, 1);
+    lua_setfield(L, -2, "wrap");
+
+    lua_pop(L, 1);
+}
+
+/***************************************************************************
+ *
+ *  Function: luajavaResume
+ *  ****/
+
+static int luajavaResume(lua_State * L) {
+    lua_State * co = lua_tothread(L, 1);
+
+    if (co != NULL) {
+        syncHook(L, co);
+    }
+
+    lua_pushvalue(L, lua_upvalueindex(1));
+    lua_insert(L, 1);
+    lua_call(L, lua_gettop(L) - 1, LUA_MULTRET);
+
+    return lua_gettop(L);
+}
+
+/***************************************************************************
+ *
+ *  Function: luajavaWrap
+ *  ****/
+
+static int luajavaWrap(lua_State * L) {
+    lua_pushvalue(L, lua_upvalueindex(1));
+    lua_insert(L, 1);
+    lua_call(L, lua_gettop(L) - 1, 1);
+
+    /* the coroutine is the only upvalue of the original wrapper */
+    if (lua_getupvalue(L, -1, 1) == NULL) {
+        return 1;
+    }
+    if (!lua_isthread(L, -1)) {
+        lua_pop(L, 1);
+        return 1;
+    }
+
+    lua_pushcclosure(L, &luajavaWrapCall, 2);
+
+    return 1;
+}
+
+/***************************************************************************
+ *
+ *  Function: luajavaWrapCall
+ *  ****/
+
+static int luajavaWrapCall(lua_State * L) {
+    int n = lua_gettop(L);
+
+    syncHook(L, lua_tothread(L, lua_upvalueindex(2)));
+
+    lua_pushvalue(L, lua_upvalueindex(1));
+    lua_insert(L, 1);
+    if (lua_pcall(L, n, LUA_MULTRET, 0) != 0) {
+        /* the original wrapper could only locate the error at this
+           function, locate it at the caller as it would have */
+        if (lua_isstring(L, -1)) {
+            luaL_where(L, 1);
+            lua_insert(L, -2);
+            lua_concat(L, 2);
+        }
+        lua_error(L);
+    }
+
+    return lua_gettop(L);
+}
+
+/***************************************************************************
+ *
+ *  Function: runningProfiler
+ *  ****/
+
+static Profiler * runningProfiler(lua_State * L) {
+    HookState * hs;
+
+    if (profilers_running == 0) {
+        return NULL;
+    }
+
+    lua_pushlightuserdata(L, &hook_state_key);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+    hs = (HookState *) lua_touserdata(L, -1);
+    lua_pop(L, 1);
+
+    return hs == NULL ? NULL : hs->profiler;
+}
+
+/***************************************************************************
+ *
+ *  Function: profilerMark
+ *  ****/
+
+static void profilerMark(lua_State * L) {
+    Profiler * p = runningProfiler(L);
+
+    if (p != NULL) {
+        p->last = monotonicNanos();
+    }
+}
+
+/***************************************************************************
+ *
+ *  Function: profilerSample
+ *  ****/
+
+static void profilerSample(lua_State * L, Profiler * p, jlong weight) {
+    lua_Debug ar;
+    int frames[LUAJAVAPROFILEDEPTH];
+    int depth = 0;
+    int i;
+    unsigned int hash = 2166136261u;
+    unsigned int mask;
+    unsigned int slot;
+    int index;
+    ProfileStack * stack;
+
+    while (depth < LUAJAVAPROFILEDEPTH && lua_getstack(L, depth, &ar)) {
+        lua_getinfo(L, "Sn", &ar);
+        frames[depth] = profilerFrame(p, &ar);
+        if (frames[depth] < 0) {
+            return;
+        }
+        depth++;
+    }
+
+    if (depth == 0) {
+        return;
+    }
+
+    /* outermost frame first, as flame graphs expect */
+    for (i = 0; i < depth / 2; i++) {
+        int tmp = frames[i];
+
+        frames[i] = frames[depth - 1 - i];
+        frames[depth - 1 - i] = tmp;
+    }
+
+    for (i = 0; i < depth; i++) {
+        hash = (hash ^ (unsigned int) frames[i]) * 16777619u;
+    }
+
+    mask = (unsigned int) p->stackBucketCount - 1;
+    slot = hash & mask;
+    while ((index = p->stackBuckets[slot]) != -1) {
+        stack = &p->stacks[index];
+        if (stack->hash == hash && stack->depth == depth
+                && memcmp(stack->frames, frames, depth * sizeof(int)) == 0) {
+            stack->weight += weight;
+            stack->samples++;
+            p->sampled += weight;
+            return;
+        }
+        slot = (slot + 1) & mask;
+    }
+
+    if (p->stackCount == p->stackCapacity) {
+        int capacity = p->stackCapacity == 0 ? LUAJAVAPROFILEBUCKETS
+                : p->stackCapacity * 2;
+        ProfileStack * stacks = (ProfileStack *) realloc(p->stacks,
+                capacity * sizeof(ProfileStack));
+
+        if (stacks == NULL) {
+            return;
+        }
+        p->stacks = stacks;
+        p->stackCapacity = capacity;
+    }
+
+    if (profilerRehash(&p->stackBuckets, &p->stackBucketCount, p->stackCount,
+            (const char *) &p->stacks[0].hash, sizeof(ProfileStack)) != 0) {
+        return;
+    }
+
+    stack = &p->stacks[p->stackCount];
+    stack->frames = (int *) malloc(depth * sizeof(int));
+    if (stack->frames == NULL) {
+        return;
+    }
+    memcpy(stack->frames, frames, depth * sizeof(int));
+    stack->depth = depth;
+    stack->hash = hash;
+    stack->weight = weight;
+    stack->samples = 1;
+
+    mask = (unsigned int) p->stackBucketCount - 1;
+    slot = hash & mask;
+    while (p->stackBuckets[slot] != -1) {
+        slot = (slot + 1) & mask;
+    }
+    p->stackBuckets[slot] = p->stackCount++;
+    p->sampled += weight;
+}
+
+/***************************************************************************
+ *
+ *  Function: profilerBridgeCall
+ *  ****/
+
+static void profilerBridgeCall(lua_State * L, Profiler * p, jlong start,
+        jlong sampled) {
+    jlong now;
+    jlong weight;
+
+    /* the java code may have stopped the profiler */
+    if (runningProfiler(L) != p) {
+        return;
+    }
+
+    now = monotonicNanos();
+    weight = now - start - (p->sampled - sampled);
+    if (weight > 0) {
+        profilerSample(L, p, weight);
+    }
+    p->last = now;
+}
+
+/***************************************************************************
+ *
+ *  Function: profilerFrame
+ *  ****/
+
+static int profilerFrame(Profiler * p, lua_Debug * ar) {
+    const char * name;
+    const char * c;
+    unsigned int hash = 2166136261u;
+    unsigned int mask;
+    unsigned int slot;
+    int index;
+    ProfileFrame * frame;
+
+    if (ar->name != NULL) {
+        name = ar->name;
+    } else if (*ar->what == 'm') {
+        name = "main chunk";
+    } else {
+        name = "?";
+    }
+
+    for (c = name; *c != '\0'; c++) {
+        hash = (hash ^ (unsigned char) *c) * 16777619u;
+    }
+    for (c = ar->short_src; *c != '\0'; c++) {
+        hash = (hash ^ (unsigned char) *c) * 16777619u;
+    }
+    hash = (hash ^ (unsigned int) ar->linedefined) * 16777619u;
+
+    mask = (unsigned int) p->frameBucketCount - 1;
+    slot = hash & mask;
+    while ((index = p->frameBuckets[slot]) != -1) {
+        frame = &p->frames[index];
+        if (frame->hash == hash && frame->line == ar->linedefined
+                && strcmp(frame->name, name) == 0
+                && strcmp(frame->file, ar->short_src) == 0) {
+            return index;
+        }
+        slot = (slot + 1) & mask;
+    }
+
+    if (p->frameCount == p->frameCapacity) {
+        int capacity = p->frameCapacity == 0 ? LUAJAVAPROFILEBUCKETS
+                : p->frameCapacity * 2;
+        ProfileFrame * frames = (ProfileFrame *) realloc(p->frames,
+                capacity * sizeof(ProfileFrame));
+
+        if (frames == NULL) {
+            return -1;
+        }
+        p->frames = frames;
+        p->frameCapacity = capacity;
+    }
+
+    if (profilerRehash(&p->frameBuckets, &p->frameBucketCount, p->frameCount,
+            (const char *) &p->frames[0].hash, sizeof(ProfileFrame)) != 0) {
+        return -1;
+    }
+
+    frame = &p->frames[p->frameCount];
+    frame->name = strdup(name);
+    frame->file = strdup(ar->short_src);
+    if (frame->name == NULL || frame->file == NULL) {
+        free(frame->name);
+        free(frame->file);
+        return -1;
+    }
+    frame->line = ar->linedefined;
+    frame->hash = hash;
+
+    mask = (unsigned int) p->frameBucketCount - 1;
+    slot = hash & mask;
+    while (p->frameBuckets[slot] != -1) {
+        slot = (slot + 1) & mask;
+    }
+    p->frameBuckets[slot] = p->frameCount;
+
+    return p->frameCount++;
+}
+
+/***************************************************************************
+ *
+ *  Function: profilerRehash
+ *  ****/
+
+static int profilerRehash(int ** buckets, int * bucketCount, int count,
+        const char * hashes, size_t stride) {
+    int size = *bucketCount * 2;
+    unsigned int mask = (unsigned int) size - 1;
+    unsigned int slot;
+    int * table;
+    int i;
+
+    /* keeps at least half of the buckets free */
+    if ((count + 1) * 2 <= *bucketCount) {
+        return 0;
+    }
+
+    table = (int *) malloc(size * sizeof(int));
+    if (table == NULL) {
+        return -1;
+    }
+    memset(table, 0xff, size * sizeof(int));
+
+    for (i = 0; i < count; i++) {
+        slot = *(const unsigned int *) (hashes + i * stride) & mask;
+        while (table[slot] != -1) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = i;
+    }
+
+    free(*buckets);
+    *buckets = table;
+    *bucketCount = size;
+
+    return 0;
+}
+
+/***************************************************************************
+ *
+ *  Function: freeProfiler
+ *  ****/
+
+static void freeProfiler(Profiler * p) {
+    int i;
+
+    for (i = 0; i < p->frameCount; i++) {
+        free(p->frames[i].name);
+        free(p->frames[i].file);
+    }
+    for (i = 0; i < p->stackCount; i++) {
+        free(p->stacks[i].frames);
+    }
+
+    free(p->frames);
+    free(p->frameBuckets);
+    free(p->stacks);
+    free(p->stackBuckets);
+    free(p);
+}
+
+/***************************************************************************
+ *
+ *  Function: absIndex
+ *  ****/
+
+static int absIndex(lua_State * L, int idx) {
+    if (idx < 0 && idx > LUA_REGISTRYINDEX) {
+        return lua_gettop(L) + idx + 1;
+    }
+
+    return idx;
+}
+
+/***************************************************************************
+ *
+ *  Function: getStrCache
+ *  ****/
+
+static StrCache * getStrCache(lua_State * L) {
+    StrCache * cache;
+    int i;
+
+    lua_pushlightuserdata(L, &str_cache_key);
+    lua_rawget(L, LUA_REGISTRYINDEX);
+
+    if (lua_isuserdata(L, -1)) {
+        cache = (StrCache *) lua_touserdata(L, -1);
+        lua_pop(L, 1);
+        return cache;
+    }
+
+    lua_pop(L, 1);
+
+    lua_pushlightuserdata(L, &str_cache_key);
+    cache = (StrCache *) lua_newuserdata(L, sizeof(StrCache));
+
+    for (i = 0; i < LUAJAVASTRCACHEBUCKETS; i++) {
+        cache->buckets[i] = -1;
+    }
+    cache->head = -1;
+    cache->tail = -1;
+    cache->size = 0;
+    cache->hits = 0;
+    cache->misses = 0;
+    cache->evictions = 0;
+
+    /* Creates metatable */
+    lua_newtable(L);
+
+    /* pushes the __gc metamethod */
+    lua_pushstring(L, LUAGCMETAMETHODTAG);
+    lua_pushcfunction(L, &strCacheGC);
+    lua_rawset(L, -3);
+
+    lua_setmetatable(L, -2);
+
+    lua_rawset(L, LUA_REGISTRYINDEX);
+
+    return cache;
+}
+
+/***************************************************************************
+ *
+ *  Function: strCacheGC
+ *  ****/
+
+static int strCacheGC(lua_State * L) {
+    StrCache * cache;
+    JNIEnv * javaEnv;
+    int i;
+
+    cache = (StrCache *) lua_touserdata(L, 1);
+
+    /* Gets the JNI Environment */
+    javaEnv = getEnvFromState(L);
+    if (javaEnv == NULL) {
+        return 0;
+    }
+
+    for (i = 0; i < cache->size; i++) {
+        (*javaEnv)->DeleteGlobalRef(javaEnv, cache->entries[i].value);
+    }
+
+    cache->size = 0;
+
+    return 0;
+}
+
+/***************************************************************************
+ *
+ *  Function: luaToJavaString
+ *  ****/
+
+#define strCacheBucket(key) ((int) (((size_t) (key) >> 3) & (LUAJAVASTRCACHEBUCKETS - 1)))
+
+static void strCacheUnlink(StrCache * cache, int i) {
+    StrCacheEntry * e = &cache->entries[i];
+
+    if (e->prev != -1) {
+        cache->entries[e->prev].next = e->next;
+    } else {
+        cache->head = e->next;
+    }
+
+    if (e->next != -1) {
+        cache->entries[e->next].prev = e->prev;
+    } else {
+        cache->tail = e->prev;
+    }
+}
+
+static void strCachePushFront(StrCache * cache, int i) {
+    StrCacheEntry * e = &cache->entries[i];
+
+    e->prev = -1;
+    e->next = cache->head;
+
+    if (cache->head != -1) {
+        cache->entries[cache->head].prev = i;
+    }
+    cache->head = i;
+
+    if (cache->tail == -1) {
+        cache->tail = i;
+    }
+}
+
+static void strCacheEvict(JNIEnv * env, lua_State * L, StrCache * cache,
+        int i) {
+    StrCacheEntry * e = &cache->entries[i];
+    int * link = &cache->buckets[strCacheBucket(e->key)];
+
+    while (*link != i) {
+        link = &cache->entries[*link].chain;
+    }
+    *link = e->chain;
+
+    strCacheUnlink(cache, i);
+
+    (*env)->DeleteGlobalRef(env, e->value);
+    luaL_unref(L, LUA_REGISTRYINDEX, e->ref);
+
+    cache->evictions++;
+}
+
+static jstring luaToJavaString(JNIEnv * env, lua_State * L, int idx) {
+    StrCache * cache;
+    StrCacheEntry * e;
+    const char * str;
+    size_t len;
+    jstring jstr;
+    int bucket, i;
+
+    idx = absIndex(L, idx);
+
+    str = lua_tolstring(L, idx, &len);
+    if (str == NULL) {
+        return NULL;
+    }
+
+    if (len > LUAJAVASTRCACHEMAXLEN) {
+        return newJavaString(env, str, len);
+    }
+
+    cache = getStrCache(L);
+    bucket = strCacheBucket(str);
+
+    for (i = cache->buckets[bucket]; i != -1; i = cache->entries[i].chain) {
+        if (cache->entries[i].key == str) {
+            cache->hits++;
+
+            if (cache->head != i) {
+                strCacheUnlink(cache, i);
+                strCachePushFront(cache, i);
+            }
+
+            return (*env)->NewLocalRef(env, cache->entries[i].value);
+        }
+    }
+
+    cache->misses++;
+
+    jstr = newJavaString(env, str, len);
+    if (jstr == NULL) {
+        return NULL;
+    }
+
+    if (cache->size < LUAJAVASTRCACHESIZE) {
+        i = cache->size++;
+    } else {
+        i = cache->tail;
+        strCacheEvict(env, L, cache, i);
+    }
+
+    e = &cache->entries[i];
+    e->key = str;
+    e->value = (*env)->NewGlobalRef(env, jstr);
+
+    /* pins the Lua string so that its address stays its identity */
+    lua_pushvalue(L, idx);
+    e->ref = luaL_ref(L, LUA_REGISTRYINDEX);
+
+    e->chain = cache->buckets[bucket];
+    cache->buckets[bucket] = i;
+
+    strCachePushFront(cache, i);
+
+    return jstr;
+}
+
+/***************************************************************************
+ *
+ *  Function: asciiPrefix
+ *  ****/
+
+static size_t asciiPrefix(const unsigned char * s, size_t len) {
+    const size_t ones = (size_t) -1 / 0xFF;
+    const size_t highs = ones * 0x80;
+    size_t i = 0;
+    size_t w;
+
+    /* a word at a time while no byte is zero or has its high bit set */
+    for (; i + sizeof(size_t) <= len; i += sizeof(size_t)) {
+        memcpy(&w, s + i, sizeof(size_t));
+        if (((w | ((w - ones) & ~w)) & highs) != 0) {
+            break;
+        }
+    }
+
+    for (; i < len; i++) {
+        if (s[i] == 0 || s[i] >= 0x80) {
+            break;
+        }
+    }
 
-/********************* Implementations ***************************/
+    return i;
+}
 
 /***************************************************************************
  *
- *  Function: javaFindClass
+ *  Function: newJavaString
  *  ****/
 
-static int javaFindClass(lua_State * L) {
-    char * className = NULL;
-    JNIEnv * javaEnv = NULL;
-    lua_Number stateIndex;
-    jstring str = NULL;
-    jthrowable exp = NULL;
-    jmethodID method;
-    jint ret;
+static jstring newJavaString(JNIEnv * env, const char * str, size_t len) {
+    const unsigned char * s = (const unsigned char *) str;
+    jchar stackBuf[LUAJAVASTRBUFSIZE];
+    jchar * buf;
+    jstring ret;
+    size_t i, n;
+    unsigned int c, cp, min;
+    int need, k;
 
-    /* Gets the luaState index */
-    lua_pushstring(L, LUAJAVASTATEINDEX);
-    lua_rawget(L, LUA_REGISTRYINDEX);
+    i = asciiPrefix(s, len);
 
-    if (!lua_isnumber(L, -1)) {
-        lua_pushstring(L, "Impossible to identify luaState id.");
-        lua_error(L);
+    /* plain ASCII is the same in modified UTF-8 */
+    if (i == len) {
+        return (*env)->NewStringUTF(env, str);
     }
 
-    stateIndex = lua_tonumber(L, -1);
-    lua_pop( L, 1);
-
-    /* Gets the field Name */
-    if (!lua_isstring(L, 2)) {
-        lua_pushstring(L, "Not a valid field call.");
-        lua_error(L);
+    /* a byte never decodes to more than one UTF-16 unit */
+    if (len <= LUAJAVASTRBUFSIZE) {
+        buf = stackBuf;
+    } else {
+        buf = (jchar *) malloc(len * sizeof(jchar));
+        if (buf == NULL) {
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                    "Could not allocate the string buffer");
+            return NULL;
+        }
     }
 
-    className = lua_tostring( L , 2 );
-
-    /* Gets the JNI Environment */
-    javaEnv = getEnvFromState(L);
-    if (javaEnv == NULL) {
-        lua_pushstring(L, "Invalid JNI Environment.");
-        lua_error(L);
+    for (n = 0; n < i; n++) {
+        buf[n] = s[n];
     }
 
-    method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
-            "javaFindClass", "(ILjava/lang/String;)I");
-
-    str = (*javaEnv)->NewStringUTF(javaEnv, className);
+    while (i < len) {
+        c = s[i];
 
-    ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
-            (jint) stateIndex, str);
+        if (c < 0x80) {
+            buf[n++] = (jchar) c;
+            i++;
+            continue;
+        }
 
-    exp = (*javaEnv)->ExceptionOccurred(javaEnv);
+        if (c >= 0xC2 && c <= 0xDF) {
+            need = 1;
+            cp = c & 0x1F;
+            min = 0x80;
+        } else if (c >= 0xE0 && c <= 0xEF) {
+            need = 2;
+            cp = c & 0x0F;
+            min = 0x800;
+        } else if (c >= 0xF0 && c <= 0xF4) {
+            need = 3;
+            cp = c & 0x07;
+            min = 0x10000;
+        } else {
+            buf[n++] = 0xFFFD;
+            i++;
+            continue;
+        }
 
-    if (exp != NULL) {
-        //TODO
-    }
+        for (k = 1; k <= need; k++) {
+            if (i + k >= len || (s[i + k] & 0xC0) != 0x80) {
+                break;
+            }
+            cp = (cp << 6) | (s[i + k] & 0x3F);
+        }
 
-    if (ret == 1) {
-        /* Get metatable */
-        lua_getmetatable(L, -1);
+        if (k <= need || cp < min || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) {
+            buf[n++] = 0xFFFD;
+            i++;
+            continue;
+        }
 
-        /* pushes the __call metamethod */
-        lua_pushstring(L, LUACALLMETAMETHODTAG);
-        lua_pushcfunction( L, &javaNew);
-        lua_rawset(L, -3);
+        i += need + 1;
 
-        lua_setmetatable(L, -2);
+        if (cp >= 0x10000) {
+            cp -= 0x10000;
+            buf[n++] = (jchar) (0xD800 + (cp >> 10));
+            buf[n++] = (jchar) (0xDC00 + (cp & 0x3FF));
+        } else {
+            buf[n++] = (jchar) cp;
+        }
+    }
 
-        lua_setglobal(L, className);
+    ret = (*env)->NewString(env, buf, (jsize) n);
 
-        lua_getglobal(L, className);
+    if (buf != stackBuf) {
+        free(buf);
     }
 
-    (*javaEnv)->DeleteLocalRef(javaEnv, str);
-
-    return 1;
+    return ret;
 }
 
 /***************************************************************************
  *
- *  Function: javaImport
+ *  Function: pushJavaString
  *  ****/
 
-static int javaImport(lua_State * L) {
-    char * packageName = NULL;
-    JNIEnv * javaEnv = NULL;
-    lua_Number stateIndex;
-    jstring str = NULL;
-    jthrowable exp = NULL;
-    jmethodID method;
-    jint ret;
+static int pushJavaString(JNIEnv * env, lua_State * L, jstring str) {
+    char stackBuf[LUAJAVASTRBUFSIZE * 4];
+    const unsigned char * utf;
+    char * buf;
+    size_t len, i, n;
+    unsigned int hi, lo, cp;
 
-    if (lua_gettop(L) != 1) {
-        lua_pushstring(L, "Error. Function import expects 1 arguments.");
-        lua_error(L);
+    utf = (const unsigned char *) (*env)->GetStringUTFChars(env, str, NULL);
+    if (utf == NULL) {
+        return 0;
     }
-    /* Gets the luaState index */
-    lua_pushstring(L, LUAJAVASTATEINDEX);
-    lua_rawget(L, LUA_REGISTRYINDEX);
 
-    if (!lua_isnumber(L, -1)) {
-        lua_pushstring(L, "Impossible to identify luaState id.");
-        lua_error(L);
+    len = strlen((const char *) utf);
+
+    /* modified UTF-8 only differs in how it writes zeros (C0 80) and
+     * supplementary characters (two encoded surrogates, each ED xx xx) */
+    for (i = 0; ; i++) {
+        i += asciiPrefix(utf + i, len - i);
+        if (i == len || utf[i] == 0xC0 || utf[i] == 0xED) {
+            break;
+        }
     }
 
-    stateIndex = lua_tonumber(L, -1);
-    lua_pop(L, 1);
+    if (i == len) {
+        lua_pushlstring(L, (const char *) utf, len);
+        (*env)->ReleaseStringUTFChars(env, str, (const char *) utf);
+        return 1;
+    }
 
-    /* Gets the JNI Environment */
-    javaEnv = getEnvFromState(L);
-    if (javaEnv == NULL) {
-        lua_pushstring(L, "Invalid JNI Environment.");
-        lua_error(L);
+    /* the standard encoding is never longer */
+    if (len <= sizeof(stackBuf)) {
+        buf = stackBuf;
+    } else {
+        buf = (char *) malloc(len);
+        if (buf == NULL) {
+            (*env)->ReleaseStringUTFChars(env, str, (const char *) utf);
+            (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/OutOfMemoryError"),
+                    "Could not allocate the string buffer");
+            return 0;
+        }
     }
 
-    method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
-            "javaImport", "(ILjava/lang/String;)I");
+    memcpy(buf, utf, i);
+    n = i;
+
+    while (i < len) {
+        if (utf[i] == 0xC0 && i + 1 < len && utf[i + 1] == 0x80) {
+            buf[n++] = 0;
+            i += 2;
+        } else if (utf[i] == 0xED && i + 2 < len && utf[i + 1] >= 0xA0) {
+            hi = 0xD000 | ((utf[i + 1] & 0x3F) << 6) | (utf[i + 2] & 0x3F);
+
+            if (hi <= 0xDBFF && i + 5 < len && utf[i + 3] == 0xED
+                    && utf[i + 4] >= 0xB0) {
+                lo = 0xD000 | ((utf[i + 4] & 0x3F) << 6) | (utf[i + 5] & 0x3F);
+                cp = 0x10000 + ((hi - 0xD800) << 10) + (lo - 0xDC00);
+
+                buf[n++] = (char) (0xF0 | (cp >> 18));
+                buf[n++] = (char) (0x80 | ((cp >> 12) & 0x3F));
+                buf[n++] = (char) (0x80 | ((cp >> 6) & 0x3F));
+                buf[n++] = (char) (0x80 | (cp & 0x3F));
+                i += 6;
+            } else {
+                /* unpaired surrogates become U+FFFD */
+                buf[n++] = (char) 0xEF;
+                buf[n++] = (char) 0xBF;
+                buf[n++] = (char) 0xBD;
+                i += 3;
+            }
+        } else {
+            buf[n++] = (char) utf[i++];
+        }
+    }
 
-    packageName = lua_tostring(L , -1);
+    (*env)->ReleaseStringUTFChars(env, str, (const char *) utf);
 
-    str = (*javaEnv)->NewStringUTF(javaEnv, packageName);
+    lua_pushlstring(L, buf, n);
 
-    ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
-            (jint) stateIndex, str);
+    if (buf != stackBuf) {
+        free(buf);
+    }
 
-    exp = (*javaEnv)->ExceptionOccurred(javaEnv);
+    return 1;
+}
 
-    /* Handles exception */
-    if (exp != NULL) {
-        jobject jstr;
-        const char * cStr;
+/***************************************************************************
+ *
+ *  Function: luaToJavaObject
+ *  ****/
 
-        (*javaEnv)->ExceptionClear(javaEnv);
-        jstr = (*javaEnv)->CallObjectMethod(javaEnv, exp, get_message_method);
+static jobject luaToJavaObject(JNIEnv * env, jobject jstate, lua_State * L, int idx) {
+    jobject * obj;
 
-        (*javaEnv)->DeleteLocalRef(javaEnv, str);
+    idx = absIndex(L, idx);
 
-        if (jstr == NULL) {
-            jmethodID methodId;
+    switch (lua_type(L, idx)) {
+    case LUA_TBOOLEAN:
+        return (*env)->CallStaticObjectMethod(env, boolean_class, boolean_value_of_method,
+                (jboolean) lua_toboolean(L, idx));
 
-            methodId = (*javaEnv)->GetMethodID(javaEnv, throwable_class,
-                    "toString", "()Ljava/lang/String;");
-            jstr = (*javaEnv)->CallObjectMethod(javaEnv, exp, methodId);
+    case LUA_TNUMBER:
+        return (*env)->CallStaticObjectMethod(env, double_class, double_value_of_method,
+                (jdouble) lua_tonumber(L, idx));
+
+    case LUA_TSTRING:
+        return luaToJavaString(env, L, idx);
+
+    case LUA_TUSERDATA:
+        if (isJavaObject(L, idx)) {
+            obj = (jobject *) lua_touserdata(L, idx);
+            return (*env)->NewLocalRef(env, *obj);
         }
+        /* falls through */
 
-        cStr = (*javaEnv)->GetStringUTFChars(javaEnv, jstr, NULL);
+    case LUA_TLIGHTUSERDATA:
+    case LUA_TTABLE:
+    case LUA_TFUNCTION:
+        return (*env)->CallObjectMethod(env, jstate, get_lua_object_method, (jint) idx);
 
-        lua_pushstring(L, cStr);
+    default:
+        return NULL;
+    }
+}
 
-        (*javaEnv)->ReleaseStringUTFChars(javaEnv, jstr, cStr);
+/***************************************************************************
+ *
+ *  Function: storeJavaObject
+ *  ****/
 
-        lua_error(L);
+static int storeJavaObject(JNIEnv * env, jobject jstate, lua_State * L, int idx,
+        jobjectArray array, jsize i) {
+    jobject obj = luaToJavaObject(env, jstate, L, idx);
+
+    if ((*env)->ExceptionCheck(env)) {
+        return 0;
     }
 
-    (*javaEnv)->DeleteLocalRef(javaEnv, str);
+    (*env)->SetObjectArrayElement(env, array, i, obj);
 
-    return ret;
+    if (obj != NULL) {
+        (*env)->DeleteLocalRef(env, obj);
+    }
+
+    return 1;
 }
 
 /***************************************************************************
  *
- *  Function: modifyGlobalMT
+ *  Function: pushPath
  *  ****/
 
-static int modifyGlobalMT(lua_State * L) {
-    lua_getglobal(L, "_G");
+static void pushPath(JNIEnv * env, lua_State * L, jintArray keys, jboolean raw) {
+    jint stackKeys[LUAJAVAPATHMAXDEPTH];
+    jint * cKeys = stackKeys;
+    jsize n, i;
 
-    /* Creates metatable */
-    lua_newtable(L);
+    n = (*env)->GetArrayLength(env, keys);
+    if (n > LUAJAVAPATHMAXDEPTH) {
+        cKeys = (*env)->GetIntArrayElements(env, keys, NULL);
+    } else {
+        (*env)->GetIntArrayRegion(env, keys, 0, n, cKeys);
+    }
 
-    /* pushes the __index metamethod */
-    lua_pushstring(L, LUAINDEXMETAMETHODTAG);
-    lua_pushcfunction( L, &javaFindClass);
-    lua_rawset(L, -3);
+    lua_pushvalue(L, LUA_GLOBALSINDEX);
+
+    for (i = 0; i < n; i++) {
+        if (lua_istable(L, -1)) {
+            if (cKeys[i] > 0) {
+                lua_rawgeti(L, LUA_REGISTRYINDEX, cKeys[i]);
+                lua_rawget(L, -2);
+            } else {
+                lua_rawgeti(L, -1, -cKeys[i]);
+            }
+
+            /* a field found raw is what lua_gettable would return */
+            if (raw || !lua_isnil(L, -1) || !lua_getmetatable(L, -2)) {
+                lua_remove(L, -2);
+                continue;
+            }
+            lua_pop(L, 2);
+        } else if (raw || lua_isnil(L, -1)) {
+            lua_pop(L, 1);
+            lua_pushnil(L);
+            break;
+        }
 
-    if (lua_setmetatable(L, -2) == 0) {
-        LOGI("Failed to modify global _index meta function.");
-        lua_pop(L, 1);
-        return -1;
-    }
+        /* the rest of the path goes through metamethods, which may raise
+           errors */
+        lua_pushlightuserdata(L, &path_walk_key);
+        lua_rawget(L, LUA_REGISTRYINDEX);
+        if (!lua_isfunction(L, -1)) {
+            lua_pop(L, 1);
+            lua_pushcfunction(L, pathWalk);
+            lua_pushlightuserdata(L, &path_walk_key);
+            lua_pushvalue(L, -2);
+            lua_rawset(L, LUA_REGISTRYINDEX);
+        }
+        lua_insert(L, -2);
+        lua_pushlightuserdata(L, cKeys + i);
+        lua_pushinteger(L, (lua_Integer) (n - i));
 
-    lua_pop(L, 1);
+        if (lua_pcall(L, 3, 1, 0) != 0) {
+            lua_pop(L, 1);
+            lua_pushnil(L);
+        }
+        break;
+    }
 
-    return 0;
+    if (cKeys != stackKeys) {
+        (*env)->ReleaseIntArrayElements(env, keys, cKeys, JNI_ABORT);
+    }
 }
 
 /***************************************************************************
  *
- *  Function: modifyLuaEnv
+ *  Function: pathWalk
  *  ****/
 
-static void modifyLuaEnv(lua_State * L) {
-    lua_pushcfunction(L, &javaImport);
-    lua_setglobal(L, "import");
+static int pathWalk(lua_State * L) {
+    const jint * keys = (const jint *) lua_touserdata(L, 2);
+    int n = (int) lua_tointeger(L, 3);
+    int i;
 
-    modifyGlobalMT(L);
+    lua_settop(L, 1);
+
+    for (i = 0; i < n && !lua_isnil(L, -1); i++) {
+        if (keys[i] > 0) {
+            lua_rawgeti(L, LUA_REGISTRYINDEX, keys[i]);
+        } else {
+            lua_pushinteger(L, (lua_Integer) -keys[i]);
+        }
+
+        lua_gettable(L, -2);
+        lua_remove(L, -2);
+    }
+
+    return 1;
+}
+
+/***************************************************************************
+ *
+ *  Function: dumpWriter
+ *  ****/
+
+static int dumpWriter(lua_State * L, const void * p, size_t sz, void * ud) {
+    (void) L;
+    luaL_addlstring((luaL_Buffer *) ud, (const char *) p, sz);
+    return 0;
 }
 
 /***************************************************************************
@@ -671,7 +2717,7 @@ int objectIndex(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "checkField", "(ILjava/lang/Object;Ljava/lang/String;)I");
 
-    str = (*javaEnv)->NewStringUTF(javaEnv, key);
+    str = luaToJavaString(javaEnv, L, 2);
 
     checkField = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
             method, (jint) stateIndex, *obj, str);
@@ -739,10 +2785,12 @@ int objectIndexReturn(lua_State * L) {
     jobject * pObject;
     jmethodID method;
     jthrowable exp;
-    const char * methodName;
     jint ret;
     jstring str;
     JNIEnv * javaEnv;
+    Profiler * profiler;
+    jlong start = 0;
+    jlong sampled = 0;
 
     /* Gets the luaState index */
     lua_pushstring(L, LUAJAVASTATEINDEX);
@@ -776,6 +2824,13 @@ int objectIndexReturn(lua_State * L) {
     }
     lua_pop( L, 1);
 
+    /* Gets the JNI Environment */
+    javaEnv = getEnvFromState(L);
+    if (javaEnv == NULL) {
+        lua_pushstring(L, "Invalid JNI Environment.");
+        lua_error(L);
+    }
+
     /* Gets the method Name */
     lua_pushstring(L, LUAJAVAOBJFUNCCALLED);
     lua_rawget(L, -2);
@@ -783,29 +2838,30 @@ int objectIndexReturn(lua_State * L) {
         lua_pushstring(L, "Not a OO function call.");
         lua_error(L);
     }
-    methodName = lua_tostring( L , -1 );
+    str = luaToJavaString(javaEnv, L, -1);
 
     lua_pop( L, 2);
 
     /* Gets the object reference */
     pObject = (jobject*) lua_touserdata(L, 1);
 
-    /* Gets the JNI Environment */
-    javaEnv = getEnvFromState(L);
-    if (javaEnv == NULL) {
-        lua_pushstring(L, "Invalid JNI Environment.");
-        lua_error(L);
-    }
-
     /* Gets method */
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "objectIndex", "(ILjava/lang/Object;Ljava/lang/String;)I");
 
-    str = (*javaEnv)->NewStringUTF(javaEnv, methodName);
+    profiler = runningProfiler(L);
+    if (profiler != NULL) {
+        start = monotonicNanos();
+        sampled = profiler->sampled;
+    }
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
             (jint) stateIndex, *pObject, str);
 
+    if (profiler != NULL) {
+        profilerBridgeCall(L, profiler, start, sampled);
+    }
+
     exp = (*javaEnv)->ExceptionOccurred(javaEnv);
 
     /* Handles exception */
@@ -895,7 +2951,7 @@ int classIndex(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "classIndex", "(ILjava/lang/Class;Ljava/lang/String;)I");
 
-    str = (*javaEnv)->NewStringUTF(javaEnv, fieldName);
+    str = luaToJavaString(javaEnv, L, 2);
 
     /* Return 1 for field, 2 for method or 0 for error */
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
@@ -1020,7 +3076,7 @@ int javaBindClass(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, java_lang_class, "forName",
             "(Ljava/lang/String;)Ljava/lang/Class;");
 
-    javaClassName = (*javaEnv)->NewStringUTF(javaEnv, className);
+    javaClassName = luaToJavaString(javaEnv, L, 1);
 
     classInstance = (*javaEnv)->CallStaticObjectMethod(javaEnv, java_lang_class,
             method, javaClassName);
@@ -1068,7 +3124,6 @@ int javaBindClass(lua_State * L) {
 int createProxy(lua_State * L) {
     jint ret;
     lua_Number stateIndex;
-    const char * impl;
     jmethodID method;
     jthrowable exp;
     jstring str;
@@ -1106,9 +3161,7 @@ int createProxy(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "createProxyObject", "(ILjava/lang/String;)I");
 
-    impl = lua_tostring( L , 1 );
-
-    str = (*javaEnv)->NewStringUTF(javaEnv, impl);
+    str = luaToJavaString(javaEnv, L, 1);
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
             (jint) stateIndex, str);
@@ -1255,7 +3308,6 @@ int javaNew(lua_State * L) {
 int javaNewInstance(lua_State * L) {
     jint ret;
     jmethodID method;
-    const char * className;
     jstring javaClassName;
     jthrowable exp;
     lua_Number stateIndex;
@@ -1280,8 +3332,6 @@ int javaNewInstance(lua_State * L) {
         lua_error(L);
     }
 
-    className = lua_tostring( L , 1 );
-
     /* Gets the JNI Environment */
     javaEnv = getEnvFromState(L);
     if (javaEnv == NULL) {
@@ -1292,7 +3342,7 @@ int javaNewInstance(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "javaNewInstance", "(ILjava/lang/String;)I");
 
-    javaClassName = (*javaEnv)->NewStringUTF(javaEnv, className);
+    javaClassName = luaToJavaString(javaEnv, L, 1);
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
             (jint) stateIndex, javaClassName);
@@ -1339,7 +3389,6 @@ int javaNewInstance(lua_State * L) {
 int javaLoadLib(lua_State * L) {
     jint ret;
     int top;
-    const char * className, *methodName;
     lua_Number stateIndex;
     jmethodID method;
     jthrowable exp;
@@ -1370,9 +3419,6 @@ int javaLoadLib(lua_State * L) {
         lua_error(L);
     }
 
-    className = lua_tostring( L , 1 );
-    methodName = lua_tostring( L , 2 );
-
     /* Gets the JNI Environment */
     javaEnv = getEnvFromState(L);
     if (javaEnv == NULL) {
@@ -1383,8 +3429,8 @@ int javaLoadLib(lua_State * L) {
     method = (*javaEnv)->GetStaticMethodID(javaEnv, luajava_api_class,
             "javaLoadLib", "(ILjava/lang/String;Ljava/lang/String;)I");
 
-    javaClassName = (*javaEnv)->NewStringUTF(javaEnv, className);
-    javaMethodName = (*javaEnv)->NewStringUTF(javaEnv, methodName);
+    javaClassName = luaToJavaString(javaEnv, L, 1);
+    javaMethodName = luaToJavaString(javaEnv, L, 2);
 
     ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class, method,
             (jint) stateIndex, javaClassName, javaMethodName);
@@ -1569,11 +3615,17 @@ int luaJavaFunctionCall(lua_State * L) {
     jthrowable exp;
     int ret;
     JNIEnv * javaEnv;
+    Profiler * profiler;
+    jlong start = 0;
+    jlong sampled = 0;
 
-    if (!isJavaObject(L, 1)) {
+    /* only userdata pushed by _pushJavaFunction have this metatable, which
+       is the upvalue of the __call closure, and they all hold a JavaFunction */
+    if (!lua_getmetatable(L, 1) || !lua_rawequal(L, -1, lua_upvalueindex(1))) {
         lua_pushstring(L, "Not a java Function.");
         lua_error(L);
     }
+    lua_pop(L, 1);
 
     obj = lua_touserdata(L, 1);
 
@@ -1584,14 +3636,22 @@ int luaJavaFunctionCall(lua_State * L) {
         lua_error(L);
     }
 
-    /* the Object must be an instance of the JavaFunction class */
-    if ((*javaEnv)->IsInstanceOf(javaEnv, *obj, java_function_class)
-            == JNI_FALSE) {
-        fprintf(stderr, "Called Java object is not a JavaFunction\n");
-        return 0;
+    profiler = runningProfiler(L);
+    if (profiler != NULL) {
+        start = monotonicNanos();
+        sampled = profiler->sampled;
     }
 
-    ret = (*javaEnv)->CallIntMethod(javaEnv, *obj, java_function_method);
+    if (instrumented_calls) {
+        ret = (*javaEnv)->CallStaticIntMethod(javaEnv, luajava_api_class,
+                java_function_call_method, *obj);
+    } else {
+        ret = (*javaEnv)->CallIntMethod(javaEnv, *obj, java_function_method);
+    }
+
+    if (profiler != NULL) {
+        profilerBridgeCall(L, profiler, start, sampled);
+    }
 
     exp = (*javaEnv)->ExceptionOccurred(javaEnv);
 
@@ -1619,6 +3679,11 @@ int luaJavaFunctionCall(lua_State * L) {
 
         lua_error(L);
     }
+
+    /* the function pushed its error value itself */
+    if (ret == LUAJAVAFUNCTIONERROR) {
+        lua_error(L);
+    }
     return ret;
 }
 
@@ -1775,6 +3840,15 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
         }
     }
 
+    if ( java_function_call_method == NULL ) {
+        java_function_call_method = ( *env )->GetStaticMethodID( env , luajava_api_class ,
+                "javaFunctionCall" , "(Lorg/keplerproject/luajava/JavaFunction;)I" );
+        if ( !java_function_call_method ) {
+            fprintf( stderr , "Could not find <javaFunctionCall> method in LuaJavaAPI\n" );
+            exit( 1 );
+        }
+    }
+
     if ( throwable_class == NULL ) {
         tempClass = ( *env )->FindClass( env , "java/lang/Throwable" );
 
@@ -1801,6 +3875,15 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
         }
     }
 
+    if ( object_class == NULL ) {
+        tempClass = ( *env )->FindClass( env , "java/lang/Object" );
+
+        if ( tempClass == NULL || ( object_class = ( *env )->NewGlobalRef( env , tempClass ) ) == NULL ) {
+            fprintf( stderr , "Error. Couldn't bind java class java.lang.Object\n" );
+            exit( 1 );
+        }
+    }
+
     if ( java_lang_class == NULL ) {
         tempClass = ( *env )->FindClass( env , "java/lang/Class" );
 
@@ -1817,6 +3900,47 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState_luajava_1open
         }
     }
 
+    if ( boolean_class == NULL ) {
+        tempClass = ( *env )->FindClass( env , "java/lang/Boolean" );
+
+        if ( tempClass == NULL || ( boolean_class = ( *env )->NewGlobalRef( env , tempClass ) ) == NULL ) {
+            fprintf( stderr , "Error. Couldn't bind java class java.lang.Boolean\n" );
+            exit( 1 );
+        }
+
+        boolean_value_of_method = ( *env )->GetStaticMethodID( env , boolean_class , "valueOf" ,
+                "(Z)Ljava/lang/Boolean;" );
+    }
+
+    if ( double_class == NULL ) {
+        tempClass = ( *env )->FindClass( env , "java/lang/Double" );
+
+        if ( tempClass == NULL || ( double_class = ( *env )->NewGlobalRef( env , tempClass ) ) == NULL ) {
+            fprintf( stderr , "Error. Couldn't bind java class java.lang.Double\n" );
+            exit( 1 );
+        }
+
+        double_value_of_method = ( *env )->GetStaticMethodID( env , double_class , "valueOf" ,
+                "(D)Ljava/lang/Double;" );
+    }
+
+    if ( get_lua_object_method == NULL ) {
+        tempClass = ( *env )->FindClass( env , "org/keplerproject/luajava/LuaState" );
+
+        if ( tempClass == NULL ) {
+            fprintf( stderr , "Could not find LuaState class\n" );
+            exit( 1 );
+        }
+
+        get_lua_object_method = ( *env )->GetMethodID( env , tempClass , "getLuaObject" ,
+                "(I)Lorg/keplerproject/luajava/LuaObject;" );
+
+        if ( get_lua_object_method == NULL ) {
+            fprintf( stderr , "Could not find <getLuaObject> method in LuaState\n" );
+            exit( 1 );
+        }
+    }
+
     pushJNIEnv(env , L);
 
 }
@@ -1900,22 +4024,23 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushJavaFunctio
     userData = ( jobject * ) lua_newuserdata( L , sizeof( jobject ) );
     *userData = globalRef;
 
-   /* Creates metatable */
-    lua_newtable( L);
-
-    /* pushes the __index metamethod */
-    lua_pushstring( L , LUACALLMETAMETHODTAG );
-    lua_pushcfunction( L, &luaJavaFunctionCall);
-    lua_rawset( L , -3 );
-
-    /* pusher the __gc metamethod */
-    lua_pushstring( L , LUAGCMETAMETHODTAG );
-    lua_pushcfunction( L, &gc);
-    lua_rawset( L , -3 );
-
-    lua_pushstring( L , LUAJAVAOBJECTIND );
-    lua_pushboolean( L , 1 );
-    lua_rawset( L , -3 );
+   /* Creates the shared metatable the first time */
+    if ( luaL_newmetatable( L , LUAJAVAFUNCTIONMETA ) ) {
+        /* pushes the __call metamethod, with the metatable as upvalue */
+        lua_pushstring( L , LUACALLMETAMETHODTAG );
+        lua_pushvalue( L , -2 );
+        lua_pushcclosure( L , &luaJavaFunctionCall , 1 );
+        lua_rawset( L , -3 );
+
+        /* pusher the __gc metamethod */
+        lua_pushstring( L , LUAGCMETAMETHODTAG );
+        lua_pushcfunction( L, &gc);
+        lua_rawset( L , -3 );
+
+        lua_pushstring( L , LUAJAVAOBJECTIND );
+        lua_pushboolean( L , 1 );
+        lua_rawset( L , -3 );
+    }
 
     if ( lua_setmetatable( L , -2 ) == 0 ) {
         ( *env )->ThrowNew( env , ( *env )->FindClass( env , "org/keplerproject/luajava/LuaException" ) ,
@@ -2110,6 +4235,204 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openLibs
     modifyLuaEnv(L);
 }
 
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1armWatchdog
+  (JNIEnv * env , jobject jobj , jobject cptr , jlong budget , jlong timeout) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    HookState * hs = getHookState( L );
+
+    hs->watchdog = 1;
+    hs->budget = budget;
+    hs->executed = 0;
+    hs->deadline = timeout > 0 ? monotonicNanos( ) + timeout : 0;
+
+    updateHook( L , hs );
+}
+
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1disarmWatchdog
+  (JNIEnv * env , jobject jobj , jobject cptr) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    HookState * hs = getHookState( L );
+
+    hs->watchdog = 0;
+    updateHook( L , hs );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setCallInstrumentation
+  (JNIEnv * env , jclass clazz , jboolean enabled) {
+    instrumented_calls = enabled == JNI_TRUE;
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1startProfiler
+  (JNIEnv * env , jobject jobj , jobject cptr , jint interval) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    HookState * hs = getHookState( L );
+    Profiler * p;
+
+    if ( hs->profiler != NULL ) {
+        return;
+    }
+
+    p = ( Profiler * ) calloc( 1 , sizeof( Profiler ) );
+    if ( p == NULL ) {
+        LOGE( "Out of memory starting the profiler." );
+        return;
+    }
+
+    p->frameBuckets = ( int * ) malloc( LUAJAVAPROFILEBUCKETS * sizeof( int ) );
+    p->stackBuckets = ( int * ) malloc( LUAJAVAPROFILEBUCKETS * sizeof( int ) );
+    if ( p->frameBuckets == NULL || p->stackBuckets == NULL ) {
+        freeProfiler( p );
+        LOGE( "Out of memory starting the profiler." );
+        return;
+    }
+    memset( p->frameBuckets , 0xff , LUAJAVAPROFILEBUCKETS * sizeof( int ) );
+    memset( p->stackBuckets , 0xff , LUAJAVAPROFILEBUCKETS * sizeof( int ) );
+    p->frameBucketCount = LUAJAVAPROFILEBUCKETS;
+    p->stackBucketCount = LUAJAVAPROFILEBUCKETS;
+
+    p->interval = interval > 0 ? interval : 1;
+    p->last = monotonicNanos( );
+
+    hs->profiler = p;
+    __sync_add_and_fetch( &profilers_running , 1 );
+    updateHook( L , hs );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1stopProfiler
+  (JNIEnv * env , jobject jobj , jobject cptr , jobject profile) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    HookState * hs = getHookState( L );
+    Profiler * p = hs->profiler;
+    jclass profileClass;
+    jmethodID addFrame;
+    jmethodID addStack;
+    int i;
+
+    if ( p == NULL ) {
+        return;
+    }
+
+    hs->profiler = NULL;
+    __sync_sub_and_fetch( &profilers_running , 1 );
+    updateHook( L , hs );
+
+    profileClass = ( *env )->GetObjectClass( env , profile );
+    addFrame = ( *env )->GetMethodID( env , profileClass , "addFrame" ,
+            "(Ljava/lang/String;Ljava/lang/String;I)V" );
+    addStack = ( *env )->GetMethodID( env , profileClass , "addStack" ,
+            "([IJI)V" );
+
+    for ( i = 0 ; i < p->frameCount ; i++ ) {
+        ProfileFrame * frame = &p->frames[i];
+        jstring name = newJavaString( env , frame->name , strlen( frame->name ) );
+        jstring file = newJavaString( env , frame->file , strlen( frame->file ) );
+
+        ( *env )->CallVoidMethod( env , profile , addFrame , name , file ,
+                ( jint ) frame->line );
+        ( *env )->DeleteLocalRef( env , name );
+        ( *env )->DeleteLocalRef( env , file );
+    }
+
+    for ( i = 0 ; i < p->stackCount ; i++ ) {
+        ProfileStack * stack = &p->stacks[i];
+        jintArray frames = ( *env )->NewIntArray( env , stack->depth );
+
+        if ( frames == NULL ) {
+            break;
+        }
+        ( *env )->SetIntArrayRegion( env , frames , 0 , stack->depth ,
+                ( const jint * ) stack->frames );
+        ( *env )->CallVoidMethod( env , profile , addStack , frames ,
+                stack->weight , stack->samples );
+        ( *env )->DeleteLocalRef( env , frames );
+    }
+
+    ( *env )->DeleteLocalRef( env , profileClass );
+    freeProfiler( p );
+}
+
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1openLibsLazy
+(JNIEnv * env, jobject jobj , jobject cptr) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    static const luaL_Reg lazyLibs[] = {
+        { LUA_TABLIBNAME , luaopen_table } ,
+        { LUA_IOLIBNAME , luaopen_io } ,
+        { LUA_OSLIBNAME , luaopen_os } ,
+        { LUA_STRLIBNAME , luaopen_string } ,
+        { LUA_MATHLIBNAME , luaopen_math } ,
+        { LUA_DBLIBNAME , luaopen_debug } ,
+        { NULL , NULL }
+    };
+    const luaL_Reg * lib;
+
+    lua_pushcfunction( L , luaopen_base );
+    lua_pushstring( L , "" );
+    lua_call( L , 1 , 0 );
+
+    lua_pushcfunction( L , luaopen_package );
+    lua_pushstring( L , LUA_LOADLIBNAME );
+    lua_call( L , 1 , 0 );
+
+    /* the other libraries open on first access, or through require */
+    lua_newtable( L );
+    lua_getglobal( L , LUA_LOADLIBNAME );
+    lua_getfield( L , -1 , "preload" );
+    for ( lib = lazyLibs ; lib->func ; lib++ ) {
+        lua_pushcfunction( L , lib->func );
+        lua_pushvalue( L , -1 );
+        lua_setfield( L , -5 , lib->name );
+        lua_setfield( L , -2 , lib->name );
+    }
+    lua_pop( L , 2 );
+    lua_setfield( L , LUA_REGISTRYINDEX , LUAJAVALAZYLIBS );
+
+    modifyLuaEnv( L );
+
+    lua_getmetatable( L , LUA_GLOBALSINDEX );
+    lua_pushcfunction( L , &lazyGlobalIndex );
+    lua_setfield( L , -2 , LUAINDEXMETAMETHODTAG );
+    lua_pop( L , 1 );
+
+    lua_pushliteral( L , "" );
+    lua_newtable( L );
+    lua_pushcfunction( L , &lazyStringIndex );
+    lua_setfield( L , -2 , LUAINDEXMETAMETHODTAG );
+    lua_setmetatable( L , -2 );
+    lua_pop( L , 1 );
+}
+
 /************************************************************************
  *   JNI Called function
  *      Lua Exported Function
@@ -2326,7 +4649,210 @@ JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isBoolean(
 JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
     lua_State * L = getStateFromCPtr(env, cptr);
 
-    return (jint) lua_isboolean( L , ( int ) idx );
+    return (jint) lua_isboolean( L , ( int ) idx );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNil(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_isnil( L , ( int ) idx );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNone(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_isnone( L , ( int ) idx );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNoneOrNil(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_isnoneornil( L , ( int ) idx );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1type(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_type(L, (int) idx);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1functionName(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+    lua_Debug ar;
+    const char * str;
+    size_t len;
+    jstring ret;
+
+    if (!lua_isfunction(L, idx)) {
+        return (*env)->NewStringUTF(env, luaL_typename(L, idx));
+    }
+
+    lua_pushvalue(L, idx);
+    lua_getinfo(L, ">S", &ar);
+    if (ar.linedefined > 0) {
+        lua_pushfstring(L, "%s:%d", ar.short_src, ar.linedefined);
+    } else {
+        lua_pushstring(L, ar.short_src);
+    }
+
+    str = lua_tolstring(L, -1, &len);
+    ret = newJavaString(env, str, len);
+    lua_pop(L, 1);
+
+    return ret;
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1typeName(
+JNIEnv * env, jobject jobj, jobject cptr, jint tp) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    const char * name = lua_typename(L, tp);
+
+    return (*env)->NewStringUTF(env, name);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1equal(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_equal(L, idx1, idx2);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1rawequal(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_rawequal(L, idx1, idx2);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1lessthan(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_lessthan(L, idx1, idx2);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1toNumber(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jdouble) lua_tonumber(L, idx);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toInteger(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_tointeger(L, idx);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toBoolean(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return (jint) lua_toboolean(L, idx);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1toString(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+
+    return luaToJavaString(env, L, idx);
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jbyteArray JNICALL Java_org_keplerproject_luajava_LuaState__1toBytes(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+    const char * str;
+    size_t len;
+    jbyteArray ret;
+
+    str = lua_tolstring(L, idx, &len);
+    if (str == NULL) {
+        return NULL;
+    }
+
+    ret = (*env)->NewByteArray(env, (jsize) len);
+    if (ret != NULL) {
+        (*env)->SetByteArrayRegion(env, ret, 0, (jsize) len, (const jbyte *) str);
+    }
+
+    return ret;
 }
 
 /************************************************************************
@@ -2334,11 +4860,18 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNil(
+JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1toStringUTF(
 JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    const char * str;
 
-    return (jint) lua_isnil( L , ( int ) idx );
+    /* the modified UTF-8 conversion toString used before */
+    str = lua_tostring(L, idx);
+    if (str == NULL) {
+        return NULL;
+    }
+
+    return (*env)->NewStringUTF(env, str);
 }
 
 /************************************************************************
@@ -2346,11 +4879,19 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNone(
+JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1toDirectBuffer(
 JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    const char * str;
+    size_t len;
 
-    return (jint) lua_isnone( L , ( int ) idx );
+    str = lua_tolstring(L, idx, &len);
+    if (str == NULL) {
+        return NULL;
+    }
+
+    /* the caller keeps the string pinned while the buffer is in use */
+    return (*env)->NewDirectByteBuffer(env, (void *) str, (jlong) len);
 }
 
 /************************************************************************
@@ -2358,11 +4899,53 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1isNoneOrNil(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1tableNext(
+JNIEnv * env, jobject jobj, jobject cptr, jint tableRef, jint keyRef, jboolean first,
+jobjectArray out) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jsize max = (*env)->GetArrayLength(env, out) / 2;
+    jsize n = 0;
+    int top = lua_gettop(L);
+    int t;
 
-    return (jint) lua_isnoneornil( L , ( int ) idx );
+    lua_rawgeti(L, LUA_REGISTRYINDEX, tableRef);
+    t = lua_gettop(L);
+
+    /* the last key of the previous batch is kept in the keyRef slot */
+    if (first) {
+        lua_pushnil(L);
+    } else {
+        lua_rawgeti(L, LUA_REGISTRYINDEX, keyRef);
+
+        /* lua_next raises an unprotected error on a key that is gone */
+        lua_pushvalue(L, -1);
+        lua_rawget(L, t);
+        if (lua_isnil(L, -1)) {
+            lua_settop(L, top);
+            return -1;
+        }
+        lua_pop(L, 1);
+    }
+
+    while (n < max && lua_next(L, t) != 0) {
+        if (!storeJavaObject(env, jobj, L, -2, out, 2 * n)
+                || !storeJavaObject(env, jobj, L, -1, out, 2 * n + 1)) {
+            lua_settop(L, top);
+            return 0;
+        }
+
+        lua_pop(L, 1);
+        n++;
+    }
+
+    /* lua_next pops the key once the table is exhausted */
+    if (lua_gettop(L) > t) {
+        lua_rawseti(L, LUA_REGISTRYINDEX, keyRef);
+    }
+
+    lua_settop(L, top);
+
+    return (jint) n;
 }
 
 /************************************************************************
@@ -2370,11 +4953,22 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1type(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1tableCount(
+JNIEnv * env, jobject jobj, jobject cptr, jint tableRef) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jint n = 0;
 
-    return (jint) lua_type(L, (int) idx);
+    lua_rawgeti(L, LUA_REGISTRYINDEX, tableRef);
+
+    lua_pushnil(L);
+    while (lua_next(L, -2) != 0) {
+        lua_pop(L, 1);
+        n++;
+    }
+
+    lua_pop(L, 1);
+
+    return n;
 }
 
 /************************************************************************
@@ -2382,13 +4976,43 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1typeName(
-JNIEnv * env, jobject jobj, jobject cptr, jint tp) {
+JNIEXPORT jobjectArray JNICALL Java_org_keplerproject_luajava_LuaState__1tableSnapshot(
+JNIEnv * env, jobject jobj, jobject cptr, jint tableRef) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jobjectArray ret;
+    jsize n = 0;
+    int top = lua_gettop(L);
 
-    const char * name = lua_typename(L, tp);
+    lua_rawgeti(L, LUA_REGISTRYINDEX, tableRef);
 
-    return (*env)->NewStringUTF(env, name);
+    lua_pushnil(L);
+    while (lua_next(L, top + 1) != 0) {
+        lua_pop(L, 1);
+        n++;
+    }
+
+    ret = (*env)->NewObjectArray(env, 2 * n, object_class, NULL);
+    if (ret == NULL) {
+        lua_settop(L, top);
+        return NULL;
+    }
+
+    n = 0;
+    lua_pushnil(L);
+    while (lua_next(L, top + 1) != 0) {
+        if (!storeJavaObject(env, jobj, L, -2, ret, 2 * n)
+                || !storeJavaObject(env, jobj, L, -1, ret, 2 * n + 1)) {
+            lua_settop(L, top);
+            return NULL;
+        }
+
+        lua_pop(L, 1);
+        n++;
+    }
+
+    lua_settop(L, top);
+
+    return ret;
 }
 
 /************************************************************************
@@ -2396,11 +5020,29 @@ JNIEnv * env, jobject jobj, jobject cptr, jint tp) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1equal(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1tableRange(
+JNIEnv * env, jobject jobj, jobject cptr, jint tableRef, jint from, jint count,
+jobjectArray out) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    int top = lua_gettop(L);
+    jint i;
 
-    return (jint) lua_equal(L, idx1, idx2);
+    lua_rawgeti(L, LUA_REGISTRYINDEX, tableRef);
+
+    for (i = 0; i < count; i++) {
+        lua_rawgeti(L, top + 1, from + i);
+
+        if (!storeJavaObject(env, jobj, L, -1, out, i)) {
+            lua_settop(L, top);
+            return 0;
+        }
+
+        lua_pop(L, 1);
+    }
+
+    lua_settop(L, top);
+
+    return count;
 }
 
 /************************************************************************
@@ -2408,11 +5050,16 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1rawequal(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1pushRefField(
+JNIEnv * env, jobject jobj, jobject cptr, jint tableRef, jint keyRef) {
     lua_State * L = getStateFromCPtr(env, cptr);
 
-    return (jint) lua_rawequal(L, idx1, idx2);
+    lua_rawgeti(L, LUA_REGISTRYINDEX, tableRef);
+    lua_rawgeti(L, LUA_REGISTRYINDEX, keyRef);
+    lua_gettable(L, -2);
+    lua_remove(L, -2);
+
+    return (jint) lua_type(L, -1);
 }
 
 /************************************************************************
@@ -2420,11 +5067,11 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1lessthan(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushPath(
+JNIEnv * env, jobject jobj, jobject cptr, jintArray keys, jboolean raw) {
     lua_State * L = getStateFromCPtr(env, cptr);
 
-    return (jint) lua_lessthan(L, idx1, idx2);
+    pushPath(env, L, keys, raw);
 }
 
 /************************************************************************
@@ -2432,11 +5079,21 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx1, jint idx2) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1toNumber(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jdouble JNICALL Java_org_keplerproject_luajava_LuaState__1pathNumber(
+JNIEnv * env, jobject jobj, jobject cptr, jintArray keys, jboolean raw,
+        jdouble def) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jdouble ret = def;
 
-    return (jdouble) lua_tonumber(L, idx);
+    pushPath(env, L, keys, raw);
+
+    if (lua_isnumber(L, -1)) {
+        ret = (jdouble) lua_tonumber(L, -1);
+    }
+
+    lua_pop(L, 1);
+
+    return ret;
 }
 
 /************************************************************************
@@ -2444,11 +5101,21 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toInteger(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jboolean JNICALL Java_org_keplerproject_luajava_LuaState__1pathBoolean(
+JNIEnv * env, jobject jobj, jobject cptr, jintArray keys, jboolean raw,
+        jboolean def) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jboolean ret = def;
 
-    return (jint) lua_tointeger(L, idx);
+    pushPath(env, L, keys, raw);
+
+    if (!lua_isnil(L, -1)) {
+        ret = (jboolean) lua_toboolean(L, -1);
+    }
+
+    lua_pop(L, 1);
+
+    return ret;
 }
 
 /************************************************************************
@@ -2456,11 +5123,18 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1toBoolean(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1pathString(
+JNIEnv * env, jobject jobj, jobject cptr, jintArray keys, jboolean raw) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jstring ret;
 
-    return (jint) lua_toboolean(L, idx);
+    pushPath(env, L, keys, raw);
+
+    ret = luaToJavaString(env, L, -1);
+
+    lua_pop(L, 1);
+
+    return ret;
 }
 
 /************************************************************************
@@ -2468,13 +5142,18 @@ JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
  *      Lua Exported Function
  ************************************************************************/
 
-JNIEXPORT jstring JNICALL Java_org_keplerproject_luajava_LuaState__1toString(
-JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+JNIEXPORT jobject JNICALL Java_org_keplerproject_luajava_LuaState__1pathObject(
+JNIEnv * env, jobject jobj, jobject cptr, jintArray keys, jboolean raw) {
     lua_State * L = getStateFromCPtr(env, cptr);
+    jobject ret;
 
-    const char * str = lua_tostring( L , idx );
+    pushPath(env, L, keys, raw);
 
-    return (*env)->NewStringUTF(env, str);
+    ret = luaToJavaObject(env, jobj, L, -1);
+
+    lua_pop(L, 1);
+
+    return ret;
 }
 
 /************************************************************************
@@ -2560,11 +5239,28 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushNumber
 ************************************************************************/
 
 JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lorg_keplerproject_luajava_CPtr_2Ljava_lang_String_2
+  (JNIEnv * env , jobject jobj , jobject cptr , jstring str) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+
+    pushJavaString( env , L , str );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushStringUTF
   (JNIEnv * env , jobject jobj , jobject cptr , jstring str) {
     lua_State * L = getStateFromCPtr( env , cptr );
     const char * uniStr;
 
-    uniStr =  ( *env )->GetStringUTFChars( env , str , NULL );
+    /* the modified UTF-8 conversion pushString used before */
+    uniStr = ( *env )->GetStringUTFChars( env , str , NULL );
+    if ( uniStr == NULL ) {
+        return;
+    }
 
     lua_pushstring( L , uniStr );
 
@@ -2577,16 +5273,122 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lor
 *      Lua Exported Function
 ************************************************************************/
 
-JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lorg_keplerproject_luajava_CPtr_2_3BI
-  (JNIEnv * env , jobject jobj , jobject cptr , jbyteArray bytes , jint n) {
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushString__Lorg_keplerproject_luajava_CPtr_2_3BII
+  (JNIEnv * env , jobject jobj , jobject cptr , jbyteArray bytes , jint off , jint n) {
     lua_State * L = getStateFromCPtr( env , cptr );
+    char stackBuf[LUAJAVASTRBUFSIZE * 4];
     char * cBytes;
 
+    /* short strings are copied out, longer ones are read in place */
+    if ( n <= ( jint ) sizeof( stackBuf ) ) {
+        ( *env )->GetByteArrayRegion( env , bytes , off , n , ( jbyte * ) stackBuf );
+
+        lua_pushlstring( L , stackBuf , n );
+        return;
+    }
+
     cBytes = ( char * ) ( *env )->GetByteArrayElements( env , bytes, NULL );
+    if ( cBytes == NULL ) {
+        return;
+    }
+
+    lua_pushlstring( L , cBytes + off , n );
+
+    ( *env )->ReleaseByteArrayElements( env , bytes , ( jbyte * ) cBytes , JNI_ABORT );
+}
+
 
-    lua_pushlstring( L , cBytes , n );
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushDirectBuffer
+  (JNIEnv * env , jobject jobj , jobject cptr , jobject buff , jint off , jint n) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    const char * cBytes;
+
+    cBytes = ( const char * ) ( *env )->GetDirectBufferAddress( env , buff );
+    if ( cBytes == NULL ) {
+        ( *env )->ThrowNew( env , ( *env )->FindClass( env , "java/lang/IllegalArgumentException" ) ,
+                "Buffer is not a direct buffer." );
+        return;
+    }
+
+    lua_pushlstring( L , cBytes + off , n );
+}
+
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
 
-    ( *env )->ReleaseByteArrayElements( env , bytes , cBytes , 0 );
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1pushResults
+  (JNIEnv * env , jobject jobj , jobject cptr , jbyteArray kinds , jdoubleArray numbers ,
+   jobjectArray objects , jint n) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    jbyte kindBuf[LUAJAVARESULTBATCH];
+    jdouble numberBuf[LUAJAVARESULTBATCH];
+    jobject obj;
+    jbyte * bytes;
+    jint off , count , i;
+
+    if ( !lua_checkstack( L , n ) ) {
+        ( *env )->ThrowNew( env , ( *env )->FindClass( env , "org/keplerproject/luajava/LuaException" ) ,
+                "Too many results." );
+        return;
+    }
+
+    for ( off = 0 ; off < n ; off += count ) {
+        count = n - off < LUAJAVARESULTBATCH ? n - off : LUAJAVARESULTBATCH;
+        ( *env )->GetByteArrayRegion( env , kinds , off , count , kindBuf );
+        ( *env )->GetDoubleArrayRegion( env , numbers , off , count , numberBuf );
+
+        for ( i = 0 ; i < count ; i++ ) {
+            switch ( kindBuf[i] ) {
+            case LUAJAVARESULTBOOLEAN:
+                lua_pushboolean( L , numberBuf[i] != 0 );
+                break;
+            case LUAJAVARESULTNUMBER:
+                lua_pushnumber( L , ( lua_Number ) numberBuf[i] );
+                break;
+            case LUAJAVARESULTREF:
+                lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) numberBuf[i] );
+                break;
+            case LUAJAVARESULTSTRING:
+            case LUAJAVARESULTBYTES:
+            case LUAJAVARESULTOBJECT:
+                obj = ( *env )->GetObjectArrayElement( env , objects , off + i );
+                if ( obj == NULL ) {
+                    lua_pushnil( L );
+                    break;
+                }
+
+                if ( kindBuf[i] == LUAJAVARESULTSTRING ) {
+                    if ( !pushJavaString( env , L , ( jstring ) obj ) ) {
+                        return;
+                    }
+                } else if ( kindBuf[i] == LUAJAVARESULTBYTES ) {
+                    bytes = ( *env )->GetByteArrayElements( env , ( jbyteArray ) obj , NULL );
+                    if ( bytes == NULL ) {
+                        return;
+                    }
+                    lua_pushlstring( L , ( const char * ) bytes ,
+                            ( *env )->GetArrayLength( env , ( jarray ) obj ) );
+                    ( *env )->ReleaseByteArrayElements( env , ( jbyteArray ) obj , bytes , JNI_ABORT );
+                } else {
+                    pushJavaObject( L , obj );
+                }
+
+                ( *env )->DeleteLocalRef( env , obj );
+                break;
+            default:
+                lua_pushnil( L );
+                break;
+            }
+        }
+    }
 }
 
 
@@ -2794,6 +5596,7 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1call
 (JNIEnv * env , jobject jobj , jobject cptr , jint nArgs , jint nResults) {
     lua_State * L = getStateFromCPtr( env , cptr );
 
+    profilerMark( L );
     lua_call( L , nArgs , nResults );
 }
 
@@ -2807,6 +5610,7 @@ JNIEnv * env, jobject jobj, jobject cptr, jint nArgs, jint nResults,
 jint errFunc) {
     lua_State * L = getStateFromCPtr(env, cptr);
 
+    profilerMark(L);
     return (jint) lua_pcall(L, nArgs, nResults, errFunc);
 }
 
@@ -2953,6 +5757,90 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getGlobal
     ( *env )->ReleaseStringUTFChars( env , name , str );
 }
 
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getFieldByKey
+  (JNIEnv * env , jobject jobj , jobject cptr , jint idx , jint keyRef) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    int t = absIndex( L , ( int ) idx );
+
+    lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) keyRef );
+    lua_gettable( L , t );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setFieldByKey
+  (JNIEnv * env , jobject jobj , jobject cptr , jint idx , jint keyRef) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    int t = absIndex( L , ( int ) idx );
+
+    lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) keyRef );
+    lua_insert( L , -2 );
+    lua_settable( L , t );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1getGlobalByKey
+  (JNIEnv * env , jobject jobj , jobject cptr , jint keyRef) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+
+    lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) keyRef );
+    lua_gettable( L , LUA_GLOBALSINDEX );
+}
+
+
+/************************************************************************
+*   JNI Called function
+*      Lua Exported Function
+************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1setGlobalByKey
+  (JNIEnv * env , jobject jobj , jobject cptr , jint keyRef) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+
+    lua_rawgeti( L , LUA_REGISTRYINDEX , ( int ) keyRef );
+    lua_insert( L , -2 );
+    lua_settable( L , LUA_GLOBALSINDEX );
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      LuaJava API Function
+ ************************************************************************/
+
+JNIEXPORT jlongArray JNICALL Java_org_keplerproject_luajava_LuaState__1getStringCacheStats(
+JNIEnv * env, jobject jobj, jobject cptr) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+    StrCache * cache = getStrCache(L);
+    jlongArray ret;
+    jlong stats[4];
+
+    stats[0] = cache->hits;
+    stats[1] = cache->misses;
+    stats[2] = cache->evictions;
+    stats[3] = (jlong) cache->size;
+
+    ret = (*env)->NewLongArray(env, 4);
+    if (ret != NULL) {
+        (*env)->SetLongArrayRegion(env, ret, 0, 4, stats);
+    }
+
+    return ret;
+}
+
 /************************************************************************
  *   JNI Called function
  *      Lua Exported Function
@@ -2966,6 +5854,7 @@ JNIEnv * env, jobject jobj, jobject cptr, jstring fileName) {
 
     int ret;
 
+    profilerMark( L );
     ret = luaL_dofile( L , file );
 
     (*env)->ReleaseStringUTFChars(env, fileName, file);
@@ -2986,6 +5875,7 @@ JNIEnv * env, jobject jobj, jobject cptr, jstring str) {
 
     int ret;
 
+    profilerMark( L );
     ret = luaL_dostring( L , utfStr );
 
     return (jint) ret;
@@ -3255,6 +6145,37 @@ JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRef
     luaL_unref( L , ( int ) t , ( int ) ref );
 }
 
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT void JNICALL Java_org_keplerproject_luajava_LuaState__1LunRefs
+(JNIEnv * env , jobject jobj , jobject cptr , jint t , jintArray refs , jint n) {
+    lua_State * L = getStateFromCPtr( env , cptr );
+    jint stackRefs[LUAJAVASTRBUFSIZE];
+    jint * cRefs;
+    jint i;
+
+    if ( n <= LUAJAVASTRBUFSIZE ) {
+        cRefs = stackRefs;
+        ( *env )->GetIntArrayRegion( env , refs , 0 , n , cRefs );
+    } else {
+        cRefs = ( *env )->GetIntArrayElements( env , refs , NULL );
+        if ( cRefs == NULL ) {
+            return;
+        }
+    }
+
+    for ( i = 0 ; i < n ; i++ ) {
+        luaL_unref( L , ( int ) t , ( int ) cRefs[i] );
+    }
+
+    if ( cRefs != stackRefs ) {
+        ( *env )->ReleaseIntArrayElements( env , refs , cRefs , JNI_ABORT );
+    }
+}
+
 /************************************************************************
  *   JNI Called function
  *      Lua Exported Function
@@ -3303,21 +6224,84 @@ JNIEnv * env, jobject jobj, jobject cptr, jstring fileName) {
  ************************************************************************/
 
 JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadBuffer(
-JNIEnv * env, jobject jobj, jobject cptr, jbyteArray buff, jlong sz, jstring n) {
+JNIEnv * env, jobject jobj, jobject cptr, jbyteArray buff, jint off, jlong sz, jstring n) {
     lua_State * L = getStateFromCPtr(env, cptr);
     jbyte * cBuff = (*env)->GetByteArrayElements(env, buff, NULL);
     const char * name = (*env)->GetStringUTFChars(env, n, NULL);
     int ret;
 
-    ret = luaL_loadbuffer(L, (const char *) cBuff, (int) sz, name);
+    ret = luaL_loadbuffer(L, (const char *) cBuff + off, (size_t) sz, name);
 
     (*env)->ReleaseStringUTFChars(env, n, name);
 
-    (*env)->ReleaseByteArrayElements(env, buff, cBuff, 0);
+    (*env)->ReleaseByteArrayElements(env, buff, cBuff, JNI_ABORT);
+
+    return (jint) ret;
+}
+
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jint JNICALL Java_org_keplerproject_luajava_LuaState__1LloadDirectBuffer(
+JNIEnv * env, jobject jobj, jobject cptr, jobject buff, jint off, jint sz, jstring n) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+    const char * cBuff = (const char *) (*env)->GetDirectBufferAddress(env, buff);
+    const char * name;
+    int ret;
+
+    if (cBuff == NULL) {
+        (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"),
+                "Buffer is not a direct buffer.");
+        return 0;
+    }
+
+    /* the chunk is parsed straight out of the buffer */
+    name = (*env)->GetStringUTFChars(env, n, NULL);
+
+    ret = luaL_loadbuffer(L, cBuff + off, (size_t) sz, name);
+
+    (*env)->ReleaseStringUTFChars(env, n, name);
 
     return (jint) ret;
 }
 
+/************************************************************************
+ *   JNI Called function
+ *      Lua Exported Function
+ ************************************************************************/
+
+JNIEXPORT jbyteArray JNICALL Java_org_keplerproject_luajava_LuaState__1dump(
+JNIEnv * env, jobject jobj, jobject cptr, jint idx) {
+    lua_State * L = getStateFromCPtr(env, cptr);
+    luaL_Buffer b;
+    const char * chunk;
+    size_t len;
+    jbyteArray ret = NULL;
+
+    if (!lua_isfunction(L, idx) || lua_iscfunction(L, idx)) {
+        return NULL;
+    }
+
+    lua_pushvalue(L, idx);
+    luaL_buffinit(L, &b);
+    if (lua_dump(L, dumpWriter, &b) == 0) {
+        luaL_pushresult(&b);
+        chunk = lua_tolstring(L, -1, &len);
+
+        ret = (*env)->NewByteArray(env, (jsize) len);
+        if (ret != NULL) {
+            (*env)->SetByteArrayRegion(env, ret, 0, (jsize) len,
+                    (const jbyte *) chunk);
+        }
+        lua_pop(L, 1);
+    }
+    lua_pop(L, 1);
+
+    return ret;
+}
+
 /************************************************************************
  *   JNI Called function
  *      Lua Exported Function
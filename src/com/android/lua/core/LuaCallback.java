@@ -0,0 +1,27 @@
+package com.android.lua.core;
+
+import org.keplerproject.luajava.LuaException;
+
+/**
+ * 异步执行脚本的回调.
+ * <p>
+ * 提交任务的线程有Looper时, 回调在该线程上执行, 否则在脚本线程上执行. 任务被取消时不回调.
+ * @author lizhennian
+ * @version 0.0.1
+ */
+public interface LuaCallback {
+
+    /**
+     * 执行成功.
+     * @param result
+     *            执行结果, 没有结果时为null
+     */
+    void onComplete(Object result);
+
+    /**
+     * 执行失败.
+     * @param e
+     *            失败原因
+     */
+    void onError(LuaException e);
+}
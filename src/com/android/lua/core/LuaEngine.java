@@ -1,16 +1,43 @@
 package com.android.lua.core;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.keplerproject.luajava.JavaFunction;
 import org.keplerproject.luajava.LuaException;
+import org.keplerproject.luajava.LuaMetrics;
+import org.keplerproject.luajava.LuaObject;
+import org.keplerproject.luajava.LuaProfile;
 import org.keplerproject.luajava.LuaState;
 import org.keplerproject.luajava.LuaStateFactory;
+import org.keplerproject.luajava.LuaTrace;
+import org.keplerproject.luajava.LuaWatchdog;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
 
 import com.android.lua.core.extend.AssetLoaderFunc;
+import com.android.lua.core.extend.BytecodeCache;
 import com.android.lua.core.extend.PrintFunc;
 
 /**
@@ -22,13 +49,71 @@ public class LuaEngine {
 
     private static final String TAG = "LuaEngine";
 
+    /** 异步任务队列的默认容量. */
+    public static final int DEFAULT_ASYNC_QUEUE_CAPACITY = 16;
+
+    /** 脚本线程空闲多久后退出, 单位毫秒. */
+    private static final long SCRIPT_THREAD_KEEP_ALIVE = 30000;
+
+    /** 按package.loaders查找模块的代码块, 返回代码块但不执行. */
+    private static final String FIND_MODULE_CHUNK = "local name = ... local msg = ''"
+            + " for _, loader in ipairs(package.loaders) do"
+            + " local chunk = loader(name)"
+            + " if type(chunk) == 'function' then return chunk end"
+            + " if type(chunk) == 'string' then msg = msg .. chunk end"
+            + " end"
+            + " error(\"module '\" .. name .. \"' not found:\" .. msg, 0)";
+
     private volatile static LuaEngine sEngine;
 
+    private static boolean sLazyLibraries;
+
     private final LuaState mLuaState;
 
+    /** 已解析的模块, 以模块名为键, 由mLuaState的锁保护. */
+    private final Map<String, ModuleHandle> mModuleHandles = new HashMap<String, ModuleHandle>();
+
+    private int mAsyncQueueCapacity = DEFAULT_ASYNC_QUEUE_CAPACITY;
+
+    /** 带模块索引的加载器, useExtend后才有. */
+    private AssetLoaderFunc mAssetLoader;
+
+    /** 通过addSearchPath添加的目录, 建立模块索引时扫描. */
+    private final List<File> mSearchDirectories = new ArrayList<File>();
+
+    /** 所有环境共享的元表, 其__index是冻结的基础环境. 第一次创建环境时创建. */
+    private LuaObject mEnvironmentMeta;
+
+    /** 查找模块代码块的lua方法, 第一次使用时创建. */
+    private LuaObject mChunkFinder;
+
+    /** 执行异步任务的脚本线程, 第一次提交任务时创建. */
+    private ThreadPoolExecutor mScriptExecutor;
+
     private LuaEngine() {
+        long start = StartupTimeline.begin();
         this.mLuaState = LuaStateFactory.newLuaState();
-        this.mLuaState.openLibs();
+        StartupTimeline.end("engine", "newLuaState", start);
+
+        start = StartupTimeline.begin();
+        if (sLazyLibraries) {
+            this.mLuaState.openLibsLazy();
+            StartupTimeline.end("engine", "openLibsLazy", start);
+        } else {
+            this.mLuaState.openLibs();
+            StartupTimeline.end("engine", "openLibs", start);
+        }
+
+        // 主线程空闲时释放已回收对象的引用; 脚本正在执行时留到它的下一次pcall结束后释放
+        if (Looper.myLooper() != null) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    LuaEngine.this.mLuaState.releaseRefs();
+                    return true;
+                }
+            });
+        }
     }
 
     public static LuaEngine getInstance() {
@@ -43,6 +128,17 @@ public class LuaEngine {
         return sEngine;
     }
 
+    /**
+     * 设置是否延迟加载标准库. 延迟加载时只打开base和package库, 其他库在第一次使用时才打开.
+     * 需要在{@link #getInstance()}之前调用.
+     * @param lazy
+     *            是否延迟加载
+     * @see LuaState#openLibsLazy()
+     */
+    public static void setLazyLibraries(boolean lazy) {
+        sLazyLibraries = lazy;
+    }
+
     /**
      * 返回引擎状态对象.
      * @return 状态对象
@@ -73,12 +169,38 @@ public class LuaEngine {
         this.mLuaState.setField(-2, "path");
 
         this.mLuaState.pop(1);
+
+        File directory = new File(path);
+        synchronized (this.mSearchDirectories) {
+            this.mSearchDirectories.add(directory);
+        }
+        if (this.mAssetLoader != null) {
+            this.mAssetLoader.addIndexDirectory(directory);
+        }
+    }
+
+    /**
+     * 重新建立模块索引. useExtend之后, require只在索引中查找assets和addSearchPath添加的目录,
+     * 目录中的脚本有增删时需要调用.
+     */
+    public void rebuildModuleIndex() {
+        if (this.mAssetLoader == null) {
+            return;
+        }
+
+        File[] directories;
+        synchronized (this.mSearchDirectories) {
+            directories = this.mSearchDirectories
+                    .toArray(new File[this.mSearchDirectories.size()]);
+        }
+        this.mAssetLoader.buildIndex(directories);
     }
 
     /**
      * 添加加载器.
      * <p>
      * 引擎会遍历环境中所有加载器，并尝试加载脚本指定脚本文件.
+     * useExtend之后添加的加载器排在模块索引之后, 索引中找不到的模块会继续交给后面的加载器.
      * @throws LuaException
      *             添加失败时抛出
      * @throws IllegalArgumentException
@@ -98,6 +220,29 @@ public class LuaEngine {
 
         this.mLuaState.rawSetI(-2, nLoaders + 1);
         this.mLuaState.pop(2);
+
+        if (this.mAssetLoader != null) {
+            this.mAssetLoader.setFallThrough(true);
+        }
+    }
+
+    /**
+     * 把加载器插入到package.loaders的指定位置, 后面的加载器依次后移.
+     */
+    private void insertLuaLoader(JavaFunction func, int position)
+            throws LuaException {
+        this.mLuaState.getGlobal("package");
+        this.mLuaState.getField(-1, "loaders");
+        int nLoaders = this.mLuaState.objLen(-1);
+
+        for (int i = nLoaders; i >= position; i--) {
+            this.mLuaState.rawGetI(-1, i);
+            this.mLuaState.rawSetI(-2, i + 1);
+        }
+
+        this.mLuaState.pushJavaFunction(func);
+        this.mLuaState.rawSetI(-2, position);
+        this.mLuaState.pop(2);
     }
 
     /**
@@ -126,10 +271,16 @@ public class LuaEngine {
                     "Illegal argument when invoking executeScriptFile function.");
         }
 
-        this.mLuaState.setTop(0);
-        int error = this.mLuaState.LdoFile(filename);
-        if (error != 0) {
-            throw this.generateLuaException(error);
+        synchronized (this.mLuaState) {
+            this.mLuaState.setTop(0);
+            int error = this.mLuaState.LloadFile(filename);
+            if (error == 0) {
+                error = this.pcall(this.mLuaState, 0, 0, "lua:dofile ",
+                        filename);
+            }
+            if (error != 0) {
+                throw this.generateLuaException(error);
+            }
         }
     }
 
@@ -151,19 +302,366 @@ public class LuaEngine {
                     "Illegal argument when invoking executeGlobalFunction function.");
         }
 
+        synchronized (this.mLuaState) {
+            this.callGlobalFunction(functionName, 0, args);
+        }
+    }
+
+    /**
+     * 调用全局方法, 结果留在栈上.
+     */
+    private void callGlobalFunction(String functionName, int nResults,
+            Object... args) throws LuaException {
         this.mLuaState.getField(LuaState.LUA_GLOBALSINDEX, functionName);
 
         for (Object param : args) {
             this.mLuaState.pushJavaObject(param);
         }
 
-        int error = this.mLuaState.pcall(args.length, 0, 0);
+        int error = this.pcall(this.mLuaState, args.length, nResults,
+                "lua:call ", functionName);
 
         if (error != 0) {
             throw this.generateLuaException(error);
         }
     }
 
+    /**
+     * 设置执行脚本时的限制: 指令数上限, 超时和慢调用提醒. 对引擎执行的字符串, 脚本文件,
+     * 全局方法, 模块加载和模块方法都生效, 超出限制时脚本中止并抛出带调用栈的LuaException.
+     * 限制设为脚本状态的默认限制, 所以java调用的LuaObject, 代理和适配器也受限制.
+     * @param watchdog
+     *            限制, 为null时不限制
+     */
+    public void setWatchdog(LuaWatchdog watchdog) {
+        this.mLuaState.setDefaultWatchdog(watchdog);
+    }
+
+    public LuaWatchdog getWatchdog() {
+        return this.mLuaState.getDefaultWatchdog();
+    }
+
+    /**
+     * 以默认间隔开始采样分析脚本.
+     * @see #startProfiling(int)
+     */
+    public void startProfiling() {
+        this.startProfiling(LuaState.DEFAULT_PROFILING_INTERVAL);
+    }
+
+    /**
+     * 开始采样分析脚本, 每执行interval条指令记录一次调用栈, 脚本调用java方法的耗时计入调用处.
+     * @param interval
+     *            采样间隔的指令数
+     * @throws IllegalStateException
+     *             已经在分析时抛出
+     */
+    public void startProfiling(int interval) {
+        this.mLuaState.startProfiling(interval);
+    }
+
+    /**
+     * 停止采样分析并写入文件. 文件名以.json结尾时写成speedscope格式, 否则写成
+     * flamegraph.pl使用的collapsed stack格式, 耗时单位为纳秒.
+     * @param file
+     *            输出文件, 为null时不写入
+     * @return 分析结果, 没有在分析时返回null
+     * @throws IOException
+     *             写入失败时抛出
+     */
+    public LuaProfile stopProfiling(File file) throws IOException {
+        LuaProfile profile = this.mLuaState.stopProfiling();
+        if (profile == null || file == null) {
+            return profile;
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            if (file.getName().endsWith(".json")) {
+                profile.writeSpeedscope(writer, file.getName());
+            } else {
+                profile.writeCollapsed(writer);
+            }
+        } finally {
+            writer.close();
+        }
+        return profile;
+    }
+
+    /**
+     * 在执行限制下调用栈上的方法, 开启LuaTrace时把调用记录为名为section + name的区间,
+     * 开启LuaMetrics时以同样的名字记录调用次数和耗时.
+     * @param name
+     *            区间名的后半部分, 可以为null
+     * @return pcall的返回值
+     */
+    int pcall(LuaState L, int nArgs, int nResults, String section, String name) {
+        boolean traced = LuaTrace.isEnabled();
+        boolean metered = LuaMetrics.isEnabled();
+        String label = null;
+        if (traced || metered) {
+            label = name == null ? section : section + name;
+        }
+        LuaTrace.Sink trace = traced ? LuaTrace.begin(label) : null;
+        long start = metered ? System.nanoTime() : 0;
+        boolean ok = false;
+        try {
+            int error = L.pcall(nArgs, nResults, 0);
+            ok = error == 0;
+            return error;
+        } finally {
+            if (metered) {
+                LuaMetrics.record(LuaMetrics.JAVA_TO_LUA, label, start, ok);
+            }
+            LuaTrace.end(trace);
+        }
+    }
+
+    /**
+     * 创建独立的脚本环境.
+     * <p>
+     * 所有环境共享一个基础环境: 第一次创建环境时全局表的快照, 对脚本只读.
+     * 快照中没有的名字(如延迟打开的标准库, 之后加载的共享模块, import的java类)仍从全局表中读取.
+     * @return 新的环境, 不再使用时需要关闭
+     * @see LuaEnvironment
+     */
+    public LuaEnvironment newEnvironment() {
+        LuaState L = this.mLuaState;
+        synchronized (L) {
+            int top = L.getTop();
+            try {
+                if (this.mEnvironmentMeta == null) {
+                    this.pushFrozenBase();
+
+                    L.newTable();
+                    L.insert(-2);
+                    L.setField(-2, "__index");
+                    // 对脚本隐藏元表, 防止替换
+                    L.pushBoolean(false);
+                    L.setField(-2, "__metatable");
+                    this.mEnvironmentMeta = L.getLuaObject(-1);
+                    L.pop(1);
+                }
+
+                L.newTable();
+                L.pushValue(-1);
+                L.setField(-2, "_G");
+                this.mEnvironmentMeta.push();
+                L.setMetaTable(-2);
+
+                return new LuaEnvironment(this, L.getLuaObject(-1));
+            } finally {
+                L.setTop(top);
+            }
+        }
+    }
+
+    /**
+     * 把全局表的快照压栈. 快照的元表从全局表读取快照中没有的名字, 并拒绝写入新的名字.
+     */
+    private void pushFrozenBase() {
+        LuaState L = this.mLuaState;
+        L.newTable();
+        L.pushNil();
+        while (L.next(LuaState.LUA_GLOBALSINDEX) != 0) {
+            L.pushValue(-2);
+            L.insert(-2);
+            L.rawSet(-4);
+        }
+
+        L.newTable();
+        L.pushValue(LuaState.LUA_GLOBALSINDEX);
+        L.setField(-2, "__index");
+        if (L.LloadString("error('shared base environment is read-only', 2)") != 0) {
+            throw new IllegalStateException(L.toString(-1));
+        }
+        L.setField(-2, "__newindex");
+        L.pushBoolean(false);
+        L.setField(-2, "__metatable");
+        L.setMetaTable(-2);
+    }
+
+    /**
+     * 设置异步任务队列的容量, 对之后创建的脚本线程生效.
+     * @param capacity
+     *            等待执行的任务数上限
+     */
+    public synchronized void setAsyncQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException(
+                    "Illegal argument when invoking setAsyncQueueCapacity function.");
+        }
+
+        this.mAsyncQueueCapacity = capacity;
+    }
+
+    /**
+     * 在脚本线程上执行包含脚本代码的字符串.
+     * @param codes
+     *            包含脚本代码的字符串
+     * @param callback
+     *            执行结束时的回调, 可以为null
+     * @return 任务, 可用于等待或取消
+     * @throws RejectedExecutionException
+     *             任务队列已满时抛出
+     * @see #executeString(String)
+     */
+    public Future<Object> executeStringAsync(final String codes,
+            LuaCallback callback) {
+        return this.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws LuaException {
+                LuaEngine.this.executeString(codes);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * 在脚本线程上执行脚本文件.
+     * @param filename
+     *            脚本文件名称
+     * @param callback
+     *            执行结束时的回调, 可以为null
+     * @return 任务, 可用于等待或取消
+     * @throws RejectedExecutionException
+     *             任务队列已满时抛出
+     * @see #executeScriptFile(String)
+     */
+    public Future<Object> executeScriptFileAsync(final String filename,
+            LuaCallback callback) {
+        return this.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws LuaException {
+                LuaEngine.this.executeScriptFile(filename);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * 在脚本线程上执行一个全局的lua方法.
+     * @param functionName
+     *            方法名称
+     * @param callback
+     *            执行结束时的回调, 可以为null
+     * @param args
+     *            方法参数
+     * @return 任务, 结果为方法的第一个返回值
+     * @throws RejectedExecutionException
+     *             任务队列已满时抛出
+     * @throws IllegalArgumentException
+     *             当方法名称为空时抛出
+     * @see #executeGlobalFunction(String, Object...)
+     */
+    public Future<Object> executeGlobalFunctionAsync(final String functionName,
+            LuaCallback callback, final Object... args) {
+        if (this.isBlank(functionName)) {
+            throw new IllegalArgumentException(
+                    "Illegal argument when invoking executeGlobalFunctionAsync function.");
+        }
+
+        return this.submit(new Callable<Object>() {
+            @Override
+            public Object call() throws LuaException {
+                LuaState L = LuaEngine.this.mLuaState;
+                synchronized (L) {
+                    int top = L.getTop();
+                    try {
+                        LuaEngine.this.callGlobalFunction(functionName, 1, args);
+                        return L.toJavaObject(-1);
+                    } finally {
+                        L.setTop(top);
+                    }
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * 提交任务到脚本线程. 队列已满时直接拒绝, 由调用者决定重试还是放弃.
+     * 任务开始执行前取消会移出队列; 已经开始执行的脚本会执行完, 但不再回调.
+     */
+    private Future<Object> submit(Callable<Object> task,
+            final LuaCallback callback) {
+        final Handler handler = callback != null && Looper.myLooper() != null
+                ? new Handler(Looper.myLooper()) : null;
+        final ThreadPoolExecutor executor = this.scriptExecutor();
+
+        FutureTask<Object> future = new FutureTask<Object>(task) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                if (cancelled) {
+                    // 让出队列中的位置
+                    executor.remove(this);
+                }
+                return cancelled;
+            }
+
+            @Override
+            protected void done() {
+                if (callback == null || this.isCancelled()) {
+                    return;
+                }
+
+                final Future<Object> self = this;
+                Runnable delivery = new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback, self);
+                    }
+                };
+                if (handler != null) {
+                    handler.post(delivery);
+                } else {
+                    delivery.run();
+                }
+            }
+        };
+
+        executor.execute(future);
+        return future;
+    }
+
+    private static void deliver(LuaCallback callback, Future<Object> future) {
+        Object result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            callback.onError(cause instanceof LuaException ? (LuaException) cause
+                    : new LuaException(cause instanceof Exception ? (Exception) cause
+                            : e));
+            return;
+        } catch (Exception e) {
+            // 已取消或被中断
+            return;
+        }
+
+        callback.onComplete(result);
+    }
+
+    private synchronized ThreadPoolExecutor scriptExecutor() {
+        if (this.mScriptExecutor == null) {
+            this.mScriptExecutor = new ThreadPoolExecutor(1, 1,
+                    SCRIPT_THREAD_KEEP_ALIVE, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(this.mAsyncQueueCapacity),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "lua-script");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.mScriptExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        return this.mScriptExecutor;
+    }
+
     /**
      * 执行指定模块下的指定方法.
      * @param moduleName
@@ -184,25 +682,217 @@ public class LuaEngine {
                     "Illegal argument when invoking executeModuleFunction function.");
         }
 
-        this.evalLua("require('" + moduleName + "')");
+        synchronized (this.mLuaState) {
+            this.getModuleHandle(moduleName).call(functionName, args);
+        }
+    }
+
+    /**
+     * 返回模块句柄. 模块只在第一次获取时加载并解析, 之后直接返回缓存的句柄.
+     * @param moduleName
+     *            模块名称
+     * @throws LuaException
+     *             加载模块失败时抛出
+     * @throws IllegalArgumentException
+     *             当参数为空字符时抛出
+     */
+    public ModuleHandle getModuleHandle(String moduleName) throws LuaException {
+        if (this.isBlank(moduleName)) {
+            throw new IllegalArgumentException(
+                    "Illegal argument when invoking getModuleHandle function.");
+        }
 
-        this.mLuaState.getGlobal(moduleName);
-        this.mLuaState.getField(-1, functionName);
+        synchronized (this.mLuaState) {
+            ModuleHandle handle = this.mModuleHandles.get(moduleName);
+            if (handle == null) {
+                handle = new ModuleHandle(moduleName,
+                        this.requireModule(moduleName));
+                this.mModuleHandles.put(moduleName, handle);
+            }
 
-        this.mLuaState.getGlobal(moduleName);
+            return handle;
+        }
+    }
 
-        for (Object param : args) {
-            this.mLuaState.pushJavaObject(param);
+    /**
+     * 重新加载模块: 丢弃模块句柄, 并从package.loaded中移除模块,
+     * 下次使用时重新执行模块脚本.
+     * @param moduleName
+     *            模块名称
+     */
+    public void reloadModule(String moduleName) {
+        synchronized (this.mLuaState) {
+            ModuleHandle handle = this.mModuleHandles.remove(moduleName);
+            if (handle != null) {
+                handle.release();
+            }
+
+            this.mLuaState.getGlobal("package");
+            this.mLuaState.getField(-1, "loaded");
+            this.mLuaState.pushNil();
+            this.mLuaState.setField(-2, moduleName);
+            this.mLuaState.pop(2);
+        }
+    }
+
+    /**
+     * 丢弃所有模块句柄. 模块本身不会重新加载, 但其方法会重新解析.
+     */
+    public void clearModuleHandles() {
+        synchronized (this.mLuaState) {
+            for (ModuleHandle handle : this.mModuleHandles.values()) {
+                handle.release();
+            }
+            this.mModuleHandles.clear();
+        }
+    }
+
+    /**
+     * 按require的方式查找模块, 把模块的代码块压栈, 但不执行, 也不放入package.loaded.
+     * 出错时把错误信息压栈. 调用者需持有mLuaState的锁.
+     * @return pcall的返回值
+     */
+    int loadModuleChunk(String moduleName) {
+        LuaState L = this.mLuaState;
+        if (this.mChunkFinder == null) {
+            int error = L.LloadString(FIND_MODULE_CHUNK);
+            if (error != 0) {
+                return error;
+            }
+            this.mChunkFinder = L.getLuaObject(-1);
+            L.pop(1);
         }
 
-        int error = this.mLuaState.pcall(1 + args.length, 0, 0);
+        this.mChunkFinder.push();
+        L.pushString(moduleName);
+        return this.pcall(L, 1, 1, "lua:require ", moduleName);
+    }
 
+    /**
+     * 调用require加载模块, 返回模块表. 调用者需持有mLuaState的锁.
+     */
+    private LuaObject requireModule(String moduleName) throws LuaException {
+        long start = StartupTimeline.begin();
+        int top = this.mLuaState.getTop();
+        this.mLuaState.getGlobal("require");
+        this.mLuaState.pushString(moduleName);
+        int error = this.pcall(this.mLuaState, 1, 1, "lua:require ",
+                moduleName);
+        StartupTimeline.end("require", moduleName, start);
         if (error != 0) {
-            throw this.generateLuaException(error);
+            LuaException e = this.generateLuaException(error);
+            this.mLuaState.setTop(top);
+            throw e;
+        }
+
+        // require的返回值不是表时, 使用与模块同名的全局表
+        if (!this.mLuaState.isTable(-1)) {
+            this.mLuaState.getGlobal(moduleName);
+        }
+
+        if (!this.mLuaState.isTable(-1)) {
+            this.mLuaState.setTop(top);
+            throw new LuaException("Module " + moduleName + " is not a table");
+        }
+
+        LuaObject module = this.mLuaState.getLuaObject(-1);
+        this.mLuaState.setTop(top);
+        return module;
+    }
+
+    /**
+     * 模块句柄. 模块表和已调用过的方法都保存在注册表中, 调用时不再解析脚本或查找名称.
+     * 模块重新加载后需要重新获取句柄.
+     */
+    public final class ModuleHandle {
+        private final String mModuleName;
+        private final LuaObject mModule;
+        private final Map<String, LuaObject> mFunctions = new HashMap<String, LuaObject>();
+        private final String mTraceSection;
+
+        ModuleHandle(String moduleName, LuaObject module) {
+            this.mModuleName = moduleName;
+            this.mModule = module;
+            this.mTraceSection = "lua:" + moduleName + ":";
+        }
+
+        public String getModuleName() {
+            return this.mModuleName;
+        }
+
+        /**
+         * 返回模块表.
+         */
+        public LuaObject getModule() {
+            return this.mModule;
+        }
+
+        /**
+         * 调用模块方法, 模块表作为第一个参数传入.
+         * @param functionName
+         *            方法名称
+         * @param args
+         *            方法参数
+         * @throws LuaException
+         *             方法不存在或执行失败时抛出
+         */
+        public void call(String functionName, Object... args)
+                throws LuaException {
+            LuaState L = LuaEngine.this.mLuaState;
+            synchronized (L) {
+                LuaObject function = this.function(functionName);
+
+                long start = StartupTimeline.begin();
+                int top = L.getTop();
+                function.push();
+                this.mModule.push();
+
+                for (Object param : args) {
+                    L.pushJavaObject(param);
+                }
+
+                int error = LuaEngine.this.pcall(L, 1 + args.length, 0,
+                        this.mTraceSection, functionName);
+                if (start != 0) {
+                    StartupTimeline.end("dispatch", this.mModuleName + "."
+                            + functionName, start);
+                }
+
+                if (error != 0) {
+                    LuaException e = LuaEngine.this.generateLuaException(error);
+                    L.setTop(top);
+                    throw e;
+                }
+            }
+        }
+
+        private LuaObject function(String functionName) throws LuaException {
+            LuaObject function = this.mFunctions.get(functionName);
+            if (function == null) {
+                function = this.mModule.getField(functionName);
+                if (!function.isFunction() && !function.isTable()
+                        && !function.isUserdata()) {
+                    function.close();
+                    throw new LuaException("Module " + this.mModuleName
+                            + " has no function " + functionName);
+                }
+                this.mFunctions.put(functionName, function);
+            }
+
+            return function;
+        }
+
+        void release() {
+            for (LuaObject function : this.mFunctions.values()) {
+                function.close();
+            }
+            this.mFunctions.clear();
+            this.mModule.close();
         }
     }
 
     public void useExtend(Context context) {
+        long start = StartupTimeline.begin();
         PrintFunc print = new PrintFunc(this.mLuaState);
         try {
             print.register("print");
@@ -210,17 +900,35 @@ public class LuaEngine {
             e.printStackTrace();
         }
 
+        // 索引加载器放在package.preload之后, 在查找package.path之前找到模块
         AssetLoaderFunc assetLoader = new AssetLoaderFunc(this.mLuaState,
                 context);
         assetLoader.setSubDirectory("luas");
+        BytecodeCache cache = new BytecodeCache(context);
+        assetLoader.setBytecodeCache(cache);
+        // 删除已删除脚本的缓存, 在后台进行
+        cache.pruneAsync();
+        boolean indexed = false;
         try {
-            this.addLuaLoader(assetLoader);
+            this.insertLuaLoader(assetLoader, 2);
+            indexed = true;
         } catch (LuaException e) {
             e.printStackTrace();
         }
 
-        this.addSearchPath(context.getFilesDir().getAbsolutePath());
+        try {
+            LuaMetrics.register(this.mLuaState);
+        } catch (LuaException e) {
+            e.printStackTrace();
+        }
 
+        this.addSearchPath(context.getFilesDir().getAbsolutePath());
+        if (indexed) {
+            // 索引只建立一次, 包含assets和目前所有的搜索目录
+            this.mAssetLoader = assetLoader;
+            this.rebuildModuleIndex();
+        }
+        StartupTimeline.end("engine", "useExtend", start);
     }
 
     private String safeEvalLua(String src) {
@@ -237,16 +945,19 @@ public class LuaEngine {
     }
 
     private void evalLua(String src) throws LuaException {
-        this.mLuaState.setTop(0);
-        int error = this.mLuaState.LloadString(src);
-        if (error == 0) {
-            error = this.mLuaState.pcall(0, 0, 0);
+        synchronized (this.mLuaState) {
+            this.mLuaState.setTop(0);
+            int error = this.mLuaState.LloadString(src);
             if (error == 0) {
-                return;
+                error = this.pcall(this.mLuaState, 0, 0, "lua:executeString",
+                        null);
+                if (error == 0) {
+                    return;
+                }
             }
-        }
 
-        throw this.generateLuaException(error);
+            throw this.generateLuaException(error);
+        }
     }
 
     public String printStackTrace() {
@@ -275,7 +986,7 @@ public class LuaEngine {
         return "Unknown error " + error;
     }
 
-    private LuaException generateLuaException(int errorCode) {
+    LuaException generateLuaException(int errorCode) {
         return new LuaException(this.errorReason(errorCode) + ": "
                 + this.mLuaState.toString(-1));
     }
@@ -0,0 +1,206 @@
+package com.android.lua.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.keplerproject.luajava.LuaException;
+import org.keplerproject.luajava.LuaObject;
+import org.keplerproject.luajava.LuaState;
+
+/**
+ * 独立的脚本环境.
+ * <p>
+ * 环境是一张空表, 读取不到的全局变量从所有环境共享的只读基础环境中读取, 写入的全局变量只保存在环境中,
+ * 因此不同环境中的脚本不会互相覆盖全局变量, 已加载的模块和标准库仍然共享. 环境中的_G指向环境自身,
+ * 环境的元表对脚本不可见也不可修改. 隔离只针对全局变量, 脚本仍可修改共享的表(如string).
+ * <p>
+ * {@link #loadModule(String)}在环境中执行模块脚本, 每个环境得到模块自己的一份.
+ * <p>
+ * 创建环境只需新建一张表; 关闭环境后, 其中所有的全局变量随环境一起被回收.
+ * @author lizhennian
+ * @version 0.0.1
+ */
+public class LuaEnvironment {
+    private final LuaEngine mEngine;
+    private final LuaState mLuaState;
+    private LuaObject mTable;
+    /** 在环境中加载的模块, 关闭环境时释放. */
+    private final List<LuaEngine.ModuleHandle> mModules = new ArrayList<LuaEngine.ModuleHandle>();
+
+    LuaEnvironment(LuaEngine engine, LuaObject table) {
+        this.mEngine = engine;
+        this.mLuaState = table.getLuaState();
+        this.mTable = table;
+    }
+
+    /**
+     * 返回环境表.
+     */
+    public LuaObject getTable() {
+        this.checkOpen();
+        return this.mTable;
+    }
+
+    /**
+     * 在环境中执行包含脚本代码的字符串.
+     * @param codes
+     *            包含脚本代码的字符串
+     * @throws LuaException
+     *             执行脚本失败时抛出
+     */
+    public void executeString(String codes) throws LuaException {
+        synchronized (this.mLuaState) {
+            this.checkOpen();
+            this.execute(this.mLuaState.LloadString(codes), "lua:executeString",
+                    null);
+        }
+    }
+
+    /**
+     * 在环境中执行脚本文件.
+     * @param filename
+     *            脚本文件名称
+     * @throws LuaException
+     *             执行脚本文件失败时抛出
+     */
+    public void executeScriptFile(String filename) throws LuaException {
+        synchronized (this.mLuaState) {
+            this.checkOpen();
+            this.execute(this.mLuaState.LloadFile(filename), "lua:dofile ",
+                    filename);
+        }
+    }
+
+    /**
+     * 在环境中加载模块: 按require的方式找到模块脚本, 在环境中执行. 模块不放入package.loaded,
+     * 每次调用都重新执行脚本; 脚本中require的其他模块仍然共享.
+     * @param moduleName
+     *            模块名称
+     * @return 模块句柄, 关闭环境时释放
+     * @throws LuaException
+     *             加载模块失败, 或模块不是表时抛出
+     */
+    public LuaEngine.ModuleHandle loadModule(String moduleName)
+            throws LuaException {
+        synchronized (this.mLuaState) {
+            this.checkOpen();
+
+            long start = StartupTimeline.begin();
+            int top = this.mLuaState.getTop();
+            try {
+                int error = this.mEngine.loadModuleChunk(moduleName);
+                if (error == 0) {
+                    this.mTable.push();
+                    this.mLuaState.setFEnv(-2);
+                    this.mLuaState.pushString(moduleName);
+                    error = this.mEngine.pcall(this.mLuaState, 1, 1,
+                            "lua:require ", moduleName);
+                }
+                if (error != 0) {
+                    throw this.mEngine.generateLuaException(error);
+                }
+
+                // 模块脚本没有返回表时, 使用环境中与模块同名的全局表
+                if (!this.mLuaState.isTable(-1)) {
+                    this.mTable.push();
+                    this.mLuaState.getField(-1, moduleName);
+                }
+                if (!this.mLuaState.isTable(-1)) {
+                    throw new LuaException("Module " + moduleName
+                            + " is not a table");
+                }
+
+                LuaEngine.ModuleHandle handle = this.mEngine.new ModuleHandle(
+                        moduleName, this.mLuaState.getLuaObject(-1));
+                this.mModules.add(handle);
+                return handle;
+            } finally {
+                this.mLuaState.setTop(top);
+                StartupTimeline.end("require", moduleName, start);
+            }
+        }
+    }
+
+    /**
+     * 执行环境中的方法. 方法在环境中找不到时从全局表中查找.
+     * @param functionName
+     *            方法名称
+     * @param args
+     *            方法参数
+     * @throws LuaException
+     *             执行方法失败时抛出
+     */
+    public void executeFunction(String functionName, Object... args)
+            throws LuaException {
+        synchronized (this.mLuaState) {
+            this.checkOpen();
+
+            int top = this.mLuaState.getTop();
+            try {
+                this.mTable.push();
+                this.mLuaState.getField(-1, functionName);
+                this.mLuaState.remove(-2);
+
+                for (Object param : args) {
+                    this.mLuaState.pushJavaObject(param);
+                }
+
+                int error = this.mEngine.pcall(this.mLuaState, args.length, 0,
+                        "lua:call ", functionName);
+                if (error != 0) {
+                    throw this.mEngine.generateLuaException(error);
+                }
+            } finally {
+                this.mLuaState.setTop(top);
+            }
+        }
+    }
+
+    /**
+     * 关闭环境, 释放环境中的全局变量和加载的模块. 关闭后环境不可再使用.
+     */
+    public void close() {
+        synchronized (this.mLuaState) {
+            for (LuaEngine.ModuleHandle handle : this.mModules) {
+                handle.release();
+            }
+            this.mModules.clear();
+
+            if (this.mTable != null) {
+                this.mTable.close();
+                this.mTable = null;
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return this.mTable == null;
+    }
+
+    /**
+     * 把栈顶已加载的代码块放到环境中执行.
+     */
+    private void execute(int error, String section, String name)
+            throws LuaException {
+        int top = this.mLuaState.getTop();
+        try {
+            if (error == 0) {
+                this.mTable.push();
+                this.mLuaState.setFEnv(-2);
+                error = this.mEngine.pcall(this.mLuaState, 0, 0, section, name);
+            }
+
+            if (error != 0) {
+                throw this.mEngine.generateLuaException(error);
+            }
+        } finally {
+            this.mLuaState.setTop(top - 1);
+        }
+    }
+
+    private void checkOpen() {
+        if (this.mTable == null) {
+            throw new IllegalStateException("LuaEnvironment is closed.");
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.android.lua.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import org.keplerproject.luajava.TraceEventWriter;
+
+import android.os.Process;
+
+/**
+ * 启动耗时记录.
+ * <p>
+ * 开启后记录引擎创建, openLibs, useExtend, 每个模块的读取(read), 编译(compile)和执行(run),
+ * 以及模块方法的调用. 时间来自System.nanoTime(). 结果可以输出为表格, 或输出为Chrome
+ * trace-event JSON, 在chrome://tracing或Perfetto中查看. 嵌套的阶段(如模块执行中的require)
+ * 计入外层阶段的耗时.
+ * <p>
+ * 关闭时(默认)每个记录点只有一次volatile读取, 不分配对象. 需要在
+ * {@link LuaEngine#getInstance()}之前开启才能记录引擎创建.
+ * @author lizhennian
+ * @version 0.0.1
+ */
+public final class StartupTimeline {
+
+    /** 最多保留的事件数, 忘记关闭时不会无限增长. */
+    private static final int MAX_EVENTS = 4096;
+
+    private static volatile boolean sEnabled;
+
+    private static final List<Event> sEvents = new ArrayList<Event>();
+
+    private StartupTimeline() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * 开始一个阶段.
+     * @return 开始时间, 未开启时为0
+     */
+    public static long begin() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * 结束一个阶段.
+     * @param category
+     *            分类, 如engine, module
+     * @param name
+     *            阶段名称
+     * @param start
+     *            {@link #begin()}的返回值, 为0时不记录
+     */
+    public static void end(String category, String name, long start) {
+        if (start == 0) {
+            return;
+        }
+
+        long end = System.nanoTime();
+        Event event = new Event(category, name, start, end - start, Thread
+                .currentThread().getId());
+        synchronized (sEvents) {
+            if (sEvents.size() < MAX_EVENTS) {
+                sEvents.add(event);
+            }
+        }
+    }
+
+    /**
+     * 清除已记录的事件.
+     */
+    public static void clear() {
+        synchronized (sEvents) {
+            sEvents.clear();
+        }
+    }
+
+    /**
+     * 按开始时间输出表格, 时间单位为毫秒, 开始时间相对于第一个事件.
+     */
+    public static String dumpTable() {
+        List<Event> events = snapshot();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%10s %10s  %-10s %s%n",
+                "start(ms)", "dur(ms)", "category", "name"));
+        long origin = events.isEmpty() ? 0 : events.get(0).mStart;
+        for (Event event : events) {
+            sb.append(String.format(Locale.US, "%10.3f %10.3f  %-10s %s%n",
+                    (event.mStart - origin) / 1e6, event.mDuration / 1e6,
+                    event.mCategory, event.mName));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 以Chrome trace-event格式输出.
+     * @param writer
+     *            输出目标, 不会被关闭
+     * @throws IOException
+     *             写入失败时抛出
+     */
+    public static void writeChromeTrace(Writer writer) throws IOException {
+        TraceEventWriter out = new TraceEventWriter(writer, Process.myPid());
+        for (Event event : snapshot()) {
+            out.complete(event.mName, event.mCategory, event.mThreadId,
+                    event.mStart, event.mDuration);
+        }
+        out.finish();
+    }
+
+    private static List<Event> snapshot() {
+        List<Event> events;
+        synchronized (sEvents) {
+            events = new ArrayList<Event>(sEvents);
+        }
+        // 事件在结束时记录, 按开始时间重新排序
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event lhs, Event rhs) {
+                return lhs.mStart < rhs.mStart ? -1
+                        : (lhs.mStart == rhs.mStart ? 0 : 1);
+            }
+        });
+        return events;
+    }
+
+    private static final class Event {
+        final String mCategory;
+        final String mName;
+        final long mStart;
+        final long mDuration;
+        final long mThreadId;
+
+        Event(String category, String name, long start, long duration,
+                long threadId) {
+            this.mCategory = category;
+            this.mName = name;
+            this.mStart = start;
+            this.mDuration = duration;
+            this.mThreadId = threadId;
+        }
+    }
+}
@@ -2,26 +2,52 @@ package com.android.lua.core.extend;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.keplerproject.luajava.JavaFunction;
 import org.keplerproject.luajava.LuaException;
+import org.keplerproject.luajava.LuaObject;
 import org.keplerproject.luajava.LuaState;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.Log;
 
+import com.android.lua.core.StartupTimeline;
+
 /**
  * Lua加载器.
+ * <p>
+ * 调用{@link #buildIndex(File...)}后, 加载器只在索引中查找模块: 一次哈希查找就能确定模块位置,
+ * 索引中没有的模块直接报错, 不再访问文件系统.
+ * <p>
+ * 设置{@link BytecodeCache}后, 编译好的字节码保存到缓存中, 下次加载时跳过解析和编译.
  * @author lizhennian
  * @version 0.0.1
  */
 public class AssetLoaderFunc extends JavaFunction {
     private static final String TAG = "AssetLoaderFunc";
+    private static final String LUA_SUFFIX = ".lua";
     private final Context mContext;
     private String mSubDirectory;
+    /** 模块名到脚本位置的索引, 未建立索引时为null. */
+    private volatile Map<String, ModuleSource> mIndex;
+    /** 索引中找不到模块时是否交给后面的加载器. */
+    private boolean mFallThrough;
+    /** 字节码缓存, 为null时每次都编译源码. */
+    private BytecodeCache mBytecodeCache;
+    /** 把JavaFunction包装为lua方法, require只接受lua方法. 开启启动耗时记录后才创建. */
+    private LuaObject mFunctionWrapper;
 
     public AssetLoaderFunc(LuaState L, Context context) {
         super(L);
@@ -37,18 +63,157 @@ public class AssetLoaderFunc extends JavaFunction {
         this.mSubDirectory = subdir;
     }
 
+    /**
+     * 建立模块索引: 扫描asset子目录和给定目录下的所有.lua文件. 模块名与原来的查找方式一致:
+     * asset中的a.b.lua对应模块a.b; 目录中的a/b.lua对应模块a.b, 并且优先于asset中的同名模块.
+     * 多个目录中有同名模块时, 与package.path一样先列出的目录优先.
+     * 目录中的脚本有增删时需要重新建立索引.
+     * @param directories
+     *            按package.path方式查找的目录
+     */
+    public synchronized void buildIndex(File... directories) {
+        long start = StartupTimeline.begin();
+        Map<String, ModuleSource> index = new HashMap<String, ModuleSource>();
+        try {
+            this.indexAssets(this.mContext.getAssets(),
+                    this.mSubDirectory == null ? "" : this.mSubDirectory, "",
+                    index);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot index assets", e);
+        }
+        for (File directory : directories) {
+            indexDirectory(directory, "", index);
+        }
+        this.mIndex = index;
+        StartupTimeline.end("engine", "buildIndex", start);
+        Log.d(TAG, "Indexed " + index.size() + " modules");
+    }
+
+    /**
+     * 把一个目录加入已建立的索引, 只扫描这个目录. 已在索引中的目录优先于新加入的目录.
+     * 还没有建立索引时不做任何事.
+     */
+    public synchronized void addIndexDirectory(File directory) {
+        if (this.mIndex == null) {
+            return;
+        }
+
+        long start = StartupTimeline.begin();
+        // 复制后替换, 查找时不需要加锁
+        Map<String, ModuleSource> index = new HashMap<String, ModuleSource>(
+                this.mIndex);
+        indexDirectory(directory, "", index);
+        this.mIndex = index;
+        StartupTimeline.end("engine", "addIndexDirectory", start);
+    }
+
+    /**
+     * 设置字节码缓存, 为null时不使用缓存.
+     */
+    public void setBytecodeCache(BytecodeCache cache) {
+        this.mBytecodeCache = cache;
+    }
+
+    /**
+     * 设置索引中找不到模块时是否交给package.loaders中后面的加载器, 默认直接报错.
+     * 在本加载器之后添加了其他加载器时需要打开.
+     */
+    public void setFallThrough(boolean fallThrough) {
+        this.mFallThrough = fallThrough;
+    }
+
+    private void indexAssets(AssetManager am, String dir, String prefix,
+            Map<String, ModuleSource> index) throws IOException {
+        for (String entry : am.list(dir)) {
+            String path = dir.length() == 0 ? entry : dir + "/" + entry;
+            if (entry.endsWith(LUA_SUFFIX)) {
+                String name = prefix
+                        + entry.substring(0, entry.length() - LUA_SUFFIX.length());
+                index.put(name, new ModuleSource(path, true));
+            } else if (entry.indexOf('.') < 0) {
+                // 没有扩展名的当作目录, asset只能通过list判断
+                this.indexAssets(am, path, prefix + entry + "/", index);
+            }
+        }
+    }
+
+    private static void indexDirectory(File dir, String prefix,
+            Map<String, ModuleSource> index) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String entry = file.getName();
+            if (file.isDirectory()) {
+                // 字节码缓存目录中没有脚本
+                if (prefix.length() != 0
+                        || !BytecodeCache.DIRECTORY.equals(entry)) {
+                    indexDirectory(file, prefix + entry + ".", index);
+                }
+            } else if (entry.endsWith(LUA_SUFFIX)
+                    && entry.indexOf('.') == entry.length() - LUA_SUFFIX.length()) {
+                // 文件名中的点在package.path中会被当作目录分隔符, 这样的文件找不到
+                String name = prefix
+                        + entry.substring(0, entry.length() - LUA_SUFFIX.length());
+                ModuleSource existing = index.get(name);
+                if (existing == null || existing.mAsset) {
+                    index.put(name, new ModuleSource(file.getAbsolutePath(),
+                            false));
+                }
+            }
+        }
+    }
+
     @Override
     public int execute() throws LuaException {
-        String name = this.mLuaState.toString(-1);
+        String name = this.argString(-1);
         Log.d(TAG, "Require module name : " + name);
 
+        Map<String, ModuleSource> index = this.mIndex;
+        ModuleSource source = null;
+        if (index != null) {
+            source = index.get(name);
+            if (source == null) {
+                if (this.mFallThrough) {
+                    this.mLuaState.pushString("\n\tno module '" + name
+                            + "' in the module index");
+                    return 1;
+                }
+                return this.error("module '" + name
+                        + "' not found in the module index");
+            }
+        }
+
         AssetManager am = this.mContext.getAssets();
         try {
-            String filename = this.mSubDirectory == null ? name + ".lua"
-                    : this.mSubDirectory + File.separator + name + ".lua";
-            InputStream is = am.open(filename);
-            byte[] bytes = readAll(is);
-            this.mLuaState.LloadBuffer(bytes, name);
+            String chunkName = name;
+            String path;
+            long start = StartupTimeline.begin();
+            ByteBuffer chunk;
+            if (source == null) {
+                path = this.mSubDirectory == null ? name + LUA_SUFFIX
+                        : this.mSubDirectory + File.separator + name
+                                + LUA_SUFFIX;
+                chunk = readAsset(am, path);
+            } else if (source.mAsset) {
+                path = source.mPath;
+                chunk = readAsset(am, path);
+            } else {
+                path = source.mPath;
+                chunk = readFile(path);
+                chunkName = "@" + path;
+            }
+            StartupTimeline.end("read", name, start);
+
+            start = StartupTimeline.begin();
+            int error = this.load(path, chunk, chunkName);
+            StartupTimeline.end("compile", name, start);
+
+            if (error == 0 && StartupTimeline.isEnabled()) {
+                this.wrapTimed(name);
+            }
             return 1;
         } catch (Exception e) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
@@ -59,14 +224,172 @@ public class AssetLoaderFunc extends JavaFunction {
         }
     }
 
-    private static byte[] readAll(InputStream input) throws Exception {
-        ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
-        byte[] buffer = new byte[4096];
+    /**
+     * 加载代码块: 有可用的缓存时加载字节码, 否则编译源码并在后台写入缓存.
+     * 缓存的字节码加载失败时删除缓存, 改用源码.
+     */
+    private int load(String path, ByteBuffer chunk, String chunkName) {
+        BytecodeCache cache = this.mBytecodeCache;
+        if (cache == null) {
+            return this.mLuaState.LloadBuffer(chunk, chunkName);
+        }
+
+        // 文件中的脚本和asset可能同名, 用前缀区分
+        String key = chunkName.charAt(0) == '@' ? path
+                : BytecodeCache.ASSET_PREFIX + path;
+        long checksum = BytecodeCache.checksum(chunk);
+        byte[] code = cache.read(key, checksum);
+        if (code != null) {
+            if (this.mLuaState.LloadBuffer(code, chunkName) == 0) {
+                return 0;
+            }
+            Log.w(TAG, "Cannot load cached " + key + ": "
+                    + this.mLuaState.toString(-1));
+            this.mLuaState.pop(1);
+            cache.remove(key);
+        }
+
+        int error = this.mLuaState.LloadBuffer(chunk, chunkName);
+        if (error == 0) {
+            code = this.mLuaState.dump(-1);
+            if (code != null) {
+                cache.writeAsync(key, checksum, code);
+            }
+        }
+        return error;
+    }
+
+    /**
+     * 读取asset. 未压缩的asset直接映射到内存, 不做拷贝; 压缩的asset读入数组.
+     */
+    private static ByteBuffer readAsset(AssetManager am, String filename)
+            throws IOException {
+        AssetFileDescriptor afd = null;
+        try {
+            afd = am.openFd(filename);
+        } catch (FileNotFoundException e) {
+            // 压缩的asset不能映射
+        }
+
+        if (afd != null) {
+            FileInputStream fis = new FileInputStream(afd.getFileDescriptor());
+            try {
+                // 关闭流和通道后映射依然有效
+                return fis.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        afd.getStartOffset(), afd.getLength());
+            } finally {
+                fis.close();
+                afd.close();
+            }
+        }
+
+        InputStream is = am.open(filename);
+        try {
+            return readAll(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 读取文件, 映射到内存.
+     */
+    private static ByteBuffer readFile(String path) throws IOException {
+        FileInputStream is = new FileInputStream(path);
+        try {
+            FileChannel channel = is.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * 把栈顶的代码块替换为记录执行耗时的lua方法.
+     */
+    private void wrapTimed(String name) throws LuaException {
+        LuaObject loaded = this.mLuaState.getLuaObject(-1);
+        this.mLuaState.pop(1);
+
+        if (this.mFunctionWrapper == null) {
+            // 把包装方法的环境传给代码块, setfenv设置在包装方法上时代码块也在同一环境中执行
+            this.mLuaState.LloadString("local f = ... local getfenv = getfenv"
+                    + " return function(...) return f(getfenv(1), ...) end");
+            this.mFunctionWrapper = this.mLuaState.getLuaObject(-1);
+            this.mLuaState.pop(1);
+        }
+
+        this.mFunctionWrapper.push();
+        this.mLuaState.pushJavaFunction(new TimedChunkFunc(this.mLuaState,
+                name, loaded));
+        this.mLuaState.pcall(1, 1, 0);
+    }
+
+    /**
+     * 执行模块代码块并记录耗时, 只在开启启动耗时记录时使用.
+     */
+    private static class TimedChunkFunc extends JavaFunction {
+        private final String mName;
+        private final LuaObject mChunk;
+
+        TimedChunkFunc(LuaState L, String name, LuaObject chunk) {
+            super(L);
+            this.mName = name;
+            this.mChunk = chunk;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            // 第一个参数是方法自身, 第二个参数是包装方法的环境, 其余参数原样传给代码块
+            int top = this.mLuaState.getTop();
+            long start = StartupTimeline.begin();
+            this.mChunk.push();
+            this.mLuaState.pushValue(2);
+            this.mLuaState.setFEnv(-2);
+            for (int i = 3; i <= top; i++) {
+                this.mLuaState.pushValue(i);
+            }
+
+            int error = this.mLuaState.pcall(top - 2, 1, 0);
+            StartupTimeline.end("run", this.mName, start);
+            this.mChunk.close();
+
+            return error == 0 ? 1 : ERROR;
+        }
+    }
+
+    /**
+     * 索引中模块脚本的位置.
+     */
+    private static class ModuleSource {
+        final String mPath;
+        /** mPath是asset路径还是文件路径. */
+        final boolean mAsset;
+
+        ModuleSource(String path, boolean asset) {
+            this.mPath = path;
+            this.mAsset = asset;
+        }
+    }
+
+    private static ByteBuffer readAll(InputStream input) throws IOException {
+        byte[] buffer = new byte[Math.max(input.available(), 4096)];
+        int count = 0;
         int n = 0;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
+        while (-1 != (n = input.read(buffer, count, buffer.length - count))) {
+            count += n;
+            if (count == buffer.length) {
+                // available()通常就是准确长度, 先确认是否已读完
+                int b = input.read();
+                if (b == -1) {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[count++] = (byte) b;
+            }
         }
-        return output.toByteArray();
+        return ByteBuffer.wrap(buffer, 0, count);
     }
 
 }
@@ -0,0 +1,292 @@
+package com.android.lua.core.extend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 编译后字节码的磁盘缓存, 保存在filesDir下.
+ * <p>
+ * 每个脚本对应一个缓存文件, 以脚本路径, 应用的更新时间和脚本内容的校验值为键. 任何一项不匹配,
+ * 或者缓存文件损坏时都返回null, 由调用者重新编译源码. 写入先写临时文件再重命名, 不会留下写了一半的缓存.
+ * <p>
+ * {@link #writeAsync(String, long, byte[])}和{@link #pruneAsync()}在同一个后台线程中依次执行,
+ * 不阻塞脚本加载.
+ * @author lizhennian
+ * @version 0.0.1
+ */
+public class BytecodeCache {
+    private static final String TAG = "BytecodeCache";
+    /** filesDir下的缓存目录, 建立模块索引时跳过. */
+    static final String DIRECTORY = "luacache";
+    /** asset中脚本的路径前缀, 与filesDir中的同名脚本区分. */
+    static final String ASSET_PREFIX = "asset:";
+    private static final String SUFFIX = ".luac";
+    private static final String TMP_SUFFIX = ".tmp";
+    /** 后台线程空闲多久后退出, 毫秒. */
+    private static final long WRITER_KEEP_ALIVE = 3000;
+    private static final int MAGIC = 0x4c554143;
+    private static final int VERSION = 1;
+    private final File mDirectory;
+    /** 应用的更新时间, 覆盖安装后所有缓存失效. */
+    private final long mAppStamp;
+    /** 写入和清理缓存的后台线程, 第一次使用时创建. */
+    private ThreadPoolExecutor mWriter;
+
+    public BytecodeCache(Context context) {
+        this.mDirectory = new File(context.getFilesDir(), DIRECTORY);
+        this.mAppStamp = appStamp(context);
+    }
+
+    /**
+     * 计算脚本内容的校验值, 不改变buffer的position.
+     */
+    public static long checksum(ByteBuffer source) {
+        CRC32 crc = new CRC32();
+        if (source.hasArray()) {
+            crc.update(source.array(),
+                    source.arrayOffset() + source.position(),
+                    source.remaining());
+        } else {
+            ByteBuffer buff = source.duplicate();
+            byte[] bytes = new byte[Math.min(buff.remaining(), 8192)];
+            while (buff.hasRemaining()) {
+                int n = Math.min(buff.remaining(), bytes.length);
+                buff.get(bytes, 0, n);
+                crc.update(bytes, 0, n);
+            }
+        }
+        // 长度放在高位, 减少只用32位校验值时的碰撞
+        return ((long) source.remaining() << 32) | crc.getValue();
+    }
+
+    /**
+     * 读取缓存的字节码.
+     * @param path
+     *            脚本路径
+     * @param checksum
+     *            脚本内容的校验值, 由{@link #checksum(ByteBuffer)}计算
+     * @return 字节码, 没有缓存或缓存已失效时为null
+     */
+    public byte[] read(String path, long checksum) {
+        File file = this.fileOf(path);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != this.mAppStamp
+                    || in.readLong() != checksum || !path.equals(in.readUTF())) {
+                return null;
+            }
+
+            int length = in.readInt();
+            long crc = in.readLong();
+            if (length < 0 || length > file.length()) {
+                Log.w(TAG, "Corrupted cache of " + path);
+                return null;
+            }
+            byte[] code = new byte[length];
+            in.readFully(code);
+
+            CRC32 actual = new CRC32();
+            actual.update(code);
+            if (actual.getValue() != crc) {
+                Log.w(TAG, "Corrupted cache of " + path);
+                return null;
+            }
+            return code;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read cache of " + path, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * 在后台线程中写入字节码, 调用后code不能再修改.
+     * @see #write(String, long, byte[])
+     */
+    public void writeAsync(final String path, final long checksum,
+            final byte[] code) {
+        this.writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                BytecodeCache.this.write(path, checksum, code);
+            }
+        });
+    }
+
+    /**
+     * 写入字节码. 写入失败只记录日志, 下次启动重新编译.
+     */
+    public void write(String path, long checksum, byte[] code) {
+        if (!this.mDirectory.isDirectory() && !this.mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + this.mDirectory);
+            return;
+        }
+
+        File file = this.fileOf(path);
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            CRC32 crc = new CRC32();
+            crc.update(code);
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(this.mAppStamp);
+            out.writeLong(checksum);
+            out.writeUTF(path);
+            out.writeInt(code.length);
+            out.writeLong(crc.getValue());
+            out.write(code);
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write cache of " + path, e);
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * 删除脚本的缓存, 缓存的字节码加载失败时调用.
+     */
+    public void remove(String path) {
+        this.fileOf(path).delete();
+    }
+
+    /**
+     * 在后台线程中删除失效的缓存: 应用更新前写入的, 脚本文件已被删除的, 损坏的, 以及写了一半的临时文件.
+     * asset中的脚本只随应用更新变化, 由应用的更新时间判断.
+     */
+    public void pruneAsync() {
+        this.writer().execute(new Runnable() {
+            @Override
+            public void run() {
+                BytecodeCache.this.prune();
+            }
+        });
+    }
+
+    private void prune() {
+        File[] files = this.mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        int removed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            // 与写入在同一个线程中执行, 临时文件都是之前中断时留下的
+            boolean stale = name.endsWith(SUFFIX) ? this.isOrphan(file)
+                    : name.endsWith(TMP_SUFFIX);
+            if (stale && file.delete()) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            Log.d(TAG, "Removed " + removed + " stale cache files");
+        }
+    }
+
+    private boolean isOrphan(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file), 512));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != this.mAppStamp) {
+                return true;
+            }
+
+            in.readLong();
+            String path = in.readUTF();
+            return !path.startsWith(ASSET_PREFIX) && !new File(path).isFile();
+        } catch (IOException e) {
+            return true;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor writer() {
+        if (this.mWriter == null) {
+            this.mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "lua-bytecode-cache");
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            this.mWriter.allowCoreThreadTimeOut(true);
+        }
+        return this.mWriter;
+    }
+
+    private File fileOf(String path) {
+        // FNV-1a, 路径本身保存在缓存文件中, 碰撞时视为失效
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return new File(this.mDirectory, Long.toHexString(hash) + SUFFIX);
+    }
+
+    private static long appStamp(Context context) {
+        if (Build.VERSION.SDK_INT >= 9) {
+            try {
+                return context.getPackageManager().getPackageInfo(
+                        context.getPackageName(), 0).lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Cannot get package info", e);
+            }
+        }
+        return new File(context.getPackageCodePath()).lastModified();
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+}
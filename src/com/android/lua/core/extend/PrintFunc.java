@@ -22,21 +22,21 @@ public class PrintFunc extends JavaFunction {
         StringBuilder logBuilder = new StringBuilder();
 
         for (int i = 2; i <= this.mLuaState.getTop(); i++) {
-            int type = this.mLuaState.type(i);
-            String stype = this.mLuaState.typeName(type);
+            int type = this.argType(i);
             String val = null;
-            if (stype.equals("userdata")) {
+            if (type == LuaState.LUA_TUSERDATA
+                    || type == LuaState.LUA_TLIGHTUSERDATA) {
                 Object obj = this.mLuaState.toJavaObject(i);
                 if (obj != null) {
                     val = obj.toString();
                 }
-            } else if (stype.equals("boolean")) {
-                val = this.mLuaState.toBoolean(i) ? "true" : "false";
+            } else if (type == LuaState.LUA_TBOOLEAN) {
+                val = this.argBoolean(i) ? "true" : "false";
             } else {
-                val = this.mLuaState.toString(i);
+                val = this.argString(i);
             }
             if (val == null) {
-                val = stype;
+                val = this.mLuaState.typeName(type);
             }
 
             logBuilder.append(val);
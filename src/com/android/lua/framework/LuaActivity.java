@@ -9,6 +9,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 
 import com.android.lua.core.LuaEngine;
+import com.android.lua.core.LuaEnvironment;
 
 /**
  * Lua base activity.
@@ -20,6 +21,12 @@ public abstract class LuaActivity extends Activity {
 
     private String mLuaMainModuleName;
 
+    /** 本页面独立的脚本环境, 页面销毁时关闭. */
+    private LuaEnvironment mLuaEnvironment;
+
+    /** 在本页面环境中加载的主模块, 加载失败时为null. */
+    private LuaEngine.ModuleHandle mLuaMainModule;
+
     /** Called when the activity is first created. */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -31,9 +38,12 @@ public abstract class LuaActivity extends Activity {
             e.printStackTrace();
         }
 
+        // 主模块在本页面的环境中执行, 页面之间不会互相覆盖全局变量
+        this.mLuaEnvironment = LuaEngine.getInstance().newEnvironment();
+
         try {
-            LuaEngine.getInstance().executeString(
-                    "require('" + this.mLuaMainModuleName + "')");
+            this.mLuaMainModule = this.mLuaEnvironment
+                    .loadModule(this.mLuaMainModuleName);
         } catch (LuaException e) {
             e.printStackTrace();
         }
@@ -72,6 +82,14 @@ public abstract class LuaActivity extends Activity {
     protected void onDestroy() {
         super.onDestroy();
         this.callLuaModuleMethod("onDestroy");
+        this.mLuaEnvironment.close();
+    }
+
+    /**
+     * 返回本页面独立的脚本环境.
+     */
+    protected LuaEnvironment getLuaEnvironment() {
+        return this.mLuaEnvironment;
     }
 
     @Override
@@ -93,9 +111,12 @@ public abstract class LuaActivity extends Activity {
     }
 
     protected void callLuaModuleMethod(String method, Object... args) {
+        if (this.mLuaMainModule == null || this.mLuaEnvironment.isClosed()) {
+            return;
+        }
+
         try {
-            LuaEngine.getInstance().executeModuleFunction(
-                    this.mLuaMainModuleName, method, args);
+            this.mLuaMainModule.call(method, args);
         } catch (LuaException e) {
             e.printStackTrace();
         }
@@ -35,17 +35,27 @@ package org.keplerproject.luajava;
  */
 public abstract class JavaFunction {
 
+    /**
+     * Value returned by {@link #error(String)}, telling Lua to raise the value
+     * on top of the stack as an error
+     */
+    public static final int ERROR = -1;
+
     /**
      * This is the state in which this function will exist.
      */
     protected LuaState mLuaState;
 
+    private LuaResults results;
+
     /**
      * This method is called from Lua. Any parameters can be taken with
      * <code>getParam</code>. A reference to the JavaFunctionWrapper itself is
      * always the first parameter received. Values passed back as results
-     * of the function must be pushed onto the stack.
-     * @return The number of values pushed onto the stack.
+     * of the function must be pushed onto the stack, or collected with
+     * <code>results</code>.
+     * @return The number of values pushed onto the stack, or {@link #ERROR}
+     *         to raise the value on top of the stack as an error.
      */
     public abstract int execute() throws LuaException;
 
@@ -71,6 +81,89 @@ public abstract class JavaFunction {
         return this.mLuaState.getLuaObject(idx);
     }
 
+    /**
+     * Gets the Lua type of a parameter, numbered as in {@link #getParam(int)},
+     * without wrapping it in a LuaObject. {@link LuaState#LUA_TNONE} if there
+     * is no such parameter.
+     */
+    public int argType(int idx) {
+        return this.mLuaState.type(idx);
+    }
+
+    /**
+     * Reads a parameter as a boolean, as Lua does: only nil and false are
+     * false
+     */
+    public boolean argBoolean(int idx) {
+        return this.mLuaState.toBoolean(idx);
+    }
+
+    /**
+     * Reads a parameter as an integer. 0 if it is not a number nor a string
+     * convertible to a number.
+     */
+    public int argInt(int idx) {
+        return this.mLuaState.toInteger(idx);
+    }
+
+    /**
+     * Reads a parameter as a number. 0 if it is not a number nor a string
+     * convertible to a number.
+     */
+    public double argDouble(int idx) {
+        return this.mLuaState.toNumber(idx);
+    }
+
+    /**
+     * Reads a parameter as a string. <code>null</code> if it is not a string
+     * nor a number.
+     */
+    public String argString(int idx) {
+        return this.mLuaState.toString(idx);
+    }
+
+    /**
+     * Reads the bytes of a string parameter. <code>null</code> if it is not a
+     * string nor a number.
+     */
+    public byte[] argBytes(int idx) {
+        return this.mLuaState.toBytes(idx);
+    }
+
+    /**
+     * Gets the builder for the values this call returns, cleared. The same
+     * builder is returned on every call.
+     * @see LuaResults
+     */
+    protected LuaResults results() {
+        if (this.results == null) {
+            this.results = new LuaResults(this.mLuaState);
+        }
+        return this.results.clear();
+    }
+
+    /**
+     * Identifies this function in the bridge metrics
+     * @see LuaMetrics
+     */
+    Object metricKey() {
+        return this.getClass();
+    }
+
+    /**
+     * Makes this call raise a Lua error with the given message, without
+     * throwing a java exception. Must be returned by <code>execute</code>:
+     *
+     * <pre>
+     * return this.error(&quot;bad argument&quot;);
+     * </pre>
+     * @return {@link #ERROR}
+     */
+    protected int error(String message) {
+        this.mLuaState.pushString(message);
+        return ERROR;
+    }
+
     /**
      * Register a JavaFunction with a given name. This method registers in a
      * global variable the JavaFunction specified.
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.Callable;
+
+import android.animation.Animator;
+import android.os.Handler;
+import android.os.Message;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+
+/**
+ * Concrete implementations of the callback interfaces that scripts
+ * implement most often. {@link LuaObject#createProxy(String)} uses them
+ * instead of a {@link java.lang.reflect.Proxy}, so a callback pushes its
+ * arguments with their static types and calls the Lua function directly,
+ * without reflective dispatch or an argument array.
+ * <p>
+ * The adapters follow the conventions of {@link LuaInvocationHandler}: the
+ * function is looked up in the table by the method name on every call and
+ * called without the table as first argument, a missing function does
+ * nothing and returns false, a Lua error surfaces as an
+ * {@link UndeclaredThrowableException} wrapping a {@link LuaException}, and
+ * calls made from other threads run on the owner thread of the state.
+ */
+final class LuaAdapters {
+
+    private LuaAdapters() {
+    }
+
+    /**
+     * Creates the adapter for an interface name, as given to createProxy.
+     * Names are compared as strings so that interfaces missing on older
+     * platforms are never loaded.
+     * @return the adapter, or <code>null</code> if there is none for the
+     *         interface
+     */
+    static Object create(String implem, LuaObject table) {
+        if ("java.lang.Runnable".equals(implem)) {
+            return new RunnableAdapter(table);
+        } else if ("android.view.View$OnClickListener".equals(implem)) {
+            return new OnClickAdapter(table);
+        } else if ("android.text.TextWatcher".equals(implem)) {
+            return new TextWatcherAdapter(table);
+        } else if ("android.widget.AdapterView$OnItemClickListener"
+                .equals(implem)) {
+            return new OnItemClickAdapter(table);
+        } else if ("android.os.Handler$Callback".equals(implem)) {
+            return new HandlerCallbackAdapter(table);
+        } else if ("android.animation.Animator$AnimatorListener"
+                .equals(implem)) {
+            return new AnimatorListenerAdapter(table);
+        }
+        return null;
+    }
+
+    private abstract static class Adapter {
+
+        final LuaObject table;
+
+        final LuaState L;
+
+        /**
+         * Interface implemented, naming the calls in the bridge metrics and
+         * trace sections
+         */
+        final Class<?> type;
+
+        /**
+         * Method being called, set by begin under the state lock
+         */
+        private LuaKey calling;
+
+        Adapter(LuaObject table) {
+            this.table = table;
+            this.L = table.getLuaState();
+            this.type = this.getClass().getInterfaces()[0];
+        }
+
+        LuaKey key(String name) {
+            return this.L.internKey(name);
+        }
+
+        /**
+         * Pushes the function implementing a method
+         * @return the stack top to restore, or -1 if the table does not
+         *         implement the method
+         */
+        int begin(LuaKey name) {
+            int top = this.L.getTop();
+            if (this.L.pushField(this.table.getRef(), name) == LuaState.LUA_TNIL) {
+                this.L.setTop(top);
+                return -1;
+            }
+            this.calling = name;
+            return top;
+        }
+
+        void push(Object obj) {
+            try {
+                this.L.pushObjectValue(obj);
+            } catch (LuaException e) {
+                throw new UndeclaredThrowableException(e);
+            }
+        }
+
+        void invoke(int nargs, int nres) {
+            LuaMetrics.Entry entry = LuaMetrics.isEnabled() ? LuaMetrics
+                    .entry(LuaMetrics.JAVA_TO_LUA, this.calling,
+                            this.type.getName()) : null;
+            long start = entry != null ? System.nanoTime() : 0;
+            LuaTrace.Sink trace = LuaTrace.isEnabled() ? LuaTrace.begin("lua:"
+                    + LuaTrace.simpleName(this.type) + "." + this.calling) : null;
+            int err = this.L.pcall(nargs, nres, 0);
+            LuaTrace.end(trace);
+            if (entry != null) {
+                entry.record(start, err == 0);
+            }
+            if (err != 0) {
+                throw new UndeclaredThrowableException(LuaObject.callError(
+                        this.L, err));
+            }
+        }
+
+        /**
+         * Calls a method taking one object and returning nothing
+         */
+        void call(final LuaKey name, final Object arg) {
+            if (this.L.marshalsCalls() && this.L.postToOwner(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Adapter.this.call(name, arg);
+                    return null;
+                }
+            })) {
+                return;
+            }
+
+            synchronized (this.L) {
+                int top = this.begin(name);
+                if (top < 0) {
+                    return;
+                }
+
+                this.push(arg);
+                this.invoke(1, 0);
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    static final class RunnableAdapter extends Adapter implements Runnable {
+
+        private final LuaKey run;
+
+        RunnableAdapter(LuaObject table) {
+            super(table);
+            this.run = this.key("run");
+        }
+
+        @Override
+        public void run() {
+            if (this.L.marshalsCalls() && this.L.postToOwner(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    RunnableAdapter.this.run();
+                    return null;
+                }
+            })) {
+                return;
+            }
+
+            synchronized (this.L) {
+                int top = this.begin(this.run);
+                if (top < 0) {
+                    return;
+                }
+
+                this.invoke(0, 0);
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    static final class OnClickAdapter extends Adapter implements
+            View.OnClickListener {
+
+        private final LuaKey onClick;
+
+        OnClickAdapter(LuaObject table) {
+            super(table);
+            this.onClick = this.key("onClick");
+        }
+
+        @Override
+        public void onClick(View v) {
+            this.call(this.onClick, v);
+        }
+    }
+
+    static final class TextWatcherAdapter extends Adapter implements
+            TextWatcher {
+
+        private final LuaKey beforeTextChanged;
+
+        private final LuaKey onTextChanged;
+
+        private final LuaKey afterTextChanged;
+
+        TextWatcherAdapter(LuaObject table) {
+            super(table);
+            this.beforeTextChanged = this.key("beforeTextChanged");
+            this.onTextChanged = this.key("onTextChanged");
+            this.afterTextChanged = this.key("afterTextChanged");
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count,
+                int after) {
+            this.textChanged(this.beforeTextChanged, s, start, count, after);
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before,
+                int count) {
+            this.textChanged(this.onTextChanged, s, start, before, count);
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            this.call(this.afterTextChanged, s);
+        }
+
+        private void textChanged(final LuaKey name, final CharSequence s,
+                final int a, final int b, final int c) {
+            if (this.L.marshalsCalls() && this.L.postToOwner(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    TextWatcherAdapter.this.textChanged(name, s, a, b, c);
+                    return null;
+                }
+            })) {
+                return;
+            }
+
+            synchronized (this.L) {
+                int top = this.begin(name);
+                if (top < 0) {
+                    return;
+                }
+
+                this.push(s);
+                this.L.pushNumber(a);
+                this.L.pushNumber(b);
+                this.L.pushNumber(c);
+                this.invoke(4, 0);
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    static final class OnItemClickAdapter extends Adapter implements
+            AdapterView.OnItemClickListener {
+
+        private final LuaKey onItemClick;
+
+        OnItemClickAdapter(LuaObject table) {
+            super(table);
+            this.onItemClick = this.key("onItemClick");
+        }
+
+        @Override
+        public void onItemClick(final AdapterView<?> parent, final View view,
+                final int position, final long id) {
+            if (this.L.marshalsCalls() && this.L.postToOwner(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    OnItemClickAdapter.this.onItemClick(parent, view,
+                            position, id);
+                    return null;
+                }
+            })) {
+                return;
+            }
+
+            synchronized (this.L) {
+                int top = this.begin(this.onItemClick);
+                if (top < 0) {
+                    return;
+                }
+
+                this.push(parent);
+                this.push(view);
+                this.L.pushNumber(position);
+                this.L.pushNumber(id);
+                this.invoke(4, 0);
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    static final class HandlerCallbackAdapter extends Adapter implements
+            Handler.Callback {
+
+        private final LuaKey handleMessage;
+
+        HandlerCallbackAdapter(LuaObject table) {
+            super(table);
+            this.handleMessage = this.key("handleMessage");
+        }
+
+        @Override
+        public boolean handleMessage(final Message msg) {
+            if (this.L.marshalsCalls()) {
+                try {
+                    return this.L.callOnOwner(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return HandlerCallbackAdapter.this
+                                    .handleMessage(msg);
+                        }
+                    });
+                } catch (LuaException e) {
+                    throw new UndeclaredThrowableException(e);
+                }
+            }
+
+            synchronized (this.L) {
+                int top = this.begin(this.handleMessage);
+                if (top < 0) {
+                    return false;
+                }
+
+                this.push(msg);
+                this.invoke(1, 1);
+                boolean handled = this.L.toBoolean(-1);
+                this.L.setTop(top);
+                return handled;
+            }
+        }
+    }
+
+    static final class AnimatorListenerAdapter extends Adapter implements
+            Animator.AnimatorListener {
+
+        private final LuaKey onAnimationStart;
+
+        private final LuaKey onAnimationEnd;
+
+        private final LuaKey onAnimationCancel;
+
+        private final LuaKey onAnimationRepeat;
+
+        AnimatorListenerAdapter(LuaObject table) {
+            super(table);
+            this.onAnimationStart = this.key("onAnimationStart");
+            this.onAnimationEnd = this.key("onAnimationEnd");
+            this.onAnimationCancel = this.key("onAnimationCancel");
+            this.onAnimationRepeat = this.key("onAnimationRepeat");
+        }
+
+        @Override
+        public void onAnimationStart(Animator animation) {
+            this.call(this.onAnimationStart, animation);
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            this.call(this.onAnimationEnd, animation);
+        }
+
+        @Override
+        public void onAnimationCancel(Animator animation) {
+            this.call(this.onAnimationCancel, animation);
+        }
+
+        @Override
+        public void onAnimationRepeat(Animator animation) {
+            this.call(this.onAnimationRepeat, animation);
+        }
+    }
+}
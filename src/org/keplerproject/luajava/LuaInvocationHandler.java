@@ -26,6 +26,9 @@ package org.keplerproject.luajava;
 
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Class that implements the InvocationHandler interface.
@@ -38,6 +41,11 @@ import java.lang.reflect.Method;
 public class LuaInvocationHandler implements InvocationHandler {
     private final LuaObject obj;
 
+    /**
+     * Call plans, built on the first invocation of each method
+     */
+    private final Map<Method, MethodPlan> plans = new HashMap<Method, MethodPlan>();
+
     public LuaInvocationHandler(LuaObject obj) {
         this.obj = obj;
     }
@@ -46,31 +54,251 @@ public class LuaInvocationHandler implements InvocationHandler {
      * Function called when a proxy object function is invoked.
      */
     @Override
-    public Object invoke(Object proxy, Method method, Object[] args)
+    public Object invoke(Object proxy, final Method method,
+            final Object[] args) throws LuaException {
+        LuaState L = this.obj.L;
+        if (!L.marshalsCalls()) {
+            return this.call(method, args);
+        }
+
+        // called from another thread: run on the owner thread, without
+        // waiting when there is no result
+        Callable<Object> call = new Callable<Object>() {
+            @Override
+            public Object call() throws LuaException {
+                return LuaInvocationHandler.this.call(method, args);
+            }
+        };
+        if (method.getReturnType() == Void.TYPE && L.postToOwner(call)) {
+            return null;
+        }
+        return L.callOnOwner(call);
+    }
+
+    /**
+     * Calls the Lua function implementing a method on the current thread
+     */
+    private Object call(Method method, Object[] args) throws LuaException {
+        boolean traced = LuaTrace.isEnabled();
+        if (!traced && !LuaMetrics.isEnabled()) {
+            return this.call(method, args, null);
+        }
+
+        LuaTrace.Sink trace = traced ? LuaTrace.begin("lua:"
+                + LuaTrace.nameOf(method)) : null;
+        LuaMetrics.Entry entry = LuaMetrics.isEnabled() ? LuaMetrics.entry(
+                LuaMetrics.JAVA_TO_LUA, method, null) : null;
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Object ret = this.call(method, args, entry);
+            ok = true;
+            return ret;
+        } finally {
+            if (entry != null) {
+                entry.record(start, ok);
+            }
+            LuaTrace.end(trace);
+        }
+    }
+
+    /**
+     * @param entry
+     *            metrics of the method, <code>null</code> when disabled
+     */
+    private Object call(Method method, Object[] args, LuaMetrics.Entry entry)
             throws LuaException {
-        synchronized (this.obj.L) {
-            String methodName = method.getName();
-            LuaObject func = this.obj.getField(methodName);
+        LuaState L = this.obj.L;
+        synchronized (L) {
+            MethodPlan plan = this.plans.get(method);
+            if (entry != null) {
+                (plan != null ? entry.cacheHits : entry.cacheMisses).add(1);
+            }
+            if (plan == null) {
+                plan = new MethodPlan(L, method);
+                this.plans.put(method, plan);
+            }
 
-            if (func.isNil()) {
-                return null;
+            int top = L.getTop();
+
+            // looked up by the interned name on every call, so a function
+            // reassigned in the table is picked up at once
+            if (L.pushField(this.obj.getRef(), plan.name) == LuaState.LUA_TNIL) {
+                L.setTop(top);
+                return plan.nilResult();
+            }
+
+            int nargs = args == null ? 0 : args.length;
+            for (int i = 0; i < nargs; i++) {
+                plan.pushArg(L, i, args[i]);
+            }
+
+            int err = L.pcall(nargs, plan.resultKind == MethodPlan.VOID ? 0
+                    : 1, 0);
+            if (err != 0) {
+                throw LuaObject.callError(L, err);
+            }
+
+            try {
+                return plan.readResult(L);
+            } finally {
+                L.setTop(top);
+            }
+        }
+    }
+
+    /**
+     * How the arguments of a method are pushed and its result is read,
+     * worked out once from its signature
+     */
+    private static final class MethodPlan {
+
+        static final int OBJECT = 0;
+
+        static final int VOID = 1;
+
+        static final int BOOLEAN = 2;
+
+        static final int NUMBER = 3;
+
+        static final int STRING = 4;
+
+        static final int INT = 5;
+
+        static final int LONG = 6;
+
+        static final int DOUBLE = 7;
+
+        static final int FLOAT = 8;
+
+        static final int SHORT = 9;
+
+        static final int BYTE = 10;
+
+        final LuaKey name;
+
+        final int[] argKinds;
+
+        final int resultKind;
+
+        final Class<?> resultType;
+
+        MethodPlan(LuaState L, Method method) {
+            this.name = L.internKey(method.getName());
+
+            Class<?>[] params = method.getParameterTypes();
+            this.argKinds = new int[params.length];
+            for (int i = 0; i < params.length; i++) {
+                this.argKinds[i] = argKind(params[i]);
             }
 
-            Class retType = method.getReturnType();
-            Object ret;
+            this.resultType = method.getReturnType();
+            this.resultKind = resultKind(this.resultType);
+        }
+
+        private static int argKind(Class<?> type) {
+            if (type == Boolean.TYPE || type == Boolean.class) {
+                return BOOLEAN;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type.isPrimitive() && type != Character.TYPE
+                    || Number.class.isAssignableFrom(type)) {
+                return NUMBER;
+            }
+            return OBJECT;
+        }
+
+        private static int resultKind(Class<?> type) {
+            if (type == Void.TYPE || type == Void.class) {
+                return VOID;
+            } else if (type == Boolean.TYPE) {
+                return BOOLEAN;
+            } else if (type == Integer.TYPE) {
+                return INT;
+            } else if (type == Long.TYPE) {
+                return LONG;
+            } else if (type == Double.TYPE) {
+                return DOUBLE;
+            } else if (type == Float.TYPE) {
+                return FLOAT;
+            } else if (type == Short.TYPE) {
+                return SHORT;
+            } else if (type == Byte.TYPE) {
+                return BYTE;
+            } else if (type == String.class) {
+                return STRING;
+            }
+            return OBJECT;
+        }
 
-            // Checks if returned type is void. if it is returns null.
-            if (retType.equals(Void.class) || retType.equals(void.class)) {
-                func.call(args, 0);
-                ret = null;
+        void pushArg(LuaState L, int i, Object arg) throws LuaException {
+            int kind = i < this.argKinds.length ? this.argKinds[i] : OBJECT;
+            if (arg == null) {
+                L.pushNil();
+            } else if (kind == NUMBER) {
+                L.pushNumber(((Number) arg).doubleValue());
+            } else if (kind == BOOLEAN) {
+                L.pushBoolean(((Boolean) arg).booleanValue());
+            } else if (kind == STRING) {
+                L.pushString((String) arg);
             } else {
-                ret = func.call(args, 1)[0];
-                if (ret != null && ret instanceof Double) {
-                    ret = LuaState.convertLuaNumber((Double) ret, retType);
+                L.pushObjectValue(arg);
+            }
+        }
+
+        Object readResult(LuaState L) throws LuaException {
+            switch (this.resultKind) {
+            case VOID:
+                return null;
+            case BOOLEAN:
+                return Boolean.valueOf(L.toBoolean(-1));
+            case INT:
+                return Integer.valueOf((int) L.toNumber(-1));
+            case LONG:
+                return Long.valueOf((long) L.toNumber(-1));
+            case DOUBLE:
+                return Double.valueOf(L.toNumber(-1));
+            case FLOAT:
+                return Float.valueOf((float) L.toNumber(-1));
+            case SHORT:
+                return Short.valueOf((short) L.toNumber(-1));
+            case BYTE:
+                return Byte.valueOf((byte) L.toNumber(-1));
+            case STRING:
+                return L.toString(-1);
+            default:
+                Object ret = L.toJavaObject(-1);
+                if (ret instanceof Double) {
+                    ret = LuaState.convertLuaNumber((Double) ret,
+                            this.resultType);
                 }
+                return ret;
             }
+        }
 
-            return ret;
+        /**
+         * Result of a method the table does not implement. Primitive
+         * results get their zero value, which the proxy can unbox.
+         */
+        Object nilResult() {
+            switch (this.resultKind) {
+            case BOOLEAN:
+                return Boolean.FALSE;
+            case INT:
+                return Integer.valueOf(0);
+            case LONG:
+                return Long.valueOf(0);
+            case DOUBLE:
+                return Double.valueOf(0);
+            case FLOAT:
+                return Float.valueOf(0);
+            case SHORT:
+                return Short.valueOf((short) 0);
+            case BYTE:
+                return Byte.valueOf((byte) 0);
+            default:
+                return null;
+            }
         }
     }
 }
@@ -63,6 +63,11 @@ public final class LuaJavaAPI {
     public static int objectIndex(int luaState, Object obj, String methodName)
             throws LuaException {
         LuaState L = LuaStateFactory.getExistingState(luaState);
+        boolean metrics = LuaMetrics.isEnabled();
+        long start = metrics ? System.nanoTime() : 0;
+        LuaTrace.Sink trace = LuaTrace.isEnabled() ? LuaTrace.begin("bridge:"
+                + LuaTrace.simpleName(obj instanceof Class ? (Class) obj
+                        : obj.getClass()) + "." + methodName) : null;
 
         try {
             synchronized (L) {
@@ -82,6 +87,7 @@ public final class LuaJavaAPI {
 
                 Method[] methods = clazz.getMethods();
                 Method method = null;
+                int rejected = 0;
 
                 // gets method and arguments
                 for (int i = 0; i < methods.length; i++) {
@@ -135,17 +141,26 @@ public final class LuaJavaAPI {
                         method = methods[i];
                         break;
                     }
+                    rejected++;
 
                 }
 
                 // If method is null means there isn't one receiving the given
                 // arguments
                 if (method == null) {
+                    if (metrics) {
+                        LuaMetrics.Entry entry = LuaMetrics.entry(
+                                LuaMetrics.LUA_TO_JAVA, clazz.getName() + "."
+                                        + methodName, null);
+                        entry.fallbacks.add(rejected);
+                        entry.record(start, false);
+                    }
                     throw new LuaException(
                             "Invalid method call. No such method.");
                 }
 
                 Object ret;
+                boolean ok = false;
                 try {
                     if (Modifier.isPublic(method.getModifiers())) {
                         method.setAccessible(true);
@@ -156,8 +171,16 @@ public final class LuaJavaAPI {
                     } else {
                         ret = method.invoke(obj, objs);
                     }
+                    ok = true;
                 } catch (Exception e) {
                     throw new LuaException(e);
+                } finally {
+                    if (metrics) {
+                        LuaMetrics.Entry entry = LuaMetrics.entry(
+                                LuaMetrics.LUA_TO_JAVA, method, null);
+                        entry.fallbacks.add(rejected);
+                        entry.record(start, ok);
+                    }
                 }
 
                 // Void function returns null
@@ -176,6 +199,36 @@ public final class LuaJavaAPI {
                             + "], err: " + e.getCause() + "\n"
                             + Log.getStackTraceString(e));
             throw e;
+        } finally {
+            LuaTrace.end(trace);
+        }
+    }
+
+    /**
+     * Calls a java function from Lua, recording the call. Used by the native
+     * code instead of {@link JavaFunction#execute()} while bridge metrics
+     * or tracing are enabled.
+     * @param function
+     *            the function called
+     * @return number of returned objects
+     */
+    public static int javaFunctionCall(JavaFunction function)
+            throws LuaException {
+        LuaTrace.Sink trace = LuaTrace.isEnabled() ? LuaTrace.begin("bridge:"
+                + LuaTrace.nameOf(function.metricKey())) : null;
+        LuaMetrics.Entry entry = LuaMetrics.isEnabled() ? LuaMetrics.entry(
+                LuaMetrics.LUA_TO_JAVA, function.metricKey(), null) : null;
+        long start = entry != null ? System.nanoTime() : 0;
+        boolean ok = false;
+        try {
+            int ret = function.execute();
+            ok = ret != JavaFunction.ERROR;
+            return ret;
+        } finally {
+            if (entry != null) {
+                entry.record(start, ok);
+            }
+            LuaTrace.end(trace);
         }
     }
 
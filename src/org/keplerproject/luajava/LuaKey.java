@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+/**
+ * A LuaKey is a field or global name that has already been converted into a
+ * Lua string. It is created by {@link LuaState#internKey(String)}, which
+ * pushes the name once and pins the resulting string in the registry.
+ * <p>
+ * Passing a LuaKey to {@link LuaState#getField(int, LuaKey)},
+ * {@link LuaState#setField(int, LuaKey)}, {@link LuaState#getGlobal(LuaKey)}
+ * or {@link LuaState#setGlobal(LuaKey)} indexes the table with the pinned
+ * string, so the Java string is not converted again on every call.
+ * <p>
+ * A key is only valid for the state that created it (and threads of that
+ * state), and only until it is released with
+ * {@link LuaState#releaseKey(LuaKey)} or the state is closed.
+ */
+public final class LuaKey {
+
+    private final LuaState L;
+
+    private final String name;
+
+    private final int ref;
+
+    LuaKey(LuaState L, String name, int ref) {
+        this.L = L;
+        this.name = name;
+        this.ref = ref;
+    }
+
+    /**
+     * Gets the state that owns this key
+     */
+    public LuaState getLuaState() {
+        return this.L;
+    }
+
+    /**
+     * Gets the name this key was interned from
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Gets the registry reference holding the interned string
+     */
+    int getRef() {
+        return this.ref;
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in metrics of the calls crossing the bridge: methods and java
+ * functions called from Lua, and Lua functions called from java through
+ * {@link LuaObject} calls and proxies.
+ * <p>
+ * Each method or function gets call and error counts, a latency histogram
+ * and, depending on the call path, the number of overload candidates
+ * rejected before a java method matched or the hits and misses of the
+ * proxy call plan cache. Counters are striped across threads and the
+ * histogram is a log-linear array of atomic buckets, so recording takes no
+ * lock. Nothing is recorded while disabled, the default.
+ * <p>
+ * Scripts read the metrics through the <code>luajava.metrics</code>
+ * module, once {@link #register(LuaState)} has been called:
+ *
+ * <pre>
+ * local metrics = require &quot;luajava.metrics&quot;
+ * metrics.enable(true)
+ * print(metrics.dump())
+ * local s = metrics.stats()[&quot;android.widget.TextView.setText&quot;]
+ * </pre>
+ */
+@LuaModule("luajava.metrics")
+public final class LuaMetrics {
+
+    /**
+     * Direction of methods and functions called from Lua
+     */
+    public static final int LUA_TO_JAVA = 0;
+
+    /**
+     * Direction of Lua functions called from java
+     */
+    public static final int JAVA_TO_LUA = 1;
+
+    private static volatile boolean enabled;
+
+    private static final ConcurrentHashMap<Object, Entry> luaToJava = new ConcurrentHashMap<Object, Entry>();
+
+    private static final ConcurrentHashMap<Object, Entry> javaToLua = new ConcurrentHashMap<Object, Entry>();
+
+    private LuaMetrics() {
+    }
+
+    /**
+     * Registers the <code>luajava.metrics</code> module in a state
+     */
+    public static LuaObject register(LuaState L) throws LuaException {
+        return LuaModules.register(L, LuaMetrics.class);
+    }
+
+    @LuaFunction("enable")
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+        LuaState.updateCallInstrumentation();
+    }
+
+    @LuaFunction("enabled")
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Discards everything recorded so far
+     */
+    @LuaFunction
+    public static void reset() {
+        luaToJava.clear();
+        javaToLua.clear();
+    }
+
+    /**
+     * Returns the metrics of every method or function called since the last
+     * reset, the slowest in total first
+     */
+    public static List<Stats> snapshot() {
+        Map<String, Stats> merged = new LinkedHashMap<String, Stats>();
+        merge(merged, luaToJava);
+        merge(merged, javaToLua);
+
+        List<Stats> list = new ArrayList<Stats>(merged.values());
+        Collections.sort(list, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats lhs, Stats rhs) {
+                return lhs.totalNanos > rhs.totalNanos ? -1
+                        : (lhs.totalNanos == rhs.totalNanos ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Adds entries to the stats of their name, merging the entries of keys
+     * that name the same callee, such as those of several states
+     */
+    private static void merge(Map<String, Stats> merged,
+            Map<Object, Entry> entries) {
+        for (Entry entry : entries.values()) {
+            String id = entry.direction + entry.name;
+            Stats stats = merged.get(id);
+            if (stats == null) {
+                stats = new Stats(entry.name, entry.direction);
+                merged.put(id, stats);
+            }
+            stats.add(entry);
+        }
+    }
+
+    /**
+     * Formats the snapshot as a table, one line per method or function
+     */
+    @LuaFunction
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US,
+                "%-4s %9s %6s %6s %6s %6s %10s %10s %10s %10s  %s%n", "dir",
+                "calls", "errors", "fallbk", "hits", "misses", "total(ms)",
+                "p50(us)", "p99(us)", "max(us)", "name"));
+        for (Stats stats : snapshot()) {
+            sb.append(String.format(Locale.US,
+                    "%-4s %9d %6d %6d %6d %6d %10.3f %10.1f %10.1f %10.1f  %s%n",
+                    stats.direction == LUA_TO_JAVA ? "L>J" : "J>L",
+                    stats.calls, stats.errors, stats.fallbacks,
+                    stats.cacheHits, stats.cacheMisses, stats.totalNanos / 1e6,
+                    stats.getPercentile(50) / 1e3,
+                    stats.getPercentile(99) / 1e3, stats.maxNanos / 1e3,
+                    stats.name));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the snapshot as a Lua table indexed by name. Each value is a
+     * table with the fields calls, errors, fallbacks, hits, misses, and the
+     * times total, mean, p50, p90, p99 and max in nanoseconds.
+     */
+    @LuaFunction
+    public static LuaObject stats(LuaState L) {
+        synchronized (L) {
+            L.newTable();
+            for (Stats stats : snapshot()) {
+                L.newTable();
+                setNumber(L, "calls", stats.calls);
+                setNumber(L, "errors", stats.errors);
+                setNumber(L, "fallbacks", stats.fallbacks);
+                setNumber(L, "hits", stats.cacheHits);
+                setNumber(L, "misses", stats.cacheMisses);
+                setNumber(L, "total", stats.totalNanos);
+                setNumber(L, "mean", stats.calls == 0 ? 0 : stats.totalNanos
+                        / stats.calls);
+                setNumber(L, "p50", stats.getPercentile(50));
+                setNumber(L, "p90", stats.getPercentile(90));
+                setNumber(L, "p99", stats.getPercentile(99));
+                setNumber(L, "max", stats.maxNanos);
+                L.setField(-2, stats.name);
+            }
+
+            LuaObject table = L.getLuaObject(-1);
+            L.pop(1);
+            return table;
+        }
+    }
+
+    private static void setNumber(LuaState L, String field, long value) {
+        L.pushNumber(value);
+        L.setField(-2, field);
+    }
+
+    /**
+     * Records a call made outside this package, such as the scripts run by
+     * the engine. Only call it while metrics are enabled.
+     * @param name
+     *            identifies the callee
+     * @param start
+     *            {@link System#nanoTime()} when the call started
+     */
+    public static void record(int direction, String name, long start,
+            boolean ok) {
+        entry(direction, name, null).record(start, ok);
+    }
+
+    /**
+     * Returns the entry of a method or function, creating it on first use.
+     * @param key
+     *            identifies the callee: a Method, a name, or any object
+     *            named by <code>prefix</code> and its string form
+     * @param prefix
+     *            owner prepended to the name of the key, or
+     *            <code>null</code>
+     */
+    static Entry entry(int direction, Object key, String prefix) {
+        ConcurrentHashMap<Object, Entry> entries = direction == LUA_TO_JAVA ? luaToJava
+                : javaToLua;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            String name;
+            if (prefix != null) {
+                name = prefix + "." + key;
+            } else if (key instanceof Class) {
+                name = ((Class<?>) key).getName();
+            } else if (key instanceof Method) {
+                Method method = (Method) key;
+                name = method.getDeclaringClass().getName() + "."
+                        + method.getName();
+            } else {
+                name = String.valueOf(key);
+            }
+
+            entry = new Entry(name, direction);
+            Entry raced = entries.putIfAbsent(key, entry);
+            if (raced != null) {
+                entry = raced;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Metrics of a method or function, updated without locking
+     */
+    static final class Entry {
+
+        final String name;
+
+        final int direction;
+
+        final Counter calls = new Counter();
+
+        final Counter errors = new Counter();
+
+        final Counter fallbacks = new Counter();
+
+        final Counter cacheHits = new Counter();
+
+        final Counter cacheMisses = new Counter();
+
+        final Histogram latency = new Histogram();
+
+        Entry(String name, int direction) {
+            this.name = name;
+            this.direction = direction;
+        }
+
+        /**
+         * Records a call started at <code>start</code>, a
+         * {@link System#nanoTime()} value
+         */
+        void record(long start, boolean ok) {
+            long nanos = System.nanoTime() - start;
+            this.calls.add(1);
+            if (!ok) {
+                this.errors.add(1);
+            }
+            this.latency.record(nanos);
+        }
+    }
+
+    /**
+     * Counter striped across threads, each stripe on its own cache line
+     */
+    static final class Counter {
+
+        private static final int STRIPES = 8;
+
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES
+                * PADDING);
+
+        void add(long n) {
+            int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+            this.cells.addAndGet(stripe * PADDING, n);
+        }
+
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += this.cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in nanoseconds. Values below 16 have a
+     * bucket each; above, every power of two is split into 8 buckets, so a
+     * value is known within 12.5%.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private static final int LINEAR = SUB_BUCKETS * 2;
+
+        static final int SIZE = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(SIZE);
+
+        private final Counter total = new Counter();
+
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            this.buckets.incrementAndGet(index(nanos));
+            this.total.add(nanos);
+
+            long current;
+            while (nanos > (current = this.max.get())
+                    && !this.max.compareAndSet(current, nanos)) {
+                // retry with the value another thread stored
+            }
+        }
+
+        static int index(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS))
+                    & (SUB_BUCKETS - 1);
+            return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * Highest value counted in a bucket
+         */
+        static long upperBound(int index) {
+            if (index < LINEAR) {
+                return index;
+            }
+            int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int sub = index % SUB_BUCKETS;
+            long width = 1L << (magnitude - SUB_BUCKET_BITS);
+            return ((long) (SUB_BUCKETS + sub) << (magnitude - SUB_BUCKET_BITS))
+                    + width - 1;
+        }
+    }
+
+    /**
+     * Metrics of a method or function at the time of a snapshot
+     */
+    public static final class Stats {
+
+        private final String name;
+
+        private final int direction;
+
+        private long calls;
+
+        private long errors;
+
+        private long fallbacks;
+
+        private long cacheHits;
+
+        private long cacheMisses;
+
+        private long totalNanos;
+
+        private long maxNanos;
+
+        private final long[] histogram = new long[Histogram.SIZE];
+
+        Stats(String name, int direction) {
+            this.name = name;
+            this.direction = direction;
+        }
+
+        void add(Entry entry) {
+            this.calls += entry.calls.sum();
+            this.errors += entry.errors.sum();
+            this.fallbacks += entry.fallbacks.sum();
+            this.cacheHits += entry.cacheHits.sum();
+            this.cacheMisses += entry.cacheMisses.sum();
+            this.totalNanos += entry.latency.total.sum();
+            this.maxNanos = Math.max(this.maxNanos, entry.latency.max.get());
+            for (int i = 0; i < Histogram.SIZE; i++) {
+                this.histogram[i] += entry.latency.buckets.get(i);
+            }
+        }
+
+        /**
+         * Class and method, or function, called
+         */
+        public String getName() {
+            return this.name;
+        }
+
+        /**
+         * {@link LuaMetrics#LUA_TO_JAVA} or {@link LuaMetrics#JAVA_TO_LUA}
+         */
+        public int getDirection() {
+            return this.direction;
+        }
+
+        public long getCalls() {
+            return this.calls;
+        }
+
+        /**
+         * Calls that ended with an exception or a Lua error
+         */
+        public long getErrors() {
+            return this.errors;
+        }
+
+        /**
+         * Overload candidates rejected before a java method matched the
+         * arguments
+         */
+        public long getFallbacks() {
+            return this.fallbacks;
+        }
+
+        public long getCacheHits() {
+            return this.cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return this.cacheMisses;
+        }
+
+        public long getTotalNanos() {
+            return this.totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return this.maxNanos;
+        }
+
+        /**
+         * Returns the time, in nanoseconds, that the given percentage of the
+         * calls took at most, within the histogram's precision
+         */
+        public long getPercentile(double percent) {
+            long count = 0;
+            for (int i = 0; i < Histogram.SIZE; i++) {
+                count += this.histogram[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(count * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < Histogram.SIZE; i++) {
+                seen += this.histogram[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(Histogram.upperBound(i), this.maxNanos);
+                }
+            }
+            return this.maxNanos;
+        }
+    }
+}
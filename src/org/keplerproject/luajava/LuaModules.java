@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binds {@link LuaModule} classes to Lua. Every {@link LuaFunction} method
+ * becomes a function of a module table, stored in
+ * <code>package.loaded</code> so that scripts get it with
+ * <code>require</code>.
+ * <p>
+ * How the arguments of each method are decoded and its result is pushed is
+ * worked out once per class from the method signature. A call reads the
+ * arguments straight from the stack, without going through the overload
+ * resolution scripts use for plain java objects. The method itself is still
+ * called with {@link Method#invoke}, so the arguments are boxed into an array
+ * on every call; there is no generated invoker per method, since the tree has
+ * no build step to run an annotation processor.
+ */
+public final class LuaModules {
+
+    /**
+     * Signatures of the bound classes, shared by all states
+     */
+    private static final Map<Class<?>, Signature[]> signatures = new HashMap<Class<?>, Signature[]>();
+
+    private LuaModules() {
+    }
+
+    /**
+     * Registers a module. The table is stored in <code>package.loaded</code>
+     * under the name given by the class's {@link LuaModule} annotation, so
+     * the standard libraries must have been opened.
+     * @param module
+     *            the module object, or its Class if all its functions are
+     *            static
+     * @return the module table
+     */
+    public static LuaObject register(LuaState L, Object module)
+            throws LuaException {
+        Object target = module instanceof Class ? null : module;
+        Class<?> clazz = target == null ? (Class<?>) module : module.getClass();
+
+        LuaModule annotation = clazz.getAnnotation(LuaModule.class);
+        if (annotation == null) {
+            throw new LuaException(clazz.getName()
+                    + " is not annotated with @LuaModule.");
+        }
+
+        Signature[] sigs = signatures(clazz);
+        if (target == null) {
+            for (Signature sig : sigs) {
+                if (!sig.isStatic) {
+                    throw new LuaException("Function " + sig.name
+                            + " of module " + annotation.value()
+                            + " needs an instance.");
+                }
+            }
+        }
+
+        synchronized (L) {
+            int top = L.getTop();
+            try {
+                L.getGlobal("package");
+                if (!L.isTable(-1)) {
+                    throw new LuaException("Package library is not open.");
+                }
+                L.getField(-1, "loaded");
+
+                L.newTable();
+                for (Signature sig : sigs) {
+                    L.pushJavaFunction(new ModuleFunction(L, target, sig));
+                    L.setField(-2, sig.name);
+                }
+
+                L.pushValue(-1);
+                L.setField(-3, annotation.value());
+                return L.getLuaObject(-1);
+            } finally {
+                L.setTop(top);
+            }
+        }
+    }
+
+    private static Signature[] signatures(Class<?> clazz) {
+        synchronized (signatures) {
+            Signature[] sigs = signatures.get(clazz);
+            if (sigs == null) {
+                List<Signature> list = new ArrayList<Signature>();
+                for (Method method : clazz.getMethods()) {
+                    LuaFunction function = method.getAnnotation(LuaFunction.class);
+                    if (function != null) {
+                        list.add(new Signature(method, function));
+                    }
+                }
+
+                sigs = list.toArray(new Signature[list.size()]);
+                signatures.put(clazz, sigs);
+            }
+            return sigs;
+        }
+    }
+
+    /**
+     * How the arguments of a method are decoded and its result is pushed
+     */
+    private static final class Signature {
+
+        static final byte OBJECT = 0;
+
+        static final byte VOID = 1;
+
+        static final byte BOOLEAN = 2;
+
+        static final byte INT = 3;
+
+        static final byte LONG = 4;
+
+        static final byte DOUBLE = 5;
+
+        static final byte FLOAT = 6;
+
+        static final byte SHORT = 7;
+
+        static final byte BYTE = 8;
+
+        static final byte STRING = 9;
+
+        static final byte BYTES = 10;
+
+        static final byte LUAOBJECT = 11;
+
+        static final byte STATE = 12;
+
+        final String name;
+
+        final Method method;
+
+        final boolean isStatic;
+
+        final byte[] argKinds;
+
+        final byte resultKind;
+
+        Signature(Method method, LuaFunction function) {
+            this.name = function.value().length() == 0 ? method.getName()
+                    : function.value();
+            this.method = method;
+            this.isStatic = Modifier.isStatic(method.getModifiers());
+
+            Class<?>[] params = method.getParameterTypes();
+            this.argKinds = new byte[params.length];
+            for (int i = 0; i < params.length; i++) {
+                this.argKinds[i] = kindOf(params[i]);
+            }
+            this.resultKind = kindOf(method.getReturnType());
+
+            try {
+                // skips the access check on every call, for public methods
+                // of classes that are not public
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                // checked on every call instead
+            }
+        }
+
+        private static byte kindOf(Class<?> type) {
+            if (type == Void.TYPE) {
+                return VOID;
+            } else if (type == Boolean.TYPE) {
+                return BOOLEAN;
+            } else if (type == Integer.TYPE) {
+                return INT;
+            } else if (type == Long.TYPE) {
+                return LONG;
+            } else if (type == Double.TYPE) {
+                return DOUBLE;
+            } else if (type == Float.TYPE) {
+                return FLOAT;
+            } else if (type == Short.TYPE) {
+                return SHORT;
+            } else if (type == Byte.TYPE) {
+                return BYTE;
+            } else if (type == String.class) {
+                return STRING;
+            } else if (type == byte[].class) {
+                return BYTES;
+            } else if (type == LuaObject.class) {
+                return LUAOBJECT;
+            } else if (type == LuaState.class) {
+                return STATE;
+            }
+            return OBJECT;
+        }
+    }
+
+    /**
+     * A function of a module, calling its method
+     */
+    private static final class ModuleFunction extends JavaFunction {
+
+        private final Object target;
+
+        private final Signature sig;
+
+        ModuleFunction(LuaState L, Object target, Signature sig) {
+            super(L);
+            this.target = target;
+            this.sig = sig;
+        }
+
+        @Override
+        public int execute() throws LuaException {
+            byte[] kinds = this.sig.argKinds;
+            Object[] args = new Object[kinds.length];
+
+            // argument 1 is the function itself
+            int idx = 2;
+            for (int i = 0; i < kinds.length; i++) {
+                byte kind = kinds[i];
+                if (kind == Signature.STATE) {
+                    args[i] = this.mLuaState;
+                    continue;
+                }
+
+                int type = this.argType(idx);
+                switch (kind) {
+                case Signature.BOOLEAN:
+                    args[i] = Boolean.valueOf(this.argBoolean(idx));
+                    break;
+                case Signature.INT:
+                case Signature.LONG:
+                case Signature.DOUBLE:
+                case Signature.FLOAT:
+                case Signature.SHORT:
+                case Signature.BYTE:
+                    if (!this.mLuaState.isNumber(idx)) {
+                        return this.argError(idx, "number", type);
+                    }
+                    args[i] = this.toNumber(kind, this.argDouble(idx));
+                    break;
+                case Signature.STRING:
+                case Signature.BYTES:
+                    if (type == LuaState.LUA_TNIL || type == LuaState.LUA_TNONE) {
+                        args[i] = null;
+                    } else if (type != LuaState.LUA_TSTRING
+                            && type != LuaState.LUA_TNUMBER) {
+                        return this.argError(idx, "string", type);
+                    } else {
+                        args[i] = kind == Signature.STRING ? this.argString(idx)
+                                : this.argBytes(idx);
+                    }
+                    break;
+                case Signature.LUAOBJECT:
+                    args[i] = type == LuaState.LUA_TNONE ? null
+                            : this.mLuaState.getLuaObject(idx);
+                    break;
+                default:
+                    args[i] = this.mLuaState.toJavaObject(idx);
+                    break;
+                }
+                idx++;
+            }
+
+            Object ret;
+            try {
+                ret = this.sig.method.invoke(this.target, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof LuaException) {
+                    throw (LuaException) cause;
+                }
+                throw new LuaException(cause instanceof Exception ? (Exception) cause
+                        : e);
+            } catch (IllegalAccessException e) {
+                throw new LuaException(e);
+            }
+
+            switch (this.sig.resultKind) {
+            case Signature.VOID:
+                return 0;
+            case Signature.BOOLEAN:
+                return this.results().add(((Boolean) ret).booleanValue()).push();
+            case Signature.INT:
+            case Signature.LONG:
+            case Signature.DOUBLE:
+            case Signature.FLOAT:
+            case Signature.SHORT:
+            case Signature.BYTE:
+                return this.results().add(((Number) ret).doubleValue()).push();
+            case Signature.STRING:
+                return this.results().add((String) ret).push();
+            case Signature.BYTES:
+                return this.results().add((byte[]) ret).push();
+            case Signature.LUAOBJECT:
+                return this.results().add((LuaObject) ret).push();
+            default:
+                this.mLuaState.pushObjectValue(ret);
+                return 1;
+            }
+        }
+
+        @Override
+        Object metricKey() {
+            return this.sig.method;
+        }
+
+        private Object toNumber(byte kind, double d) {
+            switch (kind) {
+            case Signature.INT:
+                return Integer.valueOf((int) d);
+            case Signature.LONG:
+                return Long.valueOf((long) d);
+            case Signature.FLOAT:
+                return Float.valueOf((float) d);
+            case Signature.SHORT:
+                return Short.valueOf((short) d);
+            case Signature.BYTE:
+                return Byte.valueOf((byte) d);
+            default:
+                return Double.valueOf(d);
+            }
+        }
+
+        private int argError(int idx, String expected, int type) {
+            return this.error("bad argument #" + (idx - 1) + " to '"
+                    + this.sig.name + "' (" + expected + " expected, got "
+                    + this.mLuaState.typeName(type) + ")");
+        }
+    }
+}
@@ -24,8 +24,14 @@
 
 package org.keplerproject.luajava;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 /**
@@ -55,10 +61,33 @@ import java.util.StringTokenizer;
  * @author Thiago Ponte
  */
 public class LuaObject {
+    /**
+     * Proxy class constructors, by the interface list given to createProxy
+     */
+    private static final Map<String, Constructor<?>> proxyConstructors = new HashMap<String, Constructor<?>>();
+
     protected Integer ref;
 
     protected LuaState L;
 
+    /**
+     * Releases ref once this object is collected, or when it is closed
+     */
+    private LuaState.RegistryRef handle;
+
+    /**
+     * Name of the calls to this object in the bridge metrics and trace
+     * sections, worked out from where the function is defined on the first
+     * call made while either is enabled
+     */
+    private String callName;
+
+    /**
+     * Type of the referenced value. A reference always points at the same
+     * value, so it is read once at registration.
+     */
+    private int luaType;
+
     /**
      * Creates a reference to an object in the variable globalName
      * @param L
@@ -184,23 +213,25 @@ public class LuaObject {
      */
     private void registerValue(int index) {
         synchronized (this.L) {
+            this.luaType = this.L.type(index);
             this.L.pushValue(index);
             int key = this.L.Lref(LuaState.LUA_REGISTRYINDEX);
             this.ref = new Integer(key);
+            this.handle = this.L.trackRef(this, key);
         }
     }
 
-    @Override
-    protected void finalize() {
-        try {
-            synchronized (this.L) {
-                if (this.L.getCPtrPeer() != 0) {
-                    this.L.LunRef(LuaState.LUA_REGISTRYINDEX,
-                            this.ref.intValue());
-                }
+    /**
+     * Releases the reference to the Lua object now, instead of after this
+     * object has been collected. The object must not be used afterwards.
+     */
+    public void close() {
+        synchronized (this.L) {
+            if (this.handle != null) {
+                this.L.releaseRef(this.handle);
+                this.handle = null;
+                this.ref = null;
             }
-        } catch (Exception e) {
-            System.err.println("Unable to release object " + this.ref);
         }
     }
 
@@ -208,29 +239,34 @@ public class LuaObject {
      * Pushes the object represented by <code>this<code> into L's stack
      */
     public void push() {
-        this.L.rawGetI(LuaState.LUA_REGISTRYINDEX,
-                this.ref.intValue());
+        this.L.rawGetI(LuaState.LUA_REGISTRYINDEX, this.getRef());
     }
 
-    public boolean isNil() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isNil(-1);
-            this.L.pop(1);
-            return bool;
+    /**
+     * Gets the registry reference of the object
+     */
+    int getRef() {
+        if (this.ref == null) {
+            throw new IllegalStateException("LuaObject is closed.");
         }
+
+        return this.ref.intValue();
+    }
+
+    public boolean isNil() {
+        return this.luaType == LuaState.LUA_TNIL;
     }
 
     public boolean isBoolean() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isBoolean(-1);
-            this.L.pop(1);
-            return bool;
-        }
+        return this.luaType == LuaState.LUA_TBOOLEAN;
     }
 
     public boolean isNumber() {
+        if (this.luaType != LuaState.LUA_TSTRING) {
+            return this.luaType == LuaState.LUA_TNUMBER;
+        }
+
+        // a string is a number when it converts to one
         synchronized (this.L) {
             this.push();
             boolean bool = this.L.isNumber(-1);
@@ -240,24 +276,19 @@ public class LuaObject {
     }
 
     public boolean isString() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isString(-1);
-            this.L.pop(1);
-            return bool;
-        }
+        return this.luaType == LuaState.LUA_TSTRING
+                || this.luaType == LuaState.LUA_TNUMBER;
     }
 
     public boolean isFunction() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isFunction(-1);
-            this.L.pop(1);
-            return bool;
-        }
+        return this.luaType == LuaState.LUA_TFUNCTION;
     }
 
     public boolean isJavaObject() {
+        if (this.luaType != LuaState.LUA_TUSERDATA) {
+            return false;
+        }
+
         synchronized (this.L) {
             this.push();
             boolean bool = this.L.isObject(-1);
@@ -267,6 +298,10 @@ public class LuaObject {
     }
 
     public boolean isJavaFunction() {
+        if (this.luaType != LuaState.LUA_TUSERDATA) {
+            return false;
+        }
+
         synchronized (this.L) {
             this.push();
             boolean bool = this.L.isJavaFunction(-1);
@@ -276,30 +311,16 @@ public class LuaObject {
     }
 
     public boolean isTable() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isTable(-1);
-            this.L.pop(1);
-            return bool;
-        }
+        return this.luaType == LuaState.LUA_TTABLE;
     }
 
     public boolean isUserdata() {
-        synchronized (this.L) {
-            this.push();
-            boolean bool = this.L.isUserdata(-1);
-            this.L.pop(1);
-            return bool;
-        }
+        return this.luaType == LuaState.LUA_TUSERDATA
+                || this.luaType == LuaState.LUA_TLIGHTUSERDATA;
     }
 
     public int type() {
-        synchronized (this.L) {
-            this.push();
-            int type = this.L.type(-1);
-            this.L.pop(1);
-            return type;
-        }
+        return this.luaType;
     }
 
     public boolean getBoolean() {
@@ -338,6 +359,74 @@ public class LuaObject {
         }
     }
 
+    /**
+     * Gets a live, read-only map view of the table. The view iterates the
+     * table in batches, a few dozen pairs per native call, and converts
+     * keys and values as {@link LuaState#toJavaObject(int)} does. Lookups
+     * read the table directly. Adding keys to the table while iterating
+     * the view is not allowed, as in Lua's next.
+     * @throws LuaException
+     *             if the object is not a table
+     */
+    public Map<Object, Object> asMap() throws LuaException {
+        this.checkTable();
+        return new LuaTableMap(this);
+    }
+
+    /**
+     * Gets a live, read-only list view of the array part of the table: the
+     * element at index i is the value of the field i + 1. The size is the
+     * length of the table, as in the # operator.
+     * @throws LuaException
+     *             if the object is not a table
+     */
+    public List<Object> asList() throws LuaException {
+        this.checkTable();
+        return new LuaTableList(this);
+    }
+
+    /**
+     * Copies all pairs of the table into a new map with one native call.
+     * @throws LuaException
+     *             if the object is not a table
+     */
+    public Map<Object, Object> snapshotMap() throws LuaException {
+        this.checkTable();
+        synchronized (this.L) {
+            Object[] pairs = this.L.tableSnapshot(this.getRef());
+            Map<Object, Object> map = new HashMap<Object, Object>(
+                    pairs.length);
+            for (int i = 0; i < pairs.length; i += 2) {
+                map.put(pairs[i], pairs[i + 1]);
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Copies the array part of the table into a new list.
+     * @throws LuaException
+     *             if the object is not a table
+     */
+    public List<Object> snapshotList() throws LuaException {
+        this.checkTable();
+        synchronized (this.L) {
+            this.push();
+            int len = this.L.objLen(-1);
+            this.L.pop(1);
+
+            Object[] values = new Object[len];
+            this.L.tableRange(this.getRef(), 1, len, values);
+            return new ArrayList<Object>(Arrays.asList(values));
+        }
+    }
+
+    private void checkTable() throws LuaException {
+        if (!this.isTable()) {
+            throw new LuaException("Invalid Object. Must be Table.");
+        }
+    }
+
     /**
      * If <code>this<code> is a table or userdata tries to set
      * a field value.
@@ -360,13 +449,7 @@ public class LuaObject {
      */
     public Object[] call(Object[] args, int nres) throws LuaException {
         synchronized (this.L) {
-            if (!this.isFunction() && !this.isTable() && !this.isUserdata()) {
-                throw new LuaException(
-                        "Invalid object. Not a function, table or userdata .");
-            }
-
-            int top = this.L.getTop();
-            this.push();
+            int top = this.beginCall();
             int nargs;
             if (args != null) {
                 nargs = args.length;
@@ -378,30 +461,7 @@ public class LuaObject {
                 nargs = 0;
             }
 
-            int err = this.L.pcall(nargs, nres, 0);
-
-            if (err != 0) {
-                String str;
-                if (this.L.isString(-1)) {
-                    str = this.L.toString(-1);
-                    this.L.pop(1);
-                } else {
-                    str = "";
-                }
-
-                if (err == LuaState.LUA_ERRRUN) {
-                    str = "Runtime error. " + str;
-                } else if (err == LuaState.LUA_ERRMEM) {
-                    str = "Memory allocation error. " + str;
-                } else if (err == LuaState.LUA_ERRERR) {
-                    str = "Error while running the error handler function. "
-                            + str;
-                } else {
-                    str = "Lua Error code " + err + ". " + str;
-                }
-
-                throw new LuaException(str);
-            }
+            this.endCall(nargs, nres);
 
             if (nres == LuaState.LUA_MULTRET) {
                 nres = this.L.getTop() - top;
@@ -433,6 +493,331 @@ public class LuaObject {
         return this.call(args, 1)[0];
     }
 
+    /*
+     * Typed calls. They push their arguments as primitives and read a single
+     * result without boxing, so a call allocates nothing unless it fails.
+     * Missing results read as nil: 0, or false.
+     */
+
+    public void callVoid() throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.endCall(0, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public void callVoid(double a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.endCall(1, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public void callVoid(double a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public void callVoid(double a, double b, double c) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.L.pushNumber(c);
+            this.endCall(3, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public void callVoid(String a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.endCall(1, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public void callVoid(String a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 0);
+            this.L.setTop(top);
+        }
+    }
+
+    public double callDouble() throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.endCall(0, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public double callDouble(double a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.endCall(1, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public double callDouble(double a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public double callDouble(double a, double b, double c) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.L.pushNumber(c);
+            this.endCall(3, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public double callDouble(String a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.endCall(1, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public double callDouble(String a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popNumber(top);
+        }
+    }
+
+    public int callInt() throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.endCall(0, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public int callInt(double a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.endCall(1, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public int callInt(double a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public int callInt(double a, double b, double c) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.L.pushNumber(c);
+            this.endCall(3, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public int callInt(String a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.endCall(1, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public int callInt(String a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popInteger(top);
+        }
+    }
+
+    public boolean callBoolean() throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.endCall(0, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    public boolean callBoolean(double a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.endCall(1, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    public boolean callBoolean(double a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    public boolean callBoolean(double a, double b, double c)
+            throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushNumber(a);
+            this.L.pushNumber(b);
+            this.L.pushNumber(c);
+            this.endCall(3, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    public boolean callBoolean(String a) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.endCall(1, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    public boolean callBoolean(String a, double b) throws LuaException {
+        synchronized (this.L) {
+            int top = this.beginCall();
+            this.L.pushString(a);
+            this.L.pushNumber(b);
+            this.endCall(2, 1);
+            return this.popBoolean(top);
+        }
+    }
+
+    /**
+     * Checks that <code>this</code> can be called and pushes it.
+     * @return the stack top before the push
+     */
+    private int beginCall() throws LuaException {
+        if (!this.isFunction() && !this.isTable() && !this.isUserdata()) {
+            throw new LuaException(
+                    "Invalid object. Not a function, table or userdata .");
+        }
+
+        int top = this.L.getTop();
+        this.push();
+        return top;
+    }
+
+    /**
+     * Runs the call set up by {@link #beginCall()}, turning a Lua error
+     * into a LuaException
+     */
+    private void endCall(int nargs, int nres) throws LuaException {
+        boolean metered = LuaMetrics.isEnabled();
+        boolean traced = LuaTrace.isEnabled();
+        String name = null;
+        if (metered || traced) {
+            name = this.callName;
+            if (name == null) {
+                name = "lua:" + this.L.functionName(-(nargs + 1));
+                this.callName = name;
+            }
+        }
+
+        LuaMetrics.Entry entry = metered ? LuaMetrics.entry(
+                LuaMetrics.JAVA_TO_LUA, name, null) : null;
+        long start = entry != null ? System.nanoTime() : 0;
+        LuaTrace.Sink trace = traced ? LuaTrace.begin(name) : null;
+
+        int err = this.L.pcall(nargs, nres, 0);
+
+        LuaTrace.end(trace);
+        if (entry != null) {
+            entry.record(start, err == 0);
+        }
+        if (err != 0) {
+            throw callError(this.L, err);
+        }
+    }
+
+    /**
+     * Builds the exception for a failed pcall, popping the error message
+     */
+    static LuaException callError(LuaState L, int err) {
+        String str;
+        if (L.isString(-1)) {
+            str = L.toString(-1);
+            L.pop(1);
+        } else {
+            str = "";
+        }
+
+        if (err == LuaState.LUA_ERRRUN) {
+            str = "Runtime error. " + str;
+        } else if (err == LuaState.LUA_ERRMEM) {
+            str = "Memory allocation error. " + str;
+        } else if (err == LuaState.LUA_ERRERR) {
+            str = "Error while running the error handler function. " + str;
+        } else {
+            str = "Lua Error code " + err + ". " + str;
+        }
+
+        return new LuaException(str);
+    }
+
+    private double popNumber(int top) {
+        double db = this.L.toNumber(-1);
+        this.L.setTop(top);
+        return db;
+    }
+
+    private int popInteger(int top) {
+        int i = this.L.toInteger(-1);
+        this.L.setTop(top);
+        return i;
+    }
+
+    private boolean popBoolean(int top) {
+        boolean bool = this.L.toBoolean(-1);
+        this.L.setTop(top);
+        return bool;
+    }
+
     @Override
     public String toString() {
         synchronized (this.L) {
@@ -466,7 +851,8 @@ public class LuaObject {
 
     /**
      * Function that creates a java proxy to the object represented by
-     * <code>this</code>
+     * <code>this</code>. The common Android callback interfaces get a
+     * concrete adapter instead of a reflective proxy.
      * @param implem
      *            Interfaces that are implemented, separated by <code>,</code>
      */
@@ -477,16 +863,44 @@ public class LuaObject {
                 throw new LuaException("Invalid Object. Must be Table.");
             }
 
-            StringTokenizer st = new StringTokenizer(implem, ",");
-            Class[] interfaces = new Class[st.countTokens()];
-            for (int i = 0; st.hasMoreTokens(); i++) {
-                interfaces[i] = Class.forName(st.nextToken());
+            Object adapter = LuaAdapters.create(implem, this);
+            if (adapter != null) {
+                return adapter;
             }
 
             InvocationHandler handler = new LuaInvocationHandler(this);
 
-            return Proxy.newProxyInstance(this.getClass().getClassLoader(),
-                    interfaces, handler);
+            try {
+                return proxyConstructor(implem).newInstance(handler);
+            } catch (ClassNotFoundException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new LuaException(e);
+            }
+        }
+    }
+
+    /**
+     * Gets the constructor of the proxy class for an interface list,
+     * looking the interfaces up only the first time
+     */
+    private static Constructor<?> proxyConstructor(String implem)
+            throws ClassNotFoundException, NoSuchMethodException {
+        synchronized (proxyConstructors) {
+            Constructor<?> constructor = proxyConstructors.get(implem);
+            if (constructor == null) {
+                StringTokenizer st = new StringTokenizer(implem, ",");
+                Class<?>[] interfaces = new Class[st.countTokens()];
+                for (int i = 0; st.hasMoreTokens(); i++) {
+                    interfaces[i] = Class.forName(st.nextToken());
+                }
+
+                constructor = Proxy.getProxyClass(
+                        LuaObject.class.getClassLoader(), interfaces)
+                        .getConstructor(InvocationHandler.class);
+                proxyConstructors.put(implem, constructor);
+            }
+            return constructor;
         }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+/**
+ * A dotted path to a nested field, such as <code>ui.list.pageSize</code>,
+ * compiled by {@link LuaState#compilePath(String)}. The names along the
+ * path are interned once, and each read follows the whole path from the
+ * globals table in a single native call, without creating LuaObjects for
+ * the tables on the way.
+ * <p>
+ * Segments made only of digits index the array part, so
+ * <code>items.1.name</code> reads <code>items[1].name</code>. Fields are
+ * read as <code>getField</code> reads them, through <code>__index</code>
+ * metamethods, unless the path was compiled raw. A path that runs into nil,
+ * or whose metamethods raise an error, reads as nil; a raw path also reads
+ * as nil when it runs into a value that is not a table.
+ */
+public final class LuaPath {
+
+    private final LuaState L;
+
+    private final String path;
+
+    /**
+     * Registry references of the interned names, or negated array indices
+     */
+    private final int[] keys;
+
+    /**
+     * Whether fields are read without metamethods
+     */
+    private final boolean raw;
+
+    LuaPath(LuaState L, String path, int[] keys, boolean raw) {
+        this.L = L;
+        this.path = path;
+        this.keys = keys;
+        this.raw = raw;
+    }
+
+    /**
+     * Gets the state that compiled this path
+     */
+    public LuaState getLuaState() {
+        return this.L;
+    }
+
+    /**
+     * Tells whether this path reads fields raw, without metamethods
+     */
+    public boolean isRaw() {
+        return this.raw;
+    }
+
+    /**
+     * Pushes the value at the end of the path, or nil
+     */
+    public void push() {
+        this.L.pushPath(this.keys, this.raw);
+    }
+
+    /**
+     * Reads a number, or <code>def</code> if the value is not a number
+     */
+    public double getNumber(double def) {
+        return this.L.pathNumber(this.keys, this.raw, def);
+    }
+
+    /**
+     * Reads a number truncated to an int, or <code>def</code> if the value
+     * is not a number
+     */
+    public int getInt(int def) {
+        double db = this.L.pathNumber(this.keys, this.raw, Double.NaN);
+        return Double.isNaN(db) ? def : (int) db;
+    }
+
+    /**
+     * Reads a boolean as Lua tests it, or <code>def</code> if the value is
+     * nil
+     */
+    public boolean getBoolean(boolean def) {
+        return this.L.pathBoolean(this.keys, this.raw, def);
+    }
+
+    /**
+     * Reads a string, or <code>null</code> if the value is neither a
+     * string nor a number
+     */
+    public String getString() {
+        return this.L.pathString(this.keys, this.raw);
+    }
+
+    /**
+     * Reads the value converted as by {@link LuaState#toJavaObject(int)}
+     */
+    public Object getObject() {
+        return this.L.pathObject(this.keys, this.raw);
+    }
+
+    @Override
+    public String toString() {
+        return this.path;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stacks recorded by the sampling profiler of a {@link LuaState}, with the
+ * time, in nanoseconds, attributed to each. Stacks list their frames from
+ * the outermost one; a java function or method called from Lua appears as
+ * a <code>[C]</code> frame at the top of the stack that called it.
+ * <p>
+ * The profile can be written as collapsed stacks, read by flamegraph.pl and
+ * most flame graph viewers, or in the speedscope file format.
+ *
+ * @see LuaState#startProfiling(int)
+ */
+public final class LuaProfile {
+
+    private final List<Frame> frames = new ArrayList<Frame>();
+
+    private final List<Stack> stacks = new ArrayList<Stack>();
+
+    private long totalNanos;
+
+    private int sampleCount;
+
+    LuaProfile() {
+    }
+
+    /**
+     * Called by the native profiler for each function seen, in index order
+     */
+    void addFrame(String name, String file, int line) {
+        this.frames.add(new Frame(name, file, line));
+    }
+
+    /**
+     * Called by the native profiler for each distinct stack
+     */
+    void addStack(int[] frames, long nanos, int samples) {
+        this.stacks.add(new Stack(frames, nanos));
+        this.totalNanos += nanos;
+        this.sampleCount += samples;
+    }
+
+    /**
+     * Time attributed to all stacks
+     */
+    public long getTotalNanos() {
+        return this.totalNanos;
+    }
+
+    /**
+     * Number of samples, counting one for each java call from Lua
+     */
+    public int getSampleCount() {
+        return this.sampleCount;
+    }
+
+    /**
+     * Writes one line per stack, its frames separated by semicolons and
+     * followed by its time in nanoseconds.
+     * @param writer
+     *            the output, which is not closed
+     */
+    public void writeCollapsed(Writer writer) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Stack stack : this.stacks) {
+            sb.setLength(0);
+            for (int i = 0; i < stack.frames.length; i++) {
+                if (i > 0) {
+                    sb.append(';');
+                }
+                sb.append(this.frames.get(stack.frames[i]).label()
+                        .replace(';', ':').replace('\n', ' '));
+            }
+            sb.append(' ').append(stack.nanos).append('\n');
+            writer.write(sb.toString());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes the profile as a speedscope sampled profile.
+     * @param writer
+     *            the output, which is not closed
+     * @param name
+     *            name shown for the profile
+     */
+    public void writeSpeedscope(Writer writer, String name) throws IOException {
+        writer.write("{\"$schema\":\"https://www.speedscope.app/file-format-schema.json\",");
+        writer.write("\"exporter\":\"luajava\",\"name\":\""
+                + TraceEventWriter.escape(name) + "\",");
+        writer.write("\"shared\":{\"frames\":[");
+        for (int i = 0; i < this.frames.size(); i++) {
+            Frame frame = this.frames.get(i);
+            if (i > 0) {
+                writer.write(",");
+            }
+            writer.write("\n{\"name\":\""
+                    + TraceEventWriter.escape(frame.name) + "\",\"file\":\""
+                    + TraceEventWriter.escape(frame.file) + "\"");
+            if (frame.line >= 0) {
+                writer.write(",\"line\":" + frame.line);
+            }
+            writer.write("}");
+        }
+
+        writer.write("\n]},\"profiles\":[{\"type\":\"sampled\",\"name\":\""
+                + TraceEventWriter.escape(name)
+                + "\",\"unit\":\"nanoseconds\",\"startValue\":0,\"endValue\":"
+                + this.totalNanos + ",\"samples\":[");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < this.stacks.size(); i++) {
+            Stack stack = this.stacks.get(i);
+            sb.setLength(0);
+            sb.append(i > 0 ? ",\n[" : "\n[");
+            for (int j = 0; j < stack.frames.length; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append(stack.frames[j]);
+            }
+            writer.write(sb.append(']').toString());
+        }
+
+        writer.write("\n],\"weights\":[");
+        for (int i = 0; i < this.stacks.size(); i++) {
+            if (i > 0) {
+                writer.write(",");
+            }
+            writer.write(Long.toString(this.stacks.get(i).nanos));
+        }
+        writer.write("]}]}\n");
+        writer.flush();
+    }
+
+    private static final class Frame {
+
+        final String name;
+
+        final String file;
+
+        final int line;
+
+        Frame(String name, String file, int line) {
+            this.name = name;
+            this.file = file;
+            this.line = line;
+        }
+
+        String label() {
+            if (this.line < 0) {
+                return this.name + " [C]";
+            }
+            return this.name + " (" + this.file + ":" + this.line + ")";
+        }
+    }
+
+    private static final class Stack {
+
+        final int[] frames;
+
+        final long nanos;
+
+        Stack(int[] frames, long nanos) {
+            this.frames = frames;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.util.Arrays;
+
+/**
+ * Collects the values a {@link JavaFunction} returns and pushes them all in
+ * one native call. Numbers and booleans are stored unboxed.
+ * <p>
+ * A builder is obtained from {@link JavaFunction#results()}, which resets
+ * and reuses the same instance on every call:
+ *
+ * <pre>
+ * return this.results().add(width).add(height).add(name).push();
+ * </pre>
+ */
+public final class LuaResults {
+
+    // kinds, matching the LUAJAVARESULT constants of luajava.c
+    static final byte NIL = 0;
+
+    static final byte BOOLEAN = 1;
+
+    static final byte NUMBER = 2;
+
+    static final byte STRING = 3;
+
+    static final byte BYTES = 4;
+
+    static final byte OBJECT = 5;
+
+    static final byte REF = 6;
+
+    private final LuaState L;
+
+    private byte[] kinds = new byte[4];
+
+    private double[] numbers = new double[4];
+
+    private Object[] objects = new Object[4];
+
+    private int count;
+
+    LuaResults(LuaState L) {
+        this.L = L;
+    }
+
+    /**
+     * Drops the values collected so far
+     */
+    public LuaResults clear() {
+        Arrays.fill(this.objects, 0, this.count, null);
+        this.count = 0;
+        return this;
+    }
+
+    /**
+     * Gets the number of values collected
+     */
+    public int size() {
+        return this.count;
+    }
+
+    public LuaResults addNil() {
+        return this.add(NIL, 0, null);
+    }
+
+    public LuaResults add(boolean b) {
+        return this.add(BOOLEAN, b ? 1 : 0, null);
+    }
+
+    public LuaResults add(double d) {
+        return this.add(NUMBER, d, null);
+    }
+
+    /**
+     * Adds a string, or nil if <code>null</code>
+     */
+    public LuaResults add(String str) {
+        return this.add(STRING, 0, str);
+    }
+
+    /**
+     * Adds a byte array as a Lua string, or nil if <code>null</code>
+     */
+    public LuaResults add(byte[] bytes) {
+        return this.add(BYTES, 0, bytes);
+    }
+
+    /**
+     * Adds the value a LuaObject refers to, or nil if <code>null</code>
+     */
+    public LuaResults add(LuaObject obj) {
+        if (obj == null) {
+            return this.addNil();
+        }
+        if (obj.getLuaState() != this.L) {
+            throw new IllegalArgumentException("LuaObject of another state.");
+        }
+        return this.add(REF, obj.getRef(), null);
+    }
+
+    /**
+     * Adds a java object as userdata, or nil if <code>null</code>. Unlike
+     * {@link LuaState#pushObjectValue(Object)}, strings and boxed values are
+     * not converted.
+     */
+    public LuaResults addJavaObject(Object obj) {
+        return this.add(OBJECT, 0, obj);
+    }
+
+    /**
+     * Pushes the collected values onto the stack and clears the builder
+     * @return the number of values pushed, to be returned by
+     *         {@link JavaFunction#execute()}
+     */
+    public int push() throws LuaException {
+        int n = this.count;
+        try {
+            this.L.pushResults(this.kinds, this.numbers, this.objects, n);
+        } finally {
+            this.clear();
+        }
+        return n;
+    }
+
+    private LuaResults add(byte kind, double number, Object obj) {
+        if (this.count == this.kinds.length) {
+            int capacity = this.count * 2;
+            this.kinds = Arrays.copyOf(this.kinds, capacity);
+            this.numbers = Arrays.copyOf(this.numbers, capacity);
+            this.objects = Arrays.copyOf(this.objects, capacity);
+        }
+
+        this.kinds[this.count] = kind;
+        this.numbers[this.count] = number;
+        this.objects[this.count] = obj;
+        this.count++;
+        return this;
+    }
+}
@@ -24,10 +24,28 @@
 
 package org.keplerproject.luajava;
 
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * LuaState if the main class of LuaJava for the Java developer.
@@ -39,6 +57,19 @@ import android.text.TextUtils;
 public class LuaState {
     private final static String LUAJAVA_LIB = "luajava";
 
+    private static final String TAG = "lua";
+
+    /**
+     * Default time, in milliseconds, a proxy call made from another thread
+     * waits for the owner thread
+     */
+    final public static long DEFAULT_PROXY_CALL_TIMEOUT = 5000;
+
+    /**
+     * Default number of VM instructions between two profiler samples
+     */
+    final public static int DEFAULT_PROFILING_INTERVAL = 10000;
+
     final public static int LUA_GLOBALSINDEX = -10002;
     final public static int LUA_REGISTRYINDEX = -10000;
 
@@ -105,6 +136,84 @@ public class LuaState {
 
     private List<String> packages;
 
+    /**
+     * Keys interned by {@link #internKey(String)}, indexed by name
+     */
+    private final Map<String, LuaKey> keys = new HashMap<String, LuaKey>();
+
+    /**
+     * Number of strings kept by the Java to Lua string cache
+     */
+    private final static int STRING_CACHE_SIZE = 128;
+
+    /**
+     * Longest string, in chars, kept by the Java to Lua string cache
+     */
+    private final static int STRING_CACHE_MAX_LENGTH = 64;
+
+    /**
+     * Recently pushed short strings, mapped to the registry references that
+     * pin their Lua copies
+     */
+    private final StringCache stringCache = new StringCache();
+
+    /**
+     * Registry references held on behalf of java objects, released once the
+     * objects become unreachable
+     */
+    private final Set<RegistryRef> registryRefs = new HashSet<RegistryRef>();
+
+    private final ReferenceQueue<Object> releasedRefs = new ReferenceQueue<Object>();
+
+    /**
+     * Guards the reference bookkeeping, which the collector feeds from other
+     * threads
+     */
+    private final Object refLock = new Object();
+
+    /**
+     * References whose java objects were collected, waiting for the owner
+     * thread to release them
+     */
+    private int[] pendingUnrefs = new int[16];
+
+    private int pendingUnrefCount;
+
+    /**
+     * Number of calls running Lua code on this state. Changed while holding
+     * the state monitor, read without it to tell whether taking the monitor
+     * would wait for a running script.
+     */
+    private volatile int activeCalls;
+
+    /**
+     * Thread that opened the state; proxies called from other threads may be
+     * run there
+     */
+    private final Thread ownerThread;
+
+    /**
+     * Handler on the owner thread's looper, or null if the owner thread has
+     * no looper
+     */
+    private final Handler ownerHandler;
+
+    private volatile boolean marshalProxyCalls = true;
+
+    private volatile long proxyCallTimeout = DEFAULT_PROXY_CALL_TIMEOUT;
+
+    /**
+     * Watchdog of the outermost call in progress, nested calls run under it
+     */
+    private LuaWatchdog activeWatchdog;
+
+    /**
+     * Watchdog applied to calls that do not pass one
+     */
+    private volatile LuaWatchdog defaultWatchdog;
+
+    private boolean profiling;
+
     /**
      * Constructor to instance a new LuaState and initialize it with LuaJava's
      * functions
@@ -115,6 +224,8 @@ public class LuaState {
         this.luajava_open(this.luaState, stateId);
         this.stateId = stateId;
         this.packages = new ArrayList<String>();
+        this.ownerThread = Thread.currentThread();
+        this.ownerHandler = currentHandler();
     }
 
     /**
@@ -123,6 +234,8 @@ public class LuaState {
      */
     protected LuaState(CPtr luaState) {
         this.luaState = luaState;
+        this.ownerThread = Thread.currentThread();
+        this.ownerHandler = currentHandler();
         this.stateId = LuaStateFactory.insertLuaState(this);
         this.luajava_open(luaState, this.stateId);
     }
@@ -131,6 +244,12 @@ public class LuaState {
      * Closes state and removes the object from the LuaStateFactory
      */
     public synchronized void close() {
+        this.keys.clear();
+        this.stringCache.clear();
+        synchronized (this.refLock) {
+            this.registryRefs.clear();
+            this.pendingUnrefCount = 0;
+        }
         LuaStateFactory.removeLuaState(this.stateId);
         this._close(this.luaState);
         this.luaState = null;
@@ -213,6 +332,8 @@ public class LuaState {
 
     private synchronized native String _typeName(CPtr ptr, int tp);
 
+    private synchronized native String _functionName(CPtr ptr, int idx);
+
     private synchronized native int _equal(CPtr ptr, int idx1, int idx2);
 
     private synchronized native int _rawequal(CPtr ptr, int idx1, int idx2);
@@ -227,6 +348,42 @@ public class LuaState {
 
     private synchronized native String _toString(CPtr ptr, int idx);
 
+    private synchronized native byte[] _toBytes(CPtr ptr, int idx);
+
+    private synchronized native String _toStringUTF(CPtr ptr, int idx);
+
+    private synchronized native ByteBuffer _toDirectBuffer(CPtr ptr, int idx);
+
+    // Table batches
+    private synchronized native int _tableNext(CPtr ptr, int tableRef,
+            int keyRef, boolean first, Object[] out);
+
+    private synchronized native int _tableCount(CPtr ptr, int tableRef);
+
+    private synchronized native Object[] _tableSnapshot(CPtr ptr, int tableRef);
+
+    private synchronized native int _tableRange(CPtr ptr, int tableRef,
+            int from, int count, Object[] out);
+
+    private synchronized native int _pushRefField(CPtr ptr, int tableRef,
+            int keyRef);
+
+    // Compiled paths
+    private synchronized native void _pushPath(CPtr ptr, int[] keys,
+            boolean raw);
+
+    private synchronized native double _pathNumber(CPtr ptr, int[] keys,
+            boolean raw, double def);
+
+    private synchronized native boolean _pathBoolean(CPtr ptr, int[] keys,
+            boolean raw, boolean def);
+
+    private synchronized native String _pathString(CPtr ptr, int[] keys,
+            boolean raw);
+
+    private synchronized native Object _pathObject(CPtr ptr, int[] keys,
+            boolean raw);
+
     private synchronized native int _objlen(CPtr ptr, int idx);
 
     private synchronized native CPtr _toThread(CPtr ptr, int idx);
@@ -240,7 +397,14 @@ public class LuaState {
 
     private synchronized native void _pushString(CPtr ptr, String str);
 
-    private synchronized native void _pushString(CPtr ptr, byte[] bytes, int n);
+    private synchronized native void _pushString(CPtr ptr, byte[] bytes, int off, int n);
+
+    private synchronized native void _pushStringUTF(CPtr ptr, String str);
+
+    private synchronized native void _pushDirectBuffer(CPtr ptr, ByteBuffer buff, int off, int n);
+
+    private synchronized native void _pushResults(CPtr ptr, byte[] kinds, double[] numbers,
+            Object[] objects, int n) throws LuaException;
 
     private synchronized native void _pushBoolean(CPtr ptr, int bool);
 
@@ -330,6 +494,19 @@ public class LuaState {
 
     private synchronized native int _getGcCount(CPtr ptr);
 
+    // Interned key functions
+    private synchronized native void _getFieldByKey(CPtr ptr, int idx,
+            int keyRef);
+
+    private synchronized native void _setFieldByKey(CPtr ptr, int idx,
+            int keyRef);
+
+    private synchronized native void _getGlobalByKey(CPtr ptr, int keyRef);
+
+    private synchronized native void _setGlobalByKey(CPtr ptr, int keyRef);
+
+    private synchronized native long[] _getStringCacheStats(CPtr ptr);
+
     // LuaLibAux
     private synchronized native int _LdoFile(CPtr ptr, String fileName);
 
@@ -377,6 +554,8 @@ public class LuaState {
 
     private synchronized native void _LunRef(CPtr ptr, int t, int ref);
 
+    private synchronized native void _LunRefs(CPtr ptr, int t, int[] refs, int n);
+
     private synchronized native int _LgetN(CPtr ptr, int t);
 
     private synchronized native void _LsetN(CPtr ptr, int t, int n);
@@ -384,7 +563,12 @@ public class LuaState {
     private synchronized native int _LloadFile(CPtr ptr, String fileName);
 
     private synchronized native int _LloadBuffer(CPtr ptr, byte[] buff,
-            long sz, String name);
+            int off, long sz, String name);
+
+    private synchronized native int _LloadDirectBuffer(CPtr ptr, ByteBuffer buff,
+            int off, int sz, String name);
+
+    private synchronized native byte[] _dump(CPtr ptr, int idx);
 
     private synchronized native int _LloadString(CPtr ptr, String s);
 
@@ -412,6 +596,18 @@ public class LuaState {
 
     private synchronized native void _openLibs(CPtr ptr);
 
+    private synchronized native void _openLibsLazy(CPtr ptr);
+
+    private synchronized native void _armWatchdog(CPtr ptr, long budget, long timeout);
+
+    private synchronized native void _disarmWatchdog(CPtr ptr);
+
+    private synchronized native void _startProfiler(CPtr ptr, int interval);
+
+    private synchronized native void _stopProfiler(CPtr ptr, LuaProfile profile);
+
+    private static native void _setCallInstrumentation(boolean enabled);
+
     // Java Interface -----------------------------------------------------
 
     public LuaState newThread() {
@@ -508,6 +704,15 @@ public class LuaState {
         return this._typeName(this.luaState, tp);
     }
 
+    /**
+     * Names the function at the given index by where it is defined, as
+     * <code>source:line</code>, or <code>[C]</code> for a C function. Other
+     * values are named by their type.
+     */
+    String functionName(int idx) {
+        return this._functionName(this.luaState, idx);
+    }
+
     public int equal(int idx1, int idx2) {
         return this._equal(this.luaState, idx1, idx2);
     }
@@ -532,10 +737,58 @@ public class LuaState {
         return (this._toBoolean(this.luaState, idx) != 0);
     }
 
+    /**
+     * Converts the value at the given index into a java string. The Lua
+     * string is decoded as UTF-8, so embedded zeros and characters outside
+     * the BMP are kept. Use {@link #toBytes(int)} for binary data.
+     */
     public String toString(int idx) {
         return this._toString(this.luaState, idx);
     }
 
+    /**
+     * Gets an exact copy of the bytes of the string at the given index.
+     * @return the bytes, or <code>null</code> if the value is neither a
+     *         string nor a number
+     */
+    public byte[] toBytes(int idx) {
+        return this._toBytes(this.luaState, idx);
+    }
+
+    /**
+     * Converts the value at the given index with NewStringUTF, the way
+     * {@link #toString(int)} did before it decoded standard UTF-8. Only
+     * valid for strings pushed by {@link #pushStringUTF(String)}; kept for
+     * comparison in the benchmarks.
+     */
+    String toStringUTF(int idx) {
+        return this._toStringUTF(this.luaState, idx);
+    }
+
+    /**
+     * Gets a read-only view of the memory of the string at the given index,
+     * without copying it. The string is pinned in the registry until the
+     * returned buffer becomes unreachable, so keep a reference to that
+     * buffer for as long as it, or any slice or duplicate of it, is read.
+     * The view must not be used after the state is closed.
+     * @return the view, or <code>null</code> if the value is neither a
+     *         string nor a number
+     */
+    public synchronized ByteBuffer toByteBuffer(int idx) {
+        this.releaseRefs();
+
+        this._pushValue(this.luaState, idx);
+        ByteBuffer buff = this._toDirectBuffer(this.luaState, -1);
+        if (buff == null) {
+            this._pop(this.luaState, 1);
+            return null;
+        }
+
+        ByteBuffer view = buff.asReadOnlyBuffer();
+        this.trackRef(view, this._Lref(this.luaState, LUA_REGISTRYINDEX));
+        return view;
+    }
+
     public int strLen(int idx) {
         return this._strlen(this.luaState, idx);
     }
@@ -562,19 +815,97 @@ public class LuaState {
         this._pushInteger(this.luaState, integer);
     }
 
+    /**
+     * Pushes a java string as a Lua string. Short strings are looked up in
+     * the string cache first, so names and constants that are pushed again
+     * and again are not re-encoded.
+     * @param str
+     *            string to be pushed, <code>null</code> pushes nil
+     */
     public void pushString(String str) {
         if (str == null) {
             this._pushNil(this.luaState);
-        } else {
+        } else if (str.length() > STRING_CACHE_MAX_LENGTH) {
             this._pushString(this.luaState, str);
+        } else {
+            this.pushCachedString(str);
         }
     }
 
+    /**
+     * Pushes a string encoded as modified UTF-8 with GetStringUTFChars, the
+     * way {@link #pushString(String)} did before it produced standard UTF-8.
+     * Kept for comparison in the benchmarks.
+     */
+    void pushStringUTF(String str) {
+        this._pushStringUTF(this.luaState, str);
+    }
+
+    private synchronized void pushCachedString(String str) {
+        Integer ref = this.stringCache.get(str);
+        if (ref != null) {
+            this.stringCache.hits++;
+            this._rawGetI(this.luaState, LUA_REGISTRYINDEX, ref.intValue());
+            return;
+        }
+
+        this.stringCache.misses++;
+        this._pushString(this.luaState, str);
+        this._pushValue(this.luaState, -1);
+        ref = Integer.valueOf(this._Lref(this.luaState, LUA_REGISTRYINDEX));
+        this.stringCache.put(str, ref);
+    }
+
     public void pushString(byte[] bytes) {
         if (bytes == null) {
             this._pushNil(this.luaState);
         } else {
-            this._pushString(this.luaState, bytes, bytes.length);
+            this._pushString(this.luaState, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Pushes a range of a byte array as a Lua string, byte for byte. The
+     * range is read straight out of the array, so callers need not copy it
+     * first.
+     * @param bytes
+     *            the bytes, <code>null</code> pushes nil
+     * @param off
+     *            index of the first byte
+     * @param len
+     *            number of bytes
+     */
+    public void pushString(byte[] bytes, int off, int len) {
+        if (bytes == null) {
+            this._pushNil(this.luaState);
+        } else if (off < 0 || len < 0 || off > bytes.length - len) {
+            throw new IndexOutOfBoundsException("off " + off + ", len " + len
+                    + ", length " + bytes.length);
+        } else {
+            this._pushString(this.luaState, bytes, off, len);
+        }
+    }
+
+    /**
+     * Pushes the bytes between the buffer's position and limit as a Lua
+     * string. A direct or mapped buffer is read in place. The buffer's
+     * position is not changed.
+     * @param buff
+     *            the bytes, <code>null</code> pushes nil
+     */
+    public void pushString(ByteBuffer buff) {
+        if (buff == null) {
+            this._pushNil(this.luaState);
+        } else if (buff.isDirect()) {
+            this._pushDirectBuffer(this.luaState, buff, buff.position(),
+                    buff.remaining());
+        } else if (buff.hasArray()) {
+            this._pushString(this.luaState, buff.array(), buff.arrayOffset()
+                    + buff.position(), buff.remaining());
+        } else {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.duplicate().get(bytes);
+            this._pushString(this.luaState, bytes, 0, bytes.length);
         }
     }
 
@@ -603,6 +934,20 @@ public class LuaState {
         this._getField(this.luaState, idx, k);
     }
 
+    /**
+     * Pushes onto the stack the value <code>t[k]</code>, where <code>t</code>
+     * is the value at the given index and <code>k</code> is the string
+     * pinned by the given key. Behaves like {@link #getField(int, String)}
+     * but does not convert the key name.
+     * @param idx
+     *            index of the table on the stack
+     * @param k
+     *            key obtained from {@link #internKey(String)}
+     */
+    public void getField(int idx, LuaKey k) {
+        this._getFieldByKey(this.luaState, idx, k.getRef());
+    }
+
     public void rawGet(int idx) {
         this._rawGet(this.luaState, idx);
     }
@@ -638,6 +983,21 @@ public class LuaState {
         this._setField(this.luaState, idx, k);
     }
 
+    /**
+     * Does the equivalent of <code>t[k] = v</code>, where <code>t</code> is
+     * the value at the given index, <code>k</code> is the string pinned by
+     * the given key and <code>v</code> is the value at the top of the stack.
+     * <p>
+     * This function pops the value from the stack.
+     * @param idx
+     *            index of the table on the stack
+     * @param k
+     *            key obtained from {@link #internKey(String)}
+     */
+    public void setField(int idx, LuaKey k) {
+        this._setFieldByKey(this.luaState, idx, k.getRef());
+    }
+
     public void rawSet(int idx) {
         this._rawSet(this.luaState, idx);
     }
@@ -667,8 +1027,13 @@ public class LuaState {
         return this._setFEnv(this.luaState, idx);
     }
 
-    public void call(int nArgs, int nResults) {
-        this._call(this.luaState, nArgs, nResults);
+    public synchronized void call(int nArgs, int nResults) {
+        this.activeCalls++;
+        try {
+            this._call(this.luaState, nArgs, nResults);
+        } finally {
+            this.activeCalls--;
+        }
     }
 
     /**
@@ -732,8 +1097,124 @@ public class LuaState {
      * </ul>
      */
     // returns 0 if ok of one of the error codes defined
-    public int pcall(int nArgs, int nResults, int errFunc) {
-        return this._pcall(this.luaState, nArgs, nResults, errFunc);
+    public synchronized int pcall(int nArgs, int nResults, int errFunc) {
+        LuaWatchdog watchdog = this.defaultWatchdog;
+        if (watchdog != null && this.activeWatchdog == null) {
+            return this.pcall(nArgs, nResults, errFunc, watchdog);
+        }
+        return this.rawPcall(nArgs, nResults, errFunc);
+    }
+
+    private int rawPcall(int nArgs, int nResults, int errFunc) {
+        int ret;
+        this.activeCalls++;
+        try {
+            ret = this._pcall(this.luaState, nArgs, nResults, errFunc);
+        } finally {
+            this.activeCalls--;
+        }
+        this.releaseRefs();
+        return ret;
+    }
+
+    /**
+     * Calls a function in protected mode under the limits of a watchdog. If
+     * a watchdog call is already in progress the outer one applies.
+     * @param watchdog
+     *            the limits, <code>null</code> for the default watchdog
+     * @see LuaWatchdog
+     * @see #setDefaultWatchdog(LuaWatchdog)
+     */
+    public synchronized int pcall(int nArgs, int nResults, int errFunc,
+            LuaWatchdog watchdog) {
+        if (watchdog == null) {
+            watchdog = this.defaultWatchdog;
+        }
+        if (watchdog == null || this.activeWatchdog != null) {
+            return this.rawPcall(nArgs, nResults, errFunc);
+        }
+
+        boolean hook = watchdog.limits();
+        this.activeWatchdog = watchdog;
+        long start = System.nanoTime();
+        if (hook) {
+            this._armWatchdog(this.luaState, watchdog.getInstructionBudget(),
+                    watchdog.getTimeoutNanos());
+        }
+
+        try {
+            return this.rawPcall(nArgs, nResults, errFunc);
+        } finally {
+            if (hook) {
+                this._disarmWatchdog(this.luaState);
+            }
+            this.activeWatchdog = null;
+            watchdog.checkSlowCall(this, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Sets the watchdog of protected calls that do not pass one, which
+     * covers the calls made for {@link LuaObject#call(Object[], int)},
+     * proxies and adapters as well.
+     * @param watchdog
+     *            the limits, <code>null</code> for none
+     */
+    public void setDefaultWatchdog(LuaWatchdog watchdog) {
+        this.defaultWatchdog = watchdog;
+    }
+
+    public LuaWatchdog getDefaultWatchdog() {
+        return this.defaultWatchdog;
+    }
+
+    /**
+     * Starts sampling the Lua stack every <code>interval</code> VM
+     * instructions. Each sample is weighted by the time since the previous
+     * one, and the time of a java call made from Lua is added to the stack
+     * that made it. Coroutines are sampled too, whenever they were created,
+     * once they are resumed through <code>coroutine.resume</code> or
+     * <code>coroutine.wrap</code>.
+     * @param interval
+     *            instructions between samples
+     * @throws IllegalStateException
+     *             if the state is already being profiled
+     * @see #stopProfiling()
+     */
+    public synchronized void startProfiling(int interval) {
+        if (this.profiling) {
+            throw new IllegalStateException("Lua state is already being profiled.");
+        }
+        this._startProfiler(this.luaState, interval);
+        this.profiling = true;
+    }
+
+    /**
+     * Stops the profiler and returns what it recorded.
+     * @return the profile, <code>null</code> if the state was not being
+     *         profiled
+     */
+    public synchronized LuaProfile stopProfiling() {
+        if (!this.profiling) {
+            return null;
+        }
+        LuaProfile profile = new LuaProfile();
+        this._stopProfiler(this.luaState, profile);
+        this.profiling = false;
+        return profile;
+    }
+
+    public synchronized boolean isProfiling() {
+        return this.profiling;
+    }
+
+    /**
+     * Makes the native code call java functions through
+     * {@link LuaJavaAPI#javaFunctionCall(JavaFunction)}, which records them,
+     * while metrics or tracing are enabled
+     */
+    static void updateCallInstrumentation() {
+        _setCallInstrumentation(LuaMetrics.isEnabled() || LuaTrace.isEnabled());
     }
 
     public int yield(int nResults) {
@@ -770,13 +1251,23 @@ public class LuaState {
 
     // FUNCTION FROM lauxlib
     // returns 0 if ok
-    public int LdoFile(String fileName) {
-        return this._LdoFile(this.luaState, fileName);
+    public synchronized int LdoFile(String fileName) {
+        this.activeCalls++;
+        try {
+            return this._LdoFile(this.luaState, fileName);
+        } finally {
+            this.activeCalls--;
+        }
     }
 
     // returns 0 if ok
-    public int LdoString(String str) {
-        return this._LdoString(this.luaState, str);
+    public synchronized int LdoString(String str) {
+        this.activeCalls++;
+        try {
+            return this._LdoString(this.luaState, str);
+        } finally {
+            this.activeCalls--;
+        }
     }
 
     public int LgetMetaField(int obj, String e) {
@@ -868,7 +1359,38 @@ public class LuaState {
     }
 
     public int LloadBuffer(byte[] buff, String name) {
-        return this._LloadBuffer(this.luaState, buff, buff.length, name);
+        return this._LloadBuffer(this.luaState, buff, 0, buff.length, name);
+    }
+
+    /**
+     * Loads the chunk between the buffer's position and limit. A direct or
+     * mapped buffer is parsed in place, without copying it. The buffer's
+     * position is not changed.
+     */
+    public int LloadBuffer(ByteBuffer buff, String name) {
+        int off = buff.position();
+        int len = buff.remaining();
+        if (buff.isDirect()) {
+            return this._LloadDirectBuffer(this.luaState, buff, off, len, name);
+        } else if (buff.hasArray()) {
+            return this._LloadBuffer(this.luaState, buff.array(),
+                    buff.arrayOffset() + off, len, name);
+        }
+
+        byte[] bytes = new byte[len];
+        buff.duplicate().get(bytes);
+        return this._LloadBuffer(this.luaState, bytes, 0, len, name);
+    }
+
+    /**
+     * Dumps the Lua function at the given index as a binary chunk, which
+     * {@link #LloadBuffer(byte[], String)} loads back without parsing. The
+     * chunk only loads on the same Lua build and architecture.
+     * @return the chunk, or <code>null</code> if the value is not a Lua
+     *         function
+     */
+    public byte[] dump(int idx) {
+        return this._dump(this.luaState, idx);
     }
 
     public String Lgsub(String s, String p, String r) {
@@ -919,6 +1441,189 @@ public class LuaState {
         this._setGlobal(this.luaState, name);
     }
 
+    /**
+     * Pushes onto the stack the value of the global named by the given key.
+     * @param k
+     *            key obtained from {@link #internKey(String)}
+     */
+    public synchronized void getGlobal(LuaKey k) {
+        this._getGlobalByKey(this.luaState, k.getRef());
+    }
+
+    /**
+     * Pops a value from the stack and sets it as the new value of the global
+     * named by the given key.
+     * @param k
+     *            key obtained from {@link #internKey(String)}
+     */
+    public synchronized void setGlobal(LuaKey k) {
+        this._setGlobalByKey(this.luaState, k.getRef());
+    }
+
+    // STRING CACHE
+
+    /**
+     * Returns the hit and miss counters of the string caches used when
+     * strings cross the bridge in either direction.
+     * @return StringCacheStats
+     */
+    public synchronized StringCacheStats getStringCacheStats() {
+        long[] stats = this._getStringCacheStats(this.luaState);
+        return new StringCacheStats(stats[0], stats[1], stats[2],
+                (int) stats[3], this.stringCache.hits,
+                this.stringCache.misses, this.stringCache.evictions,
+                this.stringCache.size());
+    }
+
+    // INTERNED KEYS
+
+    /**
+     * Returns the key for the given name, interning it on first use. The name
+     * is pushed as a Lua string once and pinned in the registry; later calls
+     * with the same name return the same key.
+     * @param name
+     *            field or global name
+     * @return LuaKey
+     * @throws IllegalArgumentException
+     *             if name is null
+     */
+    public synchronized LuaKey internKey(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("Key name must not be null.");
+        }
+
+        LuaKey key = this.keys.get(name);
+        if (key == null) {
+            this.pushString(name);
+            int ref = this.Lref(LUA_REGISTRYINDEX);
+            key = new LuaKey(this, name, ref);
+            this.keys.put(name, key);
+        }
+
+        return key;
+    }
+
+    /**
+     * Compiles a dotted path to a nested field, such as
+     * <code>config.ui.list.pageSize</code>, into a {@link LuaPath} whose
+     * reads resolve the whole path in one native call. The names along the
+     * path are interned with {@link #internKey(String)}, so releasing one
+     * of those keys invalidates the path. Each step indexes as
+     * <code>getField</code> does, following <code>__index</code>
+     * metamethods.
+     * @throws IllegalArgumentException
+     *             if the path is null or has an empty segment
+     */
+    public LuaPath compilePath(String path) {
+        return this.compilePath(path, false);
+    }
+
+    /**
+     * Compiles a dotted path as {@link #compilePath(String)} does.
+     * @param raw
+     *            whether the path reads fields raw, skipping metamethods.
+     *            A raw path is a little faster when a step misses, but
+     *            does not see metatable defaults, lazily opened libraries
+     *            or fields of java objects.
+     * @throws IllegalArgumentException
+     *             if the path is null or has an empty segment
+     */
+    public synchronized LuaPath compilePath(String path, boolean raw) {
+        if (TextUtils.isEmpty(path)) {
+            throw new IllegalArgumentException("Path must not be empty.");
+        }
+
+        String[] segments = path.split("\\.", -1);
+        int[] keys = new int[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.length() == 0) {
+                throw new IllegalArgumentException("Empty segment in path "
+                        + path);
+            }
+
+            int index = parseIndex(segment);
+            keys[i] = index > 0 ? -index : this.internKey(segment).getRef();
+        }
+
+        return new LuaPath(this, path, keys, raw);
+    }
+
+    /**
+     * Parses a path segment made only of digits
+     * @return the index, or 0 if the segment is a name
+     */
+    private static int parseIndex(String segment) {
+        if (segment.length() > 9 || segment.charAt(0) == '0') {
+            return 0;
+        }
+
+        int index = 0;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            index = index * 10 + (c - '0');
+        }
+        return index;
+    }
+
+    /**
+     * Pushes the field named by key of the value held by tableRef, in one
+     * native call
+     * @return the type of the field
+     */
+    int pushField(int tableRef, LuaKey key) {
+        return this._pushRefField(this.luaState, tableRef, key.getRef());
+    }
+
+    /**
+     * Pushes the first n values collected by a {@link LuaResults}, in one
+     * native call
+     */
+    void pushResults(byte[] kinds, double[] numbers, Object[] objects, int n)
+            throws LuaException {
+        this._pushResults(this.luaState, kinds, numbers, objects, n);
+    }
+
+    void pushPath(int[] keys, boolean raw) {
+        this._pushPath(this.luaState, keys, raw);
+    }
+
+    double pathNumber(int[] keys, boolean raw, double def) {
+        return this._pathNumber(this.luaState, keys, raw, def);
+    }
+
+    boolean pathBoolean(int[] keys, boolean raw, boolean def) {
+        return this._pathBoolean(this.luaState, keys, raw, def);
+    }
+
+    String pathString(int[] keys, boolean raw) {
+        return this._pathString(this.luaState, keys, raw);
+    }
+
+    Object pathObject(int[] keys, boolean raw) {
+        return this._pathObject(this.luaState, keys, raw);
+    }
+
+    /**
+     * Drops an interned key and releases its registry reference. The key
+     * must not be used afterwards.
+     * @param key
+     *            key obtained from {@link #internKey(String)}
+     */
+    public synchronized void releaseKey(LuaKey key) {
+        if (this.keys.get(key.getName()) != key) {
+            return;
+        }
+
+        this.keys.remove(key.getName());
+        if (this.luaState != null) {
+            this.LunRef(LUA_REGISTRYINDEX, key.getRef());
+        }
+    }
+
     // Functions to open lua libraries
     public void openBase() {
         this._openBase(this.luaState);
@@ -952,6 +1657,17 @@ public class LuaState {
         this._openPackage(this.luaState);
     }
 
+    /**
+     * Opens the base and package libraries, and leaves the others to be
+     * opened on first use: when their global is first read, when a string
+     * method is first called for the string library, or through
+     * <code>require</code>. Until then they do not appear in the globals
+     * table.
+     */
+    public void openLibsLazy() {
+        this._openLibsLazy(this.luaState);
+    }
+
     public void openLibs() {
         this._openLibs(this.luaState);
     }
@@ -1284,4 +2000,345 @@ public class LuaState {
         }
         return sb.toString();
     }
+
+    /**
+     * Reads the next pairs of the table held by tableRef, as converted by
+     * {@link #toJavaObject(int)}, into out as key, value, key, value... The
+     * traversal resumes after the key stored in the keyRef slot, or at the
+     * start when first is set, and the last key read is stored back there.
+     * @return number of pairs read, less than out.length / 2 once the table
+     *         is exhausted, or -1 if the stored key was removed from the
+     *         table and the traversal cannot resume
+     */
+    int tableNext(int tableRef, int keyRef, boolean first, Object[] out) {
+        return this._tableNext(this.luaState, tableRef, keyRef, first, out);
+    }
+
+    /**
+     * Counts the pairs of the table held by tableRef
+     */
+    int tableCount(int tableRef) {
+        return this._tableCount(this.luaState, tableRef);
+    }
+
+    /**
+     * Copies all pairs of the table held by tableRef in one call
+     * @return key, value, key, value...
+     */
+    Object[] tableSnapshot(int tableRef) {
+        return this._tableSnapshot(this.luaState, tableRef);
+    }
+
+    /**
+     * Reads count consecutive elements, starting at Lua index from, of the
+     * table held by tableRef into out
+     */
+    int tableRange(int tableRef, int from, int count, Object[] out) {
+        return this._tableRange(this.luaState, tableRef, from, count, out);
+    }
+
+    /**
+     * Holds the registry reference ref until referent becomes unreachable
+     */
+    RegistryRef trackRef(Object referent, int ref) {
+        RegistryRef r = new RegistryRef(referent, ref, this.releasedRefs);
+        synchronized (this.refLock) {
+            this.registryRefs.add(r);
+        }
+        return r;
+    }
+
+    /**
+     * Releases a tracked registry reference right away
+     */
+    synchronized void releaseRef(RegistryRef r) {
+        boolean tracked;
+        synchronized (this.refLock) {
+            tracked = this.registryRefs.remove(r);
+        }
+        r.clear();
+
+        if (tracked && this.luaState != null) {
+            this._LunRef(this.luaState, LUA_REGISTRYINDEX, r.ref);
+        }
+    }
+
+    /**
+     * Moves the references of collected objects to the pending list. Must
+     * hold refLock.
+     */
+    private void pollReleasedRefs() {
+        Reference<?> r;
+        while ((r = this.releasedRefs.poll()) != null) {
+            if (!this.registryRefs.remove(r)) {
+                continue;
+            }
+
+            if (this.pendingUnrefCount == this.pendingUnrefs.length) {
+                this.pendingUnrefs = Arrays.copyOf(this.pendingUnrefs,
+                        this.pendingUnrefCount * 2);
+            }
+            this.pendingUnrefs[this.pendingUnrefCount++] = ((RegistryRef) r).ref;
+        }
+    }
+
+    /**
+     * Gets the number of registry references whose java objects have been
+     * collected but that have not been released yet
+     */
+    public int getPendingUnrefCount() {
+        synchronized (this.refLock) {
+            this.pollReleasedRefs();
+            return this.pendingUnrefCount;
+        }
+    }
+
+    /**
+     * Releases, in one batch, the registry references of java objects that
+     * have been collected. This is a safe point: it runs after every
+     * {@link #pcall(int, int, int)} and may be called whenever a thread is
+     * idle. It only takes the state monitor when there is something to
+     * release. If another thread is running Lua code on the state it returns
+     * at once, leaving the references to the end of that thread's next
+     * pcall, so an idle looper never waits for a running script.
+     */
+    public void releaseRefs() {
+        synchronized (this.refLock) {
+            this.pollReleasedRefs();
+            if (this.pendingUnrefCount == 0) {
+                return;
+            }
+        }
+
+        if (this.activeCalls > 0 && !Thread.holdsLock(this)) {
+            return;
+        }
+
+        synchronized (this) {
+            synchronized (this.refLock) {
+                if (this.pendingUnrefCount == 0) {
+                    return;
+                }
+
+                if (this.luaState != null) {
+                    this._LunRefs(this.luaState, LUA_REGISTRYINDEX,
+                            this.pendingUnrefs, this.pendingUnrefCount);
+                }
+                this.pendingUnrefCount = 0;
+            }
+        }
+    }
+
+    private static Handler currentHandler() {
+        Looper looper = Looper.myLooper();
+        return looper == null ? null : new Handler(looper);
+    }
+
+    /**
+     * Sets whether proxies called from a thread other than the one that
+     * opened the state run the call on the owner thread's looper. When
+     * false, or when the owner has no looper, such calls wait for the state
+     * lock and run on the calling thread. Calls made while the calling thread
+     * holds the state lock, from a script it is running, always run inline.
+     */
+    public void setMarshalProxyCalls(boolean marshal) {
+        this.marshalProxyCalls = marshal;
+    }
+
+    public boolean isMarshalProxyCalls() {
+        return this.marshalProxyCalls;
+    }
+
+    /**
+     * Sets how long, in milliseconds, a proxy call with a result made from
+     * another thread waits for the owner thread before failing
+     */
+    public void setProxyCallTimeout(long millis) {
+        this.proxyCallTimeout = millis;
+    }
+
+    public long getProxyCallTimeout() {
+        return this.proxyCallTimeout;
+    }
+
+    /**
+     * Gets the handler a call made on the current thread must be posted to,
+     * or null if it runs here. A thread that holds the state monitor is
+     * already inside the state, running a script: its calls run inline, as
+     * the owner thread would block on the monitor and never run them.
+     */
+    private Handler foreignCallHandler() {
+        if (!this.marshalProxyCalls || this.ownerHandler == null
+                || Thread.currentThread() == this.ownerThread
+                || Thread.holdsLock(this)) {
+            return null;
+        }
+        return this.ownerHandler;
+    }
+
+    /**
+     * Tells whether a proxy call made on the current thread is run on the
+     * owner thread instead
+     */
+    boolean marshalsCalls() {
+        return this.foreignCallHandler() != null;
+    }
+
+    /**
+     * Posts a call without a result to the owner thread, if the current
+     * thread is another one. Errors of posted calls are logged.
+     * @return false if the call was not posted and must run on the current
+     *         thread
+     */
+    boolean postToOwner(final Callable<?> call) {
+        Handler handler = this.foreignCallHandler();
+        if (handler == null) {
+            return false;
+        }
+
+        return handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.call();
+                } catch (Exception e) {
+                    Log.e(TAG, "Proxy call posted to the owner thread failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs a call on the owner thread and waits for its result, for at most
+     * the proxy call timeout. On the owner thread, or when calls are not
+     * marshalled, it runs directly.
+     */
+    <T> T callOnOwner(Callable<T> call) throws LuaException {
+        Handler handler = this.foreignCallHandler();
+        try {
+            if (handler == null) {
+                return call.call();
+            }
+
+            FutureTask<T> task = new FutureTask<T>(call);
+            if (!handler.post(task)) {
+                throw new LuaException("Owner thread of the Lua state has quit.");
+            }
+
+            try {
+                return task.get(this.proxyCallTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                task.cancel(false);
+                throw new LuaException("Proxy call timed out after "
+                        + this.proxyCallTimeout + " ms.");
+            } catch (InterruptedException e) {
+                task.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new LuaException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        } catch (LuaException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new LuaException(e);
+        }
+    }
+
+    /**
+     * A registry reference that is released after its referent has been
+     * collected
+     */
+    static final class RegistryRef extends PhantomReference<Object> {
+
+        final int ref;
+
+        RegistryRef(Object referent, int ref, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.ref = ref;
+        }
+    }
+
+    /**
+     * Bounded LRU map from recently pushed strings to the registry references
+     * pinning their Lua copies. Evicted strings are released from the
+     * registry.
+     */
+    private final class StringCache extends LinkedHashMap<String, Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        long hits;
+
+        long misses;
+
+        long evictions;
+
+        StringCache() {
+            super(STRING_CACHE_SIZE * 2, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            if (this.size() <= STRING_CACHE_SIZE) {
+                return false;
+            }
+
+            this.evictions++;
+            if (LuaState.this.luaState != null) {
+                LuaState.this.LunRef(LUA_REGISTRYINDEX, eldest.getValue()
+                        .intValue());
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Counters of the string caches. The <code>luaToJava</code> counters
+     * come from the native cache used when Lua strings are handed to Java
+     * (method names, class names, {@link LuaState#toString(int)}); the
+     * <code>javaToLua</code> counters come from
+     * {@link LuaState#pushString(String)}.
+     */
+    public static final class StringCacheStats {
+        public final long luaToJavaHits;
+        public final long luaToJavaMisses;
+        public final long luaToJavaEvictions;
+        public final int luaToJavaSize;
+        public final long javaToLuaHits;
+        public final long javaToLuaMisses;
+        public final long javaToLuaEvictions;
+        public final int javaToLuaSize;
+
+        StringCacheStats(long luaToJavaHits, long luaToJavaMisses,
+                long luaToJavaEvictions, int luaToJavaSize,
+                long javaToLuaHits, long javaToLuaMisses,
+                long javaToLuaEvictions, int javaToLuaSize) {
+            this.luaToJavaHits = luaToJavaHits;
+            this.luaToJavaMisses = luaToJavaMisses;
+            this.luaToJavaEvictions = luaToJavaEvictions;
+            this.luaToJavaSize = luaToJavaSize;
+            this.javaToLuaHits = javaToLuaHits;
+            this.javaToLuaMisses = javaToLuaMisses;
+            this.javaToLuaEvictions = javaToLuaEvictions;
+            this.javaToLuaSize = javaToLuaSize;
+        }
+
+        @Override
+        public String toString() {
+            return "lua->java hits=" + this.luaToJavaHits + " misses="
+                    + this.luaToJavaMisses + " evictions="
+                    + this.luaToJavaEvictions + " size=" + this.luaToJavaSize
+                    + ", java->lua hits=" + this.javaToLuaHits + " misses="
+                    + this.javaToLuaMisses + " evictions="
+                    + this.javaToLuaEvictions + " size=" + this.javaToLuaSize;
+        }
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Read-only list view of the array part of a Lua table, returned by
+ * {@link LuaObject#asList()}. Element i is the value of field i + 1.
+ * Iterators read {@link LuaTableMap#BATCH_SIZE} elements per native call.
+ */
+final class LuaTableList extends AbstractList<Object> implements RandomAccess {
+
+    private final LuaObject table;
+
+    private final LuaState L;
+
+    LuaTableList(LuaObject table) {
+        this.table = table;
+        this.L = table.getLuaState();
+    }
+
+    @Override
+    public Object get(int index) {
+        synchronized (this.L) {
+            int top = this.L.getTop();
+            try {
+                this.table.push();
+                int len = this.L.objLen(-1);
+                if (index < 0 || index >= len) {
+                    throw new IndexOutOfBoundsException("index " + index
+                            + ", size " + len);
+                }
+
+                this.L.rawGetI(-1, index + 1);
+                return this.L.toJavaObject(-1);
+            } catch (LuaException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        synchronized (this.L) {
+            this.table.push();
+            int len = this.L.objLen(-1);
+            this.L.pop(1);
+            return len;
+        }
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+
+            private final Object[] batch = new Object[LuaTableMap.BATCH_SIZE];
+
+            private final int size = LuaTableList.this.size();
+
+            private int index;
+
+            private int count;
+
+            private int pos;
+
+            @Override
+            public boolean hasNext() {
+                return this.index < this.size;
+            }
+
+            @Override
+            public Object next() {
+                if (this.index >= this.size) {
+                    throw new NoSuchElementException();
+                }
+
+                if (this.pos == this.count) {
+                    LuaState L = LuaTableList.this.L;
+                    synchronized (L) {
+                        int n = Math.min(this.batch.length, this.size
+                                - this.index);
+                        this.count = L.tableRange(
+                                LuaTableList.this.table.getRef(),
+                                this.index + 1, n, this.batch);
+                        this.pos = 0;
+                    }
+                }
+
+                this.index++;
+                return this.batch[this.pos++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
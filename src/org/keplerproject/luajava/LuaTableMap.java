@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map view of a Lua table, returned by {@link LuaObject#asMap()}.
+ * Iterators walk the table with lua_next, {@link #BATCH_SIZE} pairs per
+ * native call, converting keys and values as they go. An iterator throws
+ * {@link ConcurrentModificationException} if the last key it read was removed
+ * from the table between two batches. Lookups index the table directly,
+ * without iterating it.
+ */
+final class LuaTableMap extends AbstractMap<Object, Object> {
+
+    /**
+     * Number of pairs read per native call while iterating
+     */
+    static final int BATCH_SIZE = 64;
+
+    private final LuaObject table;
+
+    private final LuaState L;
+
+    private Set<Map.Entry<Object, Object>> entries;
+
+    LuaTableMap(LuaObject table) {
+        this.table = table;
+        this.L = table.getLuaState();
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (key == null) {
+            return null;
+        }
+
+        synchronized (this.L) {
+            int top = this.L.getTop();
+            try {
+                this.table.push();
+                this.L.pushObjectValue(key);
+                this.L.rawGet(-2);
+                return this.L.toJavaObject(-1);
+            } catch (LuaException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            } finally {
+                this.L.setTop(top);
+            }
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        synchronized (this.L) {
+            return this.L.tableCount(this.table.getRef());
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        synchronized (this.L) {
+            this.table.push();
+            this.L.pushNil();
+            boolean empty = this.L.next(-2) == 0;
+            this.L.pop(empty ? 1 : 3);
+            return empty;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        if (this.entries == null) {
+            this.entries = new AbstractSet<Map.Entry<Object, Object>>() {
+                @Override
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return LuaTableMap.this.size();
+                }
+            };
+        }
+        return this.entries;
+    }
+
+    /**
+     * Iterator reading the table in batches. The key where the traversal
+     * stopped is kept in a registry slot between batches, so keys that
+     * cannot be pushed back from java, like userdata, still resume.
+     */
+    private final class EntryIterator implements
+            Iterator<Map.Entry<Object, Object>> {
+
+        private final Object[] batch = new Object[BATCH_SIZE * 2];
+
+        private int count;
+
+        private int pos;
+
+        private boolean done;
+
+        private LuaState.RegistryRef keySlot;
+
+        @Override
+        public boolean hasNext() {
+            if (this.pos < this.count) {
+                return true;
+            }
+            if (this.done) {
+                return false;
+            }
+
+            this.fetch();
+            return this.pos < this.count;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int i = 2 * this.pos++;
+            return new AbstractMap.SimpleImmutableEntry<Object, Object>(
+                    this.batch[i], this.batch[i + 1]);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetch() {
+            LuaState L = LuaTableMap.this.L;
+            synchronized (L) {
+                boolean first = this.keySlot == null;
+                if (first) {
+                    L.pushBoolean(false);
+                    int ref = L.Lref(LuaState.LUA_REGISTRYINDEX);
+                    this.keySlot = L.trackRef(this, ref);
+                }
+
+                int n = L.tableNext(LuaTableMap.this.table.getRef(),
+                        this.keySlot.ref, first, this.batch);
+                this.count = Math.max(n, 0);
+                this.pos = 0;
+
+                if (this.count < BATCH_SIZE) {
+                    this.done = true;
+                    L.releaseRef(this.keySlot);
+                }
+                if (n < 0) {
+                    throw new ConcurrentModificationException(
+                            "Table was modified during iteration");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+/**
+ * Trace sections around script execution and bridge calls, so Lua work is
+ * broken down in system traces. Sections are named <code>lua:...</code>
+ * for Lua code run from java, such as <code>lua:require Activity</code>
+ * or a proxy callback, and <code>bridge:...</code> for java code run from
+ * Lua, such as <code>bridge:TextView.setText</code>.
+ * <p>
+ * On a device, sections go to {@link Trace} and appear in systrace and
+ * Perfetto. Between {@link #startFileTrace(File)} and
+ * {@link #stopFileTrace()} they are written to a file in the trace event
+ * format instead, which also works on a host JVM and loads in Perfetto UI
+ * or chrome://tracing.
+ * <p>
+ * Call sites check {@link #isEnabled()} before building a section name,
+ * and end a section on the sink that began it, so turning tracing on or
+ * off in between cannot unbalance the sections:
+ *
+ * <pre>
+ * LuaTrace.Sink trace = LuaTrace.isEnabled() ? LuaTrace
+ *         .begin(&quot;lua:require &quot; + name) : null;
+ * try {
+ *     ...
+ * } finally {
+ *     LuaTrace.end(trace);
+ * }
+ * </pre>
+ */
+public final class LuaTrace {
+
+    /**
+     * Where a section was begun, passed back to {@link LuaTrace#end(Sink)}
+     */
+    public static final class Sink {
+
+        /**
+         * The file trace, or <code>null</code> for {@link Trace}
+         */
+        final TraceEventWriter file;
+
+        /**
+         * The file, closed when the trace stops
+         */
+        final Writer out;
+
+        /**
+         * Threads named in the file trace
+         */
+        final Set<Long> namedThreads = new HashSet<Long>();
+
+        Sink(TraceEventWriter file, Writer out) {
+            this.file = file;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Longest section name {@link Trace} accepts
+     */
+    private static final int MAX_SECTION_NAME = 127;
+
+    /**
+     * android.os.Trace appeared in API 18; host JVM stubs report 0
+     */
+    private static final boolean SYSTEM_TRACE = Build.VERSION.SDK_INT >= 18;
+
+    private static final Sink SYSTEM = new Sink(null, null);
+
+    private static volatile boolean enabled;
+
+    private static volatile boolean systemEnabled;
+
+    /**
+     * Sink of the file trace being written, or <code>null</code>
+     */
+    private static volatile Sink fileSink;
+
+    private LuaTrace() {
+    }
+
+    /**
+     * Whether sections are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Emits sections to {@link Trace}. Does nothing where it is not
+     * available.
+     */
+    public static synchronized void setEnabled(boolean enable) {
+        systemEnabled = enable && SYSTEM_TRACE;
+        update();
+    }
+
+    /**
+     * Writes sections to a file until {@link #stopFileTrace()}, instead of
+     * {@link Trace}. A trace already being written is ended first.
+     */
+    public static synchronized void startFileTrace(File file)
+            throws IOException {
+        stopFileTrace();
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            fileSink = new Sink(new TraceEventWriter(out, Process.myPid()), out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        update();
+    }
+
+    /**
+     * Ends the file trace and closes the file. Sections still open are left
+     * unterminated.
+     */
+    public static synchronized void stopFileTrace() throws IOException {
+        Sink sink = fileSink;
+        if (sink == null) {
+            return;
+        }
+
+        fileSink = null;
+        update();
+        try {
+            sink.file.finish();
+        } finally {
+            sink.out.close();
+        }
+    }
+
+    private static void update() {
+        enabled = fileSink != null || systemEnabled;
+        LuaState.updateCallInstrumentation();
+    }
+
+    /**
+     * Begins a section on the current thread. Sections must be ended in
+     * reverse order, on the thread that began them.
+     * @return the sink to pass to {@link #end(Sink)}, <code>null</code> if
+     *         tracing is off
+     */
+    public static Sink begin(String name) {
+        Sink sink = fileSink;
+        if (sink != null) {
+            write(sink, name);
+            return sink;
+        } else if (systemEnabled) {
+            Trace.beginSection(name.length() > MAX_SECTION_NAME ? name
+                    .substring(0, MAX_SECTION_NAME) : name);
+            return SYSTEM;
+        }
+        return null;
+    }
+
+    /**
+     * Ends the last section begun on the current thread, on the sink that
+     * began it
+     * @param sink
+     *            the value returned by {@link #begin(String)}, may be
+     *            <code>null</code>
+     */
+    public static void end(Sink sink) {
+        if (sink == SYSTEM) {
+            Trace.endSection();
+        } else if (sink != null) {
+            write(sink, null);
+        }
+    }
+
+    /**
+     * Names a callee in section names: the simple names of a Method's class
+     * and the method, or of a Class
+     */
+    static String nameOf(Object callee) {
+        if (callee instanceof Method) {
+            Method method = (Method) callee;
+            return simpleName(method.getDeclaringClass()) + "."
+                    + method.getName();
+        } else if (callee instanceof Class) {
+            return simpleName((Class<?>) callee);
+        }
+        return String.valueOf(callee);
+    }
+
+    static String simpleName(Class<?> clazz) {
+        String name = clazz.getSimpleName();
+        // anonymous classes have none
+        return name.length() == 0 ? clazz.getName() : name;
+    }
+
+    /**
+     * Writes a begin event, or an end event when name is <code>null</code>
+     */
+    private static synchronized void write(Sink sink, String name) {
+        // the trace was stopped since the section began
+        if (sink != fileSink) {
+            return;
+        }
+
+        Thread thread = Thread.currentThread();
+        long tid = thread.getId();
+        long now = System.nanoTime();
+        try {
+            if (sink.namedThreads.add(Long.valueOf(tid))) {
+                sink.file.threadName(tid, thread.getName());
+            }
+            if (name == null) {
+                sink.file.end(tid, now);
+            } else {
+                sink.file.begin(name, tid, now);
+            }
+        } catch (IOException e) {
+            // stops the trace instead of failing the traced code
+            fileSink = null;
+            update();
+            try {
+                sink.out.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.keplerproject.luajava;
+
+/**
+ * Limits of a protected call, passed to
+ * {@link LuaState#pcall(int, int, int, LuaWatchdog)}.
+ * <p>
+ * An instruction budget or a timeout installs a count hook for the duration
+ * of the call. When a limit is exceeded the script is aborted with a runtime
+ * error whose message carries a Lua traceback. The hook stays armed until
+ * the call returns, so a <code>pcall</code> inside the script cannot keep it
+ * running. Coroutines run under the hook too, wherever they were created:
+ * <code>coroutine.resume</code> and <code>coroutine.wrap</code>, as set up
+ * by {@link LuaState#openLibs()}, install it on the coroutine before running
+ * it, and a coroutine that kept it from an earlier call drops it the next
+ * time it runs. Coroutines resumed with <code>lua_resume</code> from native
+ * code are not covered.
+ * <p>
+ * A watchdog set with {@link LuaState#setDefaultWatchdog(LuaWatchdog)}
+ * applies to every protected call that does not pass its own.
+ * <p>
+ * A slow call threshold only measures the call and reports it to the
+ * listener afterwards, without a hook.
+ */
+public final class LuaWatchdog {
+
+    /**
+     * Receives calls that took longer than the slow call threshold
+     */
+    public interface SlowCallListener {
+
+        /**
+         * @param L
+         *            the state the call ran in
+         * @param elapsedNanos
+         *            time the call took
+         */
+        void onSlowCall(LuaState L, long elapsedNanos);
+    }
+
+    private long instructionBudget;
+
+    private long timeoutNanos;
+
+    private long slowCallNanos;
+
+    private SlowCallListener slowCallListener;
+
+    /**
+     * Sets how many VM instructions a call may run, checked every thousand
+     * instructions. 0, the default, for no limit.
+     */
+    public LuaWatchdog setInstructionBudget(long instructions) {
+        this.instructionBudget = instructions;
+        return this;
+    }
+
+    public long getInstructionBudget() {
+        return this.instructionBudget;
+    }
+
+    /**
+     * Sets how long a call may run, checked every thousand instructions. 0,
+     * the default, for no limit. Time spent in java or C functions is only
+     * noticed once Lua code runs again.
+     */
+    public LuaWatchdog setTimeout(long millis) {
+        this.timeoutNanos = millis * 1000000L;
+        return this;
+    }
+
+    public long getTimeout() {
+        return this.timeoutNanos / 1000000L;
+    }
+
+    /**
+     * Reports calls that take at least the given time, for example a frame
+     * (16 ms), to the listener. 0 or a <code>null</code> listener disables
+     * the report.
+     */
+    public LuaWatchdog setSlowCallThreshold(long millis,
+            SlowCallListener listener) {
+        this.slowCallNanos = millis * 1000000L;
+        this.slowCallListener = listener;
+        return this;
+    }
+
+    long getTimeoutNanos() {
+        return this.timeoutNanos;
+    }
+
+    boolean limits() {
+        return this.instructionBudget > 0 || this.timeoutNanos > 0;
+    }
+
+    void checkSlowCall(LuaState L, long elapsedNanos) {
+        if (this.slowCallListener != null && this.slowCallNanos > 0
+                && elapsedNanos >= this.slowCallNanos) {
+            this.slowCallListener.onSlowCall(L, elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2003-2007 Kepler Project.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.keplerproject.luajava;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Writes events in the trace event format read by Perfetto UI and
+ * chrome://tracing. Used for the file traces of {@link LuaTrace} and for
+ * the startup timeline, so both come out the same way.
+ * <p>
+ * Times are {@link System#nanoTime()} values. The writer is not thread
+ * safe; callers serialize the events they write.
+ */
+public final class TraceEventWriter {
+
+    private final Writer out;
+
+    private final int pid;
+
+    private boolean first = true;
+
+    /**
+     * Starts the event list.
+     * @param out
+     *            where the trace is written, not closed by {@link #finish()}
+     * @param pid
+     *            process id of the events
+     */
+    public TraceEventWriter(Writer out, int pid) throws IOException {
+        this.out = out;
+        this.pid = pid;
+        out.write("{\"traceEvents\":[");
+    }
+
+    /**
+     * Names a thread in the trace viewer
+     */
+    public void threadName(long tid, String name) throws IOException {
+        this.event(String.format(Locale.US,
+                "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":%d,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                this.pid, tid, escape(name)));
+    }
+
+    /**
+     * Begins a section, ended by the next {@link #end(long, long)} on the
+     * same thread
+     */
+    public void begin(String name, long tid, long nanos) throws IOException {
+        this.event(String.format(Locale.US,
+                "{\"name\":\"%s\",\"ph\":\"B\",\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                escape(name), nanos / 1e3, this.pid, tid));
+    }
+
+    /**
+     * Ends the last section begun on a thread
+     */
+    public void end(long tid, long nanos) throws IOException {
+        this.event(String.format(Locale.US,
+                "{\"ph\":\"E\",\"ts\":%.3f,\"pid\":%d,\"tid\":%d}",
+                nanos / 1e3, this.pid, tid));
+    }
+
+    /**
+     * Writes a section whose start and duration are known
+     */
+    public void complete(String name, String category, long tid,
+            long startNanos, long durationNanos) throws IOException {
+        this.event(String.format(Locale.US,
+                "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+                escape(name), escape(category), startNanos / 1e3,
+                durationNanos / 1e3, this.pid, tid));
+    }
+
+    /**
+     * Ends the event list and flushes the writer
+     */
+    public void finish() throws IOException {
+        this.out.write("\n],\"displayTimeUnit\":\"ms\"}\n");
+        this.out.flush();
+    }
+
+    private void event(String json) throws IOException {
+        this.out.write(this.first ? "\n" : ",\n");
+        this.out.write(json);
+        this.first = false;
+    }
+
+    /**
+     * Escapes a string for use inside a JSON string literal
+     */
+    public static String escape(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}